@@ -0,0 +1,388 @@
+package loadgen;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import utilities.LatencyHistogram;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generador de carga para el protocolo por sockets: abre N conexiones de pacientes y médicos simulados
+ * contra un servidor ya arrancado y reproduce una mezcla de acciones a un ritmo fijo.
+ *
+ * Es de bucle abierto: cada conexión tiene su horario (una petición cada conexiones/rate segundos) y la
+ * latencia se mide desde la hora a la que TOCABA mandar la petición, no desde que se mandó. Si el servidor
+ * se atasca, las peticiones que se retrasan cuentan su espera (corrección de omisión coordinada); la
+ * columna SVC_P99 es el tiempo de servicio sin corregir, para comparar.
+ *
+ * Antes de medir registra los usuarios (REGISTER_DOCTOR / REGISTER_PATIENT con emails "<prefix>-d3@load.test"):
+ * conviene apuntar el servidor a una BD de pruebas (--telemed.db.path=...).
+ *
+ * Uso: java -cp ServerCode_Telemedicine_2025-1.0-SNAPSHOT.jar loadgen.LoadGenerator [--clave=valor ...]
+ *   --host=localhost --port=9000 --patients=50 --doctors=10 --rate=200 (peticiones/s en total)
+ *   --duration=30 --warmup=5 (segundos) --samples=1000 (valores por SEND_MEASUREMENT)
+ *   --mix=LOGIN:2,SEND_MEASUREMENT:10,LIST_MESSAGES:20,... (pesos; cada rol usa las acciones que le tocan)
+ *   --prefix=lg1234 (emails de los usuarios simulados; repetirlo reutiliza las cuentas)
+ */
+public class LoadGenerator {
+
+    private static final String PASSWORD = "loadgen-pass";
+    private static final String DEFAULT_MIX = "LOGIN:2,SEND_MEASUREMENT:10,LIST_MESSAGES:20,SEND_MESSAGE:10,"
+            + "REQUEST_APPOINTMENT:5,LIST_APPOINTMENTS:15,LIST_MEASUREMENTS:10,LIST_DOCTORS:15,LIST_PATIENTS:8,"
+            + "LIST_SYMPTOMS:5";
+    private static final Gson gson = new Gson();
+
+    private enum Role { PATIENT, DOCTOR }
+
+    // Resultados de una acción
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram(); // desde la hora prevista
+        final LatencyHistogram service = new LatencyHistogram(); // desde que se mandó
+        final LongAdder errors = new LongAdder();
+        final LongAdder busy = new LongAdder();
+        volatile String lastError;                               // para saber qué falla sin mirar el servidor
+    }
+
+    // Un usuario simulado con su conexión
+    private static final class Client {
+        final Role role;
+        final int index;
+        final String email;
+        int userId = -1;
+        int doctorId = -1;        // pacientes: su médico
+        List<Integer> patients;   // médicos: sus pacientes
+        Socket socket;
+        BufferedReader in;
+        BufferedWriter out;
+        int requestSeq;
+
+        Client(Role role, int index, String prefix) {
+            this.role = role;
+            this.index = index;
+            this.email = prefix + (role == Role.DOCTOR ? "-d" : "-p") + index + "@load.test";
+        }
+    }
+
+    private final Map<String, String> options;
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+    private final JsonArray sampleValues = new JsonArray(); // se comparte: Gson solo lo lee al serializar
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+        for (String entry : option("mix", DEFAULT_MIX).split(",")) {
+            String[] kv = entry.trim().split(":");
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            if (weight > 0) {
+                mix.put(kv[0].trim().toUpperCase(Locale.ROOT), weight);
+                stats.put(kv[0].trim().toUpperCase(Locale.ROOT), new Stats());
+            }
+        }
+        int samples = intOption("samples", 1000);
+        for (int i = 0; i < samples; i++) {
+            sampleValues.add(500 + (int) (200 * Math.sin(i / 20.0))); // parecido a un ECG
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("[LoadGen] Ignoring argument (expected --key=value): " + arg);
+                continue;
+            }
+            int eq = arg.indexOf('=');
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void run() throws Exception {
+        int doctors = Math.max(1, intOption("doctors", 10));
+        int patients = intOption("patients", 50);
+        double rate = Double.parseDouble(option("rate", "200"));
+        long duration = TimeUnit.SECONDS.toNanos(Math.max(1, intOption("duration", 30)));
+        long warmup = TimeUnit.SECONDS.toNanos(intOption("warmup", 5));
+        String prefix = option("prefix", "lg" + Long.toString(System.currentTimeMillis() % 1_000_000, 36));
+
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < doctors; i++) clients.add(new Client(Role.DOCTOR, i, prefix));
+        for (int i = 0; i < patients; i++) clients.add(new Client(Role.PATIENT, i, prefix));
+
+        System.out.printf(Locale.ROOT, "[LoadGen] %d doctors + %d patients against %s:%s, %.1f req/s for %ds (+%ds warmup)%n",
+                doctors, patients, option("host", "localhost"), option("port", "9000"), rate,
+                TimeUnit.NANOSECONDS.toSeconds(duration), TimeUnit.NANOSECONDS.toSeconds(warmup));
+
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            // 1) conexiones y cuentas (médicos primero: los pacientes se asignan a uno)
+            runAll(pool, clients.subList(0, doctors), this::setUp);
+            runAll(pool, clients.subList(doctors, clients.size()), this::setUp);
+            Map<Integer, Client> byDoctorId = new LinkedHashMap<>();
+            for (Client d : clients.subList(0, doctors)) {
+                d.patients = new ArrayList<>();
+                byDoctorId.put(d.userId, d);
+            }
+            for (Client p : clients.subList(doctors, clients.size())) {
+                Client d = byDoctorId.get(p.doctorId);
+                if (d != null) d.patients.add(p.userId);
+            }
+            System.out.println("[LoadGen] " + clients.size() + " users connected and logged in");
+
+            // 2) carga: cada conexión lleva su propio horario, repartido al azar dentro del primer intervalo
+            long interval = (long) (clients.size() * 1e9 / rate);
+            long start = System.nanoTime() + 100_000_000L;
+            long measureFrom = start + warmup;
+            long end = measureFrom + duration;
+            runAll(pool, clients, c -> drive(c, interval, start + ThreadLocalRandom.current().nextLong(interval), measureFrom, end));
+
+            report(duration / 1e9, rate);
+        } finally {
+            for (Client c : clients) {
+                if (c.socket != null) c.socket.close();
+            }
+        }
+    }
+
+    // ------------------------- FASES -------------------------
+
+    private void setUp(Client c) throws IOException {
+        c.socket = new Socket(option("host", "localhost"), intOption("port", 9000));
+        c.socket.setTcpNoDelay(true);
+        c.in = new BufferedReader(new InputStreamReader(c.socket.getInputStream(), StandardCharsets.UTF_8));
+        c.out = new BufferedWriter(new OutputStreamWriter(c.socket.getOutputStream(), StandardCharsets.UTF_8));
+
+        JsonObject payload = new JsonObject();
+        payload.addProperty("name", c.role == Role.DOCTOR ? "LoadDoctor" : "LoadPatient");
+        payload.addProperty("surname", "N" + c.index);
+        payload.addProperty("email", c.email);
+        payload.addProperty("password", PASSWORD);
+        payload.addProperty("phone", "600000000");
+        if (c.role == Role.PATIENT) {
+            payload.addProperty("dob", "1990-01-01");
+            payload.addProperty("sex", "FEMALE");
+            payload.addProperty("doctorEmail", c.email.replaceFirst("-p\\d+@", "-d" + (c.index % intOption("doctors", 10)) + "@"));
+        }
+        // si la cuenta ya existía (mismo --prefix), el LOGIN de después basta
+        callRetrying(c, c.role == Role.DOCTOR ? "REGISTER_DOCTOR" : "REGISTER_PATIENT", payload);
+
+        JsonObject login = callRetrying(c, "LOGIN", loginPayload(c));
+        if (!"OK".equals(login.get("status").getAsString())) {
+            throw new IOException("LOGIN failed for " + c.email + ": " + login.get("message").getAsString());
+        }
+        JsonObject p = login.getAsJsonObject("payload");
+        c.userId = p.get("userId").getAsInt();
+        if (c.role == Role.PATIENT) c.doctorId = p.get("doctor_id").getAsInt();
+    }
+
+    private void drive(Client c, long interval, long firstSend, long measureFrom, long end) throws IOException {
+        List<String> actions = new ArrayList<>();
+        List<Integer> weights = new ArrayList<>();
+        int totalWeight = 0;
+        for (Map.Entry<String, Integer> e : mix.entrySet()) {
+            if (request(c, e.getKey()) != null) {
+                actions.add(e.getKey());
+                weights.add(e.getValue());
+                totalWeight += e.getValue();
+            }
+        }
+        if (totalWeight == 0) return;
+
+        for (long intended = firstSend; intended < end; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+
+            int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+            int a = 0;
+            while ((pick -= weights.get(a)) >= 0) a++;
+            String action = actions.get(a);
+
+            long sent = System.nanoTime();
+            JsonObject resp = call(c, action, request(c, action));
+            long done = System.nanoTime();
+
+            if (intended < measureFrom) continue; // calentamiento
+            Stats s = stats.get(action);
+            s.latency.record(done - intended);
+            s.service.record(done - sent);
+            String status = resp.has("status") ? resp.get("status").getAsString() : "ERROR";
+            if ("BUSY".equals(status)) s.busy.increment();
+            else if (!"OK".equals(status)) {
+                s.errors.increment();
+                s.lastError = resp.has("message") ? resp.get("message").getAsString() : status;
+            }
+        }
+    }
+
+    private void report(double seconds, double targetRate) {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram allService = new LatencyHistogram();
+        long errors = 0, busy = 0;
+
+        System.out.printf(Locale.ROOT, "%n%-20s %8s %6s %6s %9s %9s %9s %9s %9s %9s%n",
+                "ACTION", "COUNT", "ERR", "BUSY", "REQ/S", "P50_MS", "P99_MS", "P999_MS", "MAX_MS", "SVC_P99");
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            if (s.latency.count() == 0) continue;
+            row(e.getKey(), s.latency, s.service, s.errors.sum(), s.busy.sum(), seconds);
+            all.add(s.latency);
+            allService.add(s.service);
+            errors += s.errors.sum();
+            busy += s.busy.sum();
+        }
+        row("TOTAL", all, allService, errors, busy, seconds);
+        stats.forEach((action, s) -> {
+            if (s.lastError != null) System.out.println("[LoadGen] " + action + " last error: " + s.lastError);
+        });
+        System.out.printf(Locale.ROOT, "[LoadGen] target %.1f req/s, achieved %.1f req/s%n", targetRate, all.count() / seconds);
+    }
+
+    private static void row(String name, LatencyHistogram latency, LatencyHistogram service, long errors, long busy, double seconds) {
+        System.out.printf(Locale.ROOT, "%-20s %8d %6d %6d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                name, latency.count(), errors, busy, latency.count() / seconds,
+                latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+                latency.max() / 1e6, service.percentile(99) / 1e6);
+    }
+
+    // ------------------------- PETICIONES -------------------------
+
+    // Payload de cada acción según el rol; null si ese rol no la usa
+    private JsonObject request(Client c, String action) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        boolean doctor = c.role == Role.DOCTOR;
+        int patientId = doctor ? (c.patients == null || c.patients.isEmpty() ? -1 : c.patients.get(rnd.nextInt(c.patients.size()))) : c.userId;
+        int doctorId = doctor ? c.userId : c.doctorId;
+        JsonObject p = new JsonObject();
+
+        switch (action) {
+            case "LOGIN":
+                return loginPayload(c);
+            case "LIST_DOCTORS":
+                return p;
+            case "LIST_PATIENTS":
+                if (!doctor) return null;
+                p.addProperty("doctorId", doctorId);
+                return p;
+            case "SEND_MEASUREMENT":
+                if (doctor) return null;
+                p.addProperty("patientId", patientId);
+                p.addProperty("type", "ECG");
+                p.addProperty("date", LocalDateTime.now().toString());
+                p.add("values", sampleValues);
+                return p;
+            case "REQUEST_APPOINTMENT":
+                if (doctor) return null;
+                p.addProperty("doctorId", doctorId);
+                p.addProperty("patientId", patientId);
+                // hueco al azar en el próximo año: con la hora fija casi todas chocarían (slot already taken)
+                p.addProperty("datetime", LocalDateTime.now().withNano(0).plusMinutes(rnd.nextInt(1, 525_600)).toString());
+                p.addProperty("message", "Load test appointment");
+                return p;
+            case "SEND_MESSAGE":
+                if (patientId <= 0) return null;
+                p.addProperty("doctorId", doctorId);
+                p.addProperty("patientId", patientId);
+                p.addProperty("senderRole", c.role.name());
+                p.addProperty("text", "Load test message " + c.requestSeq);
+                return p;
+            case "LIST_MESSAGES":
+                if (patientId <= 0) return null;
+                p.addProperty("doctorId", doctorId);
+                p.addProperty("patientId", patientId);
+                return p;
+            case "LIST_APPOINTMENTS":
+                p.addProperty(doctor ? "doctorId" : "patientId", doctor ? doctorId : patientId);
+                return p;
+            case "LIST_MEASUREMENTS":
+            case "LIST_SYMPTOMS":
+                if (patientId <= 0) return null;
+                p.addProperty("patientId", patientId);
+                return p;
+            default:
+                return null; // acción desconocida para el generador: se ignora
+        }
+    }
+
+    private static JsonObject loginPayload(Client c) {
+        JsonObject p = new JsonObject();
+        p.addProperty("username", c.email);
+        p.addProperty("password", PASSWORD);
+        return p;
+    }
+
+    // Una petición y su respuesta (una línea cada una; sin HELLO el servidor responde en orden)
+    private static JsonObject call(Client c, String action, JsonObject payload) throws IOException {
+        JsonObject req = new JsonObject();
+        req.addProperty("type", "REQUEST");
+        req.addProperty("action", action);
+        req.addProperty("requestId", "lg-" + (c.requestSeq++));
+        req.add("payload", payload != null ? payload : new JsonObject());
+        c.out.write(gson.toJson(req));
+        c.out.write('\n');
+        c.out.flush();
+
+        String line = c.in.readLine();
+        if (line == null) {
+            throw new IOException("Server closed the connection of " + c.email);
+        }
+        return gson.fromJson(line, JsonObject.class);
+    }
+
+    // Durante la preparación un BUSY no es un fallo: se espera lo que diga retryAfterMs y se repite
+    private static JsonObject callRetrying(Client c, String action, JsonObject payload) throws IOException {
+        while (true) {
+            JsonObject resp = call(c, action, payload);
+            if (!"BUSY".equals(resp.get("status").getAsString())) {
+                return resp;
+            }
+            JsonObject p = resp.getAsJsonObject("payload");
+            long retryAfter = p != null && p.has("retryAfterMs") ? p.get("retryAfterMs").getAsLong() : 200;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(retryAfter));
+        }
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private interface ClientTask {
+        void run(Client c) throws Exception;
+    }
+
+    // Lanza la tarea para cada cliente en un hilo virtual y espera a todas; el primer fallo para el generador
+    private static void runAll(ExecutorService pool, List<Client> clients, ClientTask task) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Client c : clients) {
+            futures.add(pool.submit(() -> {
+                task.run(c);
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) f.get();
+    }
+
+    private String option(String key, String def) {
+        return options.getOrDefault(key, def);
+    }
+
+    private int intOption(String key, int def) {
+        return Integer.parseInt(option(key, String.valueOf(def)));
+    }
+}
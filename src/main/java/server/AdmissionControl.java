@@ -0,0 +1,246 @@
+package server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import utilities.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Control de admisión: decide, antes de mandar una petición al pool, si se acepta o se responde BUSY.
+ * Límites (cada uno por clase de acción, ver RequestClass):
+ *  - peticiones en curso a la vez: global (-Dtelemed.admission.maxConcurrent) y por clase
+ *    (-Dtelemed.admission.<clase>.maxConcurrent)
+ *  - cubo de fichas por conexión (-Dtelemed.admission.<clase>.connRate / connBurst)
+ *  - cubo de fichas por usuario (patientId, doctorId o email de la petición)
+ *    (-Dtelemed.admission.<clase>.userRate / userBurst)
+ *  - cola de trabajo acotada del pool (-Dtelemed.workers.queue, ver ServerMain)
+ * Un BATCH solo entra por sus límites de peticiones en curso (tiene la BD mientras dura); las fichas las
+ * gastan sus peticiones, cada una en los cubos de su clase (chargeBatch), como si llegaran sueltas.
+ * Un ritmo 0 desactiva ese cubo. Una petición rechazada se contesta en el acto con status BUSY y
+ * retryAfterMs, en vez de quedarse esperando en una cola sin fin.
+ */
+public class AdmissionControl {
+
+    /**
+     * Clases de acción: lo que cuesta cada petición al servidor (disco, BD, CPU).
+     */
+    public enum RequestClass {
+        CONTROL(0, 0, 0, 0, 0),       // HELLO: nunca se limita
+        AUTH(32, 5, 10, 2, 5),        // LOGIN, REGISTER_*: hash de contraseñas
+        SIGNAL(16, 10, 20, 10, 20),   // SEND_MEASUREMENT, GET_MEASUREMENT_VALUES...: CSV de megas
+        WRITE(64, 50, 100, 50, 100),  // resto de SEND_* y REQUEST_APPOINTMENT: escrituras en BD
+        READ(128, 200, 400, 200, 400); // LIST_*: lecturas
+
+        final int maxConcurrent;
+        final double connRate;
+        final int connBurst;
+        final double userRate;
+        final int userBurst;
+        final Semaphore running;
+
+        RequestClass(int maxConcurrent, double connRate, int connBurst, double userRate, int userBurst) {
+            String prefix = "telemed.admission." + name().toLowerCase(Locale.ROOT) + ".";
+            this.maxConcurrent = ServerConfig.getInt(prefix + "maxConcurrent", maxConcurrent);
+            this.connRate = ServerConfig.getDouble(prefix + "connRate", connRate);
+            this.connBurst = ServerConfig.getInt(prefix + "connBurst", connBurst);
+            this.userRate = ServerConfig.getDouble(prefix + "userRate", userRate);
+            this.userBurst = ServerConfig.getInt(prefix + "userBurst", userBurst);
+            this.running = this.maxConcurrent > 0 ? new Semaphore(this.maxConcurrent) : null;
+        }
+
+        static RequestClass of(String action) {
+            if (action == null) return READ;
+            switch (action) {
+                case "HELLO":
+                    return CONTROL;
+                case "LOGIN":
+                case "REGISTER_PATIENT":
+                case "REGISTER_DOCTOR":
+                    return AUTH;
+                case "SEND_MEASUREMENT":
+                case "GET_MEASUREMENT_VALUES":
+                case "DOWNLOAD_MEASUREMENT_RAW":
+                case "MEASUREMENT_CHUNK":
+                case "BATCH": // puede llevar mediciones y tiene la BD para él solo mientras dura
+                    return SIGNAL;
+                case "SEND_SYMPTOMS":
+                case "SEND_MESSAGE":
+                case "REQUEST_APPOINTMENT":
+                case "BEGIN_MEASUREMENT":
+                case "END_MEASUREMENT":
+                    return WRITE;
+                default:
+                    return READ;
+            }
+        }
+    }
+
+    /**
+     * Resultado de admit(): si reason es null la petición entra y hay que llamar a release() al terminar.
+     */
+    public record Decision(RequestClass requestClass, String reason, long retryAfterMs) {
+        public boolean admitted() {
+            return reason == null;
+        }
+    }
+
+    private static final Semaphore global = new Semaphore(Math.max(1, ServerConfig.ADMISSION_MAX_CONCURRENT));
+    private static final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+    private static final int USER_BUCKETS_SWEEP = 10_000;
+
+    private static final Map<String, LongAdder> rejected = new ConcurrentHashMap<>();
+    private static final LongAdder admitted = new LongAdder();
+
+    /**
+     * Decide si la petición entra. Barato: mira la acción y el usuario al principio del JSON (Protocol.peekField).
+     */
+    static Decision admit(ClientConnection conn, String json) {
+        String action = Protocol.peekField(json, "action");
+        RequestClass cls = RequestClass.of(action);
+        if (!ServerConfig.ADMISSION_ENABLED || cls == RequestClass.CONTROL) {
+            return new Decision(cls, null, 0);
+        }
+
+        // 1) ritmo de la conexión y 2) del usuario (varias conexiones del mismo paciente/médico suman);
+        // un BATCH no gasta aquí: lo hacen sus peticiones en chargeBatch
+        TokenBucket connBucket = null;
+        TokenBucket userBucket = null;
+        if (!"BATCH".equals(action)) {
+            connBucket = conn.rateLimit(cls);
+            if (connBucket != null) {
+                long wait = connBucket.tryTake();
+                if (wait > 0) return reject(cls, "connection rate limit", TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+            }
+            userBucket = userBucket(cls, conn, json);
+            if (userBucket != null) {
+                long wait = userBucket.tryTake();
+                if (wait > 0) {
+                    if (connBucket != null) connBucket.giveBack();
+                    return reject(cls, "user rate limit", TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+                }
+            }
+        }
+
+        // 3) peticiones en curso: por clase y global
+        if (cls.running != null && !cls.running.tryAcquire()) {
+            giveBack(connBucket, userBucket);
+            return reject(cls, cls.name().toLowerCase(Locale.ROOT) + " concurrency limit", ServerConfig.ADMISSION_RETRY_AFTER_MS);
+        }
+        if (!global.tryAcquire()) {
+            if (cls.running != null) cls.running.release();
+            giveBack(connBucket, userBucket);
+            return reject(cls, "server concurrency limit", ServerConfig.ADMISSION_RETRY_AFTER_MS);
+        }
+        admitted.increment();
+        return new Decision(cls, null, 0);
+    }
+
+    /**
+     * Fichas de las peticiones de un BATCH (ya admitido): cada una gasta en los cubos de conexión y usuario
+     * de su clase. Si alguna no cabe se devuelven las ya gastadas y se rechaza el lote entero (BUSY);
+     * null si cabe todo.
+     */
+    static Decision chargeBatch(ClientConnection conn, JsonArray items) {
+        if (!ServerConfig.ADMISSION_ENABLED) return null;
+        List<TokenBucket> taken = new ArrayList<>();
+        for (JsonElement item : items) {
+            JsonElement action = item.getAsJsonObject().get("action");
+            RequestClass cls = RequestClass.of(action != null && action.isJsonPrimitive() ? action.getAsString() : null);
+            if (cls == RequestClass.CONTROL) continue;
+            TokenBucket[] buckets = {conn.rateLimit(cls), userBucket(cls, conn, item.toString())};
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] == null) continue;
+                long wait = buckets[i].tryTake();
+                if (wait > 0) {
+                    taken.forEach(TokenBucket::giveBack);
+                    return reject(cls, "batch " + (i == 0 ? "connection" : "user") + " rate limit",
+                            TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+                }
+                taken.add(buckets[i]);
+            }
+        }
+        return null;
+    }
+
+    // Al terminar una petición admitida (o si al final no se pudo encolar)
+    static void release(Decision decision) {
+        if (!decision.admitted() || decision.requestClass == RequestClass.CONTROL || !ServerConfig.ADMISSION_ENABLED) {
+            return;
+        }
+        global.release();
+        if (decision.requestClass.running != null) decision.requestClass.running.release();
+    }
+
+    // La cola del pool estaba llena: se cuenta como un rechazo más
+    static Decision queueFull(Decision decision) {
+        release(decision);
+        return reject(decision.requestClass, "work queue full", ServerConfig.ADMISSION_RETRY_AFTER_MS);
+    }
+
+    // Cubos de una conexión nueva (uno por clase; null si esa clase no tiene límite de ritmo)
+    static TokenBucket[] connectionBuckets() {
+        RequestClass[] classes = RequestClass.values();
+        TokenBucket[] buckets = new TokenBucket[classes.length];
+        for (RequestClass cls : classes) {
+            if (cls.connRate > 0) buckets[cls.ordinal()] = new TokenBucket(cls.connRate, cls.connBurst);
+        }
+        return buckets;
+    }
+
+    // Tabla para la consola de administración
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "admitted=%d in-flight=%d/%d user-buckets=%d%n",
+                admitted.sum(), ServerConfig.ADMISSION_MAX_CONCURRENT - global.availablePermits(),
+                ServerConfig.ADMISSION_MAX_CONCURRENT, userBuckets.size()));
+        for (RequestClass cls : RequestClass.values()) {
+            if (cls.running == null) continue;
+            sb.append(String.format(Locale.ROOT, "  %-8s in-flight=%d/%d%n",
+                    cls, cls.maxConcurrent - cls.running.availablePermits(), cls.maxConcurrent));
+        }
+        rejected.forEach((reason, count) -> sb.append("  BUSY ").append(reason).append(": ").append(count.sum()).append('\n'));
+        return sb.toString();
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private static Decision reject(RequestClass cls, String reason, long retryAfterMs) {
+        rejected.computeIfAbsent(cls + " " + reason, k -> new LongAdder()).increment();
+        return new Decision(cls, reason, Math.max(1, retryAfterMs));
+    }
+
+    private static void giveBack(TokenBucket connBucket, TokenBucket userBucket) {
+        if (connBucket != null) connBucket.giveBack();
+        if (userBucket != null) userBucket.giveBack();
+    }
+
+    // El usuario es el de la sesión de la conexión; sin sesión, lo que la petición dice ser
+    private static TokenBucket userBucket(RequestClass cls, ClientConnection conn, String json) {
+        if (cls.userRate <= 0) return null;
+        String user;
+        if (conn.userRole() != null) {
+            user = (conn.userRole().equals("PATIENT") ? "P" : "D") + conn.userId();
+        } else if ((user = Protocol.peekField(json, "patientId")) != null) {
+            user = "P" + user;
+        } else if ((user = Protocol.peekField(json, "doctorId")) != null) {
+            user = "D" + user;
+        } else if ((user = Protocol.peekField(json, "email")) != null) {
+            user = "E" + user.toLowerCase(Locale.ROOT);
+        } else {
+            return null;
+        }
+        if (userBuckets.size() > USER_BUCKETS_SWEEP) {
+            // los cubos llenos equivalen a uno nuevo: se pueden tirar sin que cambie nada
+            userBuckets.values().removeIf(TokenBucket::isIdle);
+        }
+        return userBuckets.computeIfAbsent(cls.name() + ":" + user, k -> new TokenBucket(cls.userRate, cls.userBurst));
+    }
+}
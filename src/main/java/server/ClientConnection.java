@@ -0,0 +1,339 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import utilities.TokenBucket;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lo común a una conexión de cliente, tanto en ClientHandler (socket bloqueante) como en NioServer.
+ * Controla cuántas peticiones de la misma conexión pueden estar en curso a la vez (pipelining),
+ * el formato en el cable (líneas o tramas, compresión; negociado con HELLO) y cómo se envía una respuesta.
+ */
+public abstract class ClientConnection {
+
+    private static final byte[] LINE_END = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // Conexiones abiertas (para cerrarlas todas en el apagado)
+    private static final Set<ClientConnection> open = ConcurrentHashMap.newKeySet();
+
+    // Peticiones en curso permitidas por conexión (-Dtelemed.pipeline.window). Con 1 se responde en orden.
+    private final int window = ServerConfig.PIPELINE_WINDOW;
+    private final Semaphore slots = new Semaphore(window);
+
+    // Ritmo permitido a esta conexión por clase de acción (AdmissionControl)
+    private final TokenBucket[] rateLimits = AdmissionControl.connectionBuckets();
+
+    // Usuario que hizo LOGIN (o RESUME_SESSION) por esta conexión (null si ninguno) y su token
+    private volatile String userRole;
+    private volatile int userId;
+    private volatile String sessionToken;
+    private volatile Set<Integer> patients; // de la sesión de doctor (Sessions); null si no
+
+    // Formato negociado con HELLO: líneas (por defecto, clientes antiguos) o tramas con longitud
+    private volatile boolean framed = false;
+    private volatile boolean binarySamples = false;
+    private volatile boolean upgradePending = false;
+    private volatile boolean compress = false;
+    private volatile boolean compressPending = false;
+
+    // Compresión por conexión (solo con tramas): un único flujo deflate en cada sentido.
+    // Comprimir y escribir van juntos bajo el lock para que las tramas salgan en el orden del flujo.
+    private final ReentrantLock compressLock = new ReentrantLock();
+    private Deflater deflater;
+    private Inflater inflater; // solo lo usa el hilo/event-loop que lee de esta conexión
+
+    public abstract String remoteAddress();
+
+    // Cierra la conexión ya, desde cualquier hilo (apagado del servidor)
+    protected abstract void abort();
+
+    /**
+     * Escribe los bytes ya codificados. Se llama desde varios workers a la vez,
+     * así que cada implementación escribe todos los buffers seguidos, sin mezclarse con otra respuesta.
+     * No debe bloquear en el socket: encola y lo envía el hilo (o event-loop) de la conexión.
+     */
+    protected abstract void write(ByteBuffer... data);
+
+    /**
+     * Escribe la cabecera y después 'count' bytes del fichero desde su posición 0, con
+     * FileChannel.transferTo (del page cache al socket, sin pasar por el heap). La implementación
+     * se queda el canal y lo cierra al terminar.
+     */
+    protected abstract void writeFile(ByteBuffer header, FileChannel file, long count);
+
+    // Se llama cada vez que termina una petición de esta conexión (ya liberado su hueco)
+    protected void onRequestDone() {}
+
+    // Envía una respuesta JSON: como línea o como trama JSON según lo negociado
+    public void send(String json) {
+        if (framed) {
+            sendFrame(FrameCodec.encodeJson(json), json);
+        } else {
+            write(ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)), ByteBuffer.wrap(LINE_END));
+        }
+    }
+
+    // Envía una trama BINARY (sobre JSON + muestras empaquetadas); solo si se negoció binarySamples
+    public void sendBinary(String envelope, int[] samples, FrameCodec.SampleFormat format) {
+        sendBinary(envelope, samples, samples.length, format);
+    }
+
+    public void sendBinary(String envelope, int[] samples, int count, FrameCodec.SampleFormat format) {
+        sendFrame(FrameCodec.encodeBinary(envelope, samples, count, format), envelope);
+    }
+
+    /**
+     * Para respuestas en varios trozos: espera a que lo ya enviado salga hacia el cliente antes de
+     * preparar el siguiente trozo, para que la memoria no crezca con la longitud de la respuesta.
+     * Por defecto no hace nada; ClientHandler y NioServer esperan a que baje su cola de salida.
+     */
+    public void awaitWritable() {}
+
+    /**
+     * Respuesta JSON seguida del contenido de un fichero: en modo líneas, la línea y después los bytes
+     * tal cual; con tramas, la trama JSON y una trama RAW. El tamaño va en la cabecera (byteLength).
+     */
+    public void sendFile(String headerJson, FileChannel file, long count) {
+        byte[] header = headerJson.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer head;
+        if (framed) {
+            ByteBuffer json = FrameCodec.encodeJson(headerJson);
+            ByteBuffer raw = FrameCodec.rawHeader((int) count);
+            head = ByteBuffer.allocate(json.remaining() + raw.remaining()).put(json).put(raw).flip();
+        } else {
+            head = ByteBuffer.allocate(header.length + LINE_END.length).put(header).put(LINE_END).flip();
+        }
+        writeFile(head, file, count);
+    }
+
+    // Comprime la trama si se negoció y supera el umbral (-Dtelemed.compress.minBytes)
+    private void sendFrame(ByteBuffer frame, String json) {
+        if (!compress) {
+            write(frame);
+            return;
+        }
+        String action = CompressionStats.actionOf(json);
+        int raw = frame.remaining();
+        if (raw - FrameCodec.HEADER_BYTES < ServerConfig.COMPRESS_MIN_BYTES) {
+            CompressionStats.recordSkipped(action);
+            write(frame);
+            return;
+        }
+        compressLock.lock();
+        try {
+            if (deflater == null) { // ya cerrada
+                write(frame);
+                return;
+            }
+            long cpu = CompressionStats.cpuNow();
+            ByteBuffer packed = FrameCodec.compress(frame, deflater);
+            CompressionStats.recordCompressed(action, raw, packed.remaining(), CompressionStats.cpuNow() - cpu);
+            write(packed);
+        } finally {
+            compressLock.unlock();
+        }
+    }
+
+    // Decodifica una trama recibida (descomprimiendo si trae FLAG_COMPRESSED)
+    FrameCodec.Inbound decodeFrame(byte[] data, int offset, int length) throws IOException {
+        if (compress && inflater == null) {
+            inflater = new Inflater(true);
+        }
+        return FrameCodec.decode(data, offset, length, inflater);
+    }
+
+    // Libera la memoria nativa del compresor; los transportes lo llaman al cerrar la conexión
+    protected void releaseCompression() {
+        compressLock.lock();
+        try {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        } finally {
+            compressLock.unlock();
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    TokenBucket rateLimit(AdmissionControl.RequestClass cls) {
+        return rateLimits[cls.ordinal()];
+    }
+
+    // ------------------------- USUARIO -------------------------
+
+    // LOGIN o RESUME_SESSION correcto por esta conexión; si era otro usuario, sus suscripciones dejan de valer
+    void authenticated(Sessions.Session session) {
+        if (userRole != null && (!userRole.equals(session.role()) || userId != session.userId())) {
+            EventBus.unsubscribe(this);
+        }
+        this.userId = session.userId();
+        this.userRole = session.role();
+        this.sessionToken = session.token();
+        this.patients = session.patients();
+    }
+
+    // LOGOUT: la conexión vuelve a ser anónima
+    void loggedOut() {
+        EventBus.unsubscribe(this);
+        this.userRole = null;
+        this.userId = 0;
+        this.sessionToken = null;
+        this.patients = null;
+    }
+
+    // LOGOUT de un token: todas las conexiones atadas a él vuelven a ser anónimas (no solo la que lo pide)
+    static void sessionRevoked(String token) {
+        for (ClientConnection conn : open) {
+            if (token.equals(conn.sessionToken)) {
+                conn.loggedOut();
+            }
+        }
+    }
+
+    String sessionToken() {
+        return sessionToken;
+    }
+
+    // ¿Es patientId paciente del doctor de esta conexión? (sin BD si ya está en el conjunto de su sesión)
+    boolean isOwnPatient(int patientId) {
+        return Sessions.isPatientOf(patients, userId, patientId);
+    }
+
+    public String userRole() {
+        return userRole;
+    }
+
+    public int userId() {
+        return userId;
+    }
+
+    // ------------------------- NEGOCIACIÓN (HELLO) -------------------------
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    public boolean acceptsBinarySamples() {
+        return framed && binarySamples;
+    }
+
+    public boolean isCompressed() {
+        return compress;
+    }
+
+    /**
+     * Protocol.handleHello lo llama con lo aceptado. El cambio a tramas (y la compresión, que solo
+     * existe con tramas) se aplica después de enviar la respuesta del HELLO, que todavía va como línea.
+     */
+    public void negotiate(boolean framing, boolean binary, boolean compression) {
+        if (framing && !framed) {
+            upgradePending = true;
+        }
+        boolean withFrames = framing || framed;
+        binarySamples = binary && withFrames;
+        if (compression && withFrames) {
+            compressLock.lock();
+            try {
+                if (deflater == null) {
+                    deflater = new Deflater(ServerConfig.COMPRESS_LEVEL, true);
+                }
+            } finally {
+                compressLock.unlock();
+            }
+        }
+        if (framed) {
+            compress = compression && withFrames; // ya en tramas: vale desde la siguiente respuesta
+        } else {
+            compressPending = compression && withFrames;
+        }
+    }
+
+    /**
+     * El transporte llama aquí cuando recibe un HELLO como línea, sin otras peticiones en curso:
+     * se procesa en el acto, se responde en texto y, si se aceptó, lo siguiente ya son tramas.
+     */
+    void handleHello(String line) {
+        long start = System.nanoTime();
+        String response = Protocol.process(line, this);
+        if (response != null) {
+            send(response);
+        }
+        if (upgradePending) {
+            upgradePending = false;
+            framed = true;
+            compress = compressPending;
+        }
+        RequestLog.record(remoteAddress(), line, response, System.nanoTime() - start);
+    }
+
+    // El transporte tiene que tratar esta línea con handleHello (no mandarla al pool)
+    static boolean isHello(String line) {
+        return "HELLO".equals(Protocol.peekField(line, "action"));
+    }
+
+    // ------------------------- REGISTRO DE CONEXIONES -------------------------
+
+    // Los transportes llaman a opened() al aceptar la conexión y a closed() al cerrarla
+    protected void opened() {
+        open.add(this);
+    }
+
+    protected void closed() {
+        open.remove(this);
+        EventBus.unsubscribe(this);
+        releaseCompression();
+    }
+
+    static int openCount() {
+        return open.size();
+    }
+
+    // Cierra todas las conexiones abiertas; devuelve cuántas había
+    static int abortAll() {
+        int n = 0;
+        for (ClientConnection conn : open) {
+            conn.abort();
+            n++;
+        }
+        return n;
+    }
+
+    // ------------------------- VENTANA DE PETICIONES -------------------------
+
+    // Espera a que haya hueco (el lector deja de leer del socket mientras tanto)
+    void acquireSlot() throws InterruptedException {
+        slots.acquire();
+    }
+
+    boolean tryAcquireSlot() {
+        return slots.tryAcquire();
+    }
+
+    void releaseSlot() {
+        slots.release();
+        onRequestDone();
+    }
+
+    int inFlight() {
+        return window - slots.availablePermits();
+    }
+
+    // Espera a que terminen todas las peticiones en curso (antes de cerrar el socket o de cambiar de formato)
+    void awaitIdle() throws InterruptedException {
+        slots.acquire(window);
+        slots.release(window);
+    }
+}
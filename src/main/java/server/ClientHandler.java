@@ -1,52 +1,345 @@
 package server;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ClientHandler implements Runnable { // cada cliente conectado tiene un propio hilo, su propio ClientHandler
+public class ClientHandler extends ClientConnection implements Runnable { // cada cliente conectado tiene un propio hilo, su propio ClientHandler
+
+    // Bytes pendientes de enviar a partir de los cuales awaitWritable() hace esperar (respuestas por trozos)
+    private static final long MAX_PENDING_OUT = 1024 * 1024;
+    private static final Object END = new Object(); // en la cola: el escritor termina tras enviar lo anterior
 
     private final Socket socket;
+    private OutputStream out;
+    // Los workers solo encolan la respuesta entera (ByteBuffer[] o FileRegion) y siguen; la escribe en el socket
+    // el hilo escritor de esta conexión. Un cliente que deja de leer bloquea a su escritor, nunca a un worker.
+    private final BlockingQueue<Object> outbound = new LinkedBlockingQueue<>();
+    private final AtomicLong pendingBytes = new AtomicLong(); // de los ByteBuffer de outbound
+    private final Object drained = new Object();
+    private volatile boolean writerDone = false;
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    private Thread writer;
+
+    // lectura propia (en vez de BufferedReader) porque tras HELLO pueden llegar tramas binarias
+    private InputStream in;
+    private byte[] buf = new byte[8192];
+    private int pos = 0;
+    private int limit = 0;
 
     // constructor que recibe el socket del cliente
     public ClientHandler(Socket socket) {
         this.socket = socket;
     }
 
+    // Crea el handler y lo registra ya (para el apagado) aunque su hilo aún no haya empezado
+    public static ClientHandler accept(Socket socket) {
+        ClientHandler handler = new ClientHandler(socket);
+        handler.opened();
+        return handler;
+    }
+
+    @Override
+    protected void abort() {
+        try { socket.close(); } catch (IOException ignored) {} // el lector sale del read() con una excepción
+    }
+
+    @Override
+    public String remoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    // Encola la respuesta (todos sus buffers seguidos); si la cola ya pasa del límite, el cliente no está leyendo
+    @Override
+    protected void write(ByteBuffer... data) {
+        long bytes = 0;
+        for (ByteBuffer b : data) bytes += b.remaining();
+        long before = pendingBytes.getAndAdd(bytes);
+        if (before > 0 && before + bytes > ServerConfig.OUTBOUND_MAX_BYTES) {
+            pendingBytes.addAndGet(-bytes);
+            overflow();
+            return;
+        }
+        enqueue(data);
+    }
+
+    @Override
+    protected void writeFile(ByteBuffer header, FileChannel file, long count) {
+        pendingBytes.addAndGet(header.remaining());
+        enqueue(new FileRegion(header, file, count));
+    }
+
+    private void enqueue(Object item) {
+        outbound.add(item);
+        if (writerDone && outbound.remove(item)) { // la conexión ya se cerró: se descarta
+            discard(item);
+        }
+    }
+
+    // Respuestas por trozos (en un worker): espera a que la cola de salida baje del límite; si el cliente
+    // no lee en OUTBOUND_STALL_MS se cierra la conexión para no retener el worker
+    @Override
+    public void awaitWritable() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.OUTBOUND_STALL_MS);
+        synchronized (drained) {
+            while (!writerDone && pendingBytes.get() > MAX_PENDING_OUT) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    overflow();
+                    return;
+                }
+                try {
+                    drained.wait(Math.max(1, Math.min(50, TimeUnit.NANOSECONDS.toMillis(left))));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void overflow() {
+        if (!overflowed.compareAndSet(false, true)) return; // ya cerrándose
+        System.err.println("[Server] Client " + remoteAddress() + " is not reading its responses, closing connection");
+        abort();
+    }
+
+    // ------------------------- ESCRITURA (hilo escritor) -------------------------
+
+    // Escribe en orden lo que encolan los workers; flush solo cuando la cola se queda vacía
+    private void writeLoop() {
+        try {
+            while (true) {
+                Object item = outbound.poll();
+                if (item == null) {
+                    out.flush();
+                    item = outbound.take();
+                }
+                if (item == END) break;
+                if (item instanceof FileRegion region) {
+                    pendingBytes.addAndGet(-region.header().remaining());
+                    sendFile(region);
+                } else {
+                    for (ByteBuffer b : (ByteBuffer[]) item) {
+                        int n = b.remaining();
+                        out.write(b.array(), b.arrayOffset() + b.position(), n);
+                        pendingBytes.addAndGet(-n);
+                    }
+                }
+                if (pendingBytes.get() <= MAX_PENDING_OUT) {
+                    synchronized (drained) {
+                        drained.notifyAll();
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // el cliente se ha ido (o un fichero ha cambiado): cerramos para que el hilo lector salga del read()
+            try { socket.close(); } catch (IOException ignored) {}
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writerDone = true;
+            Object item;
+            while ((item = outbound.poll()) != null) {
+                discard(item);
+            }
+            pendingBytes.set(0);
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    private void sendFile(FileRegion region) throws IOException {
+        try (FileChannel file = region.file()) {
+            ByteBuffer header = region.header();
+            out.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+            out.flush();
+            // El socket viene de un ServerSocketChannel (ServerMain): transferTo puede usar sendfile.
+            // Si no tuviera canal, se copia por el stream (funciona igual, pero pasando por el heap).
+            WritableByteChannel target = socket.getChannel() != null
+                    ? socket.getChannel() : Channels.newChannel(out);
+            long sent = 0;
+            while (sent < region.count()) {
+                long n = file.transferTo(sent, region.count() - sent, target);
+                if (n <= 0) throw new IOException("File truncated while sending");
+                sent += n;
+            }
+        }
+    }
+
+    // Ficheros que no se llegaron a enviar
+    private static void discard(Object item) {
+        if (item instanceof FileRegion region) {
+            try { region.file().close(); } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Ya no llegan peticiones: el escritor envía lo que queda y termina. Si el cliente no lo lee en
+     * OUTBOUND_STALL_MS, cerrar el socket lo saca del write().
+     */
+    private void finishWriting() {
+        if (writer == null) return;
+        outbound.add(END);
+        try {
+            writer.join(ServerConfig.OUTBOUND_STALL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+        writer = null;
+    }
+
     @Override
     public void run() { // ejecuta los hilos
         System.out.println("[Server] Handling client: " + socket.getRemoteSocketAddress());
 
         // try with resources
-        // cuando acaba el try se cierran directamente el bufferReader y el printWriter
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter printWriter = new PrintWriter(socket.getOutputStream(), true))
+        // cuando acaba el try se cierran directamente el canal de entrada y el de salida
+        try (InputStream inputStream = socket.getInputStream();
+             OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream()))
         {
-            String message; // variable para almacenar cada mensaje
-
-            // lee cada mensaje del cliente
-            while ((message = bufferedReader.readLine()) != null) { // si hay algo escrito
-                System.out.println("[Server] [IN] Received: " + message); // imprime lo que recibe el server
+            this.in = inputStream;
+            this.out = outputStream;
+            // el escritor corre como el lector: hilo virtual en modo "virtual", de plataforma si no
+            Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform().daemon(true);
+            this.writer = builder.name("writer-" + socket.getRemoteSocketAddress()).start(this::writeLoop);
 
-                // Procesa el mensaje con la clase Protocol
-                String response = Protocol.process(message);
-
-                // Envía la respuesta de vuelta al cliente
-                if (response != null) {
-                    printWriter.println(response); // se lo envia al cliente porque printWriter es el canal de salida del socket
-                    System.out.println("[Server] [OUT] Replied : " + response);
+            // lee cada mensaje del cliente (línea o trama, según lo negociado)
+            while (true) {
+                FrameCodec.Inbound message;
+                if (isFramed()) {
+                    message = readFrame();
+                } else {
+                    String line = readLine();
+                    if (line != null && isHello(line)) {
+                        // HELLO cambia el formato: se responde cuando no queda nada en curso
+                        awaitIdle();
+                        handleHello(line);
+                        continue;
+                    }
+                    message = line != null ? new FrameCodec.Inbound(line) : null;
                 }
+                if (message == null) break; // el cliente ha cerrado
+
+                // (el resumen de la petición lo registra RequestLog al terminar)
+                // Espera hueco en la ventana de la conexión y lo manda al pool de workers;
+                // el worker encola la respuesta en cuanto acaba (puede adelantar a otras más lentas)
+                acquireSlot();
+                RequestDispatcher.submit(this, message);
             }
 
+            // el cliente ha cerrado su lado: terminamos lo que quede en curso y lo enviamos antes de cerrar
+            awaitIdle();
+            finishWriting();
+
         } catch (IOException e) {
             System.out.println("[Server] Client disconnected: " + socket.getRemoteSocketAddress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // apagado del servidor
         } finally {
             try {
                 socket.close(); // cierra el socket del cliente
             } catch (IOException ignored) {} // si hay algún error al cerrar lo ignora porque ya estamos saliendo del socket
+            finishWriting(); // con el socket cerrado, el escritor termina enseguida
+            closed();
             System.out.printf("[Server] Connection closed for %s%n",socket.getRemoteSocketAddress());
         }
     }
-}
\ No newline at end of file
+
+    // ------------------------- LECTURA -------------------------
+
+    // Una línea UTF-8 sin el '\n' (ni '\r'); null si el cliente cerró sin dejar nada pendiente
+    private String readLine() throws IOException {
+        int scanned = pos;
+        while (true) {
+            for (; scanned < limit; scanned++) {
+                if (buf[scanned] == '\n') {
+                    int end = scanned > pos && buf[scanned - 1] == '\r' ? scanned - 1 : scanned;
+                    String line = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+                    pos = scanned + 1;
+                    return line;
+                }
+            }
+            if (limit - pos >= ServerConfig.MAX_LINE_BYTES) {
+                throw new IOException("Line too long");
+            }
+            scanned -= pos; // fill() mueve lo pendiente al principio
+            if (!fill()) {
+                if (pos == limit) return null;
+                String last = new String(buf, pos, limit - pos, StandardCharsets.UTF_8); // última línea sin '\n'
+                pos = limit;
+                return last;
+            }
+        }
+    }
+
+    // Una trama completa; null si el cliente cerró justo entre dos tramas
+    private FrameCodec.Inbound readFrame() throws IOException {
+        if (!require(4)) {
+            if (pos == limit) return null;
+            throw new EOFException("Truncated frame header");
+        }
+        int length = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+                   | ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+        if (length < 2 || length > ServerConfig.MAX_LINE_BYTES) {
+            throw new IOException("Bad frame length " + length);
+        }
+        if (!require(4 + length)) {
+            throw new EOFException("Truncated frame");
+        }
+        FrameCodec.Inbound message = decodeFrame(buf, pos + 4, length);
+        pos += 4 + length;
+        return message;
+    }
+
+    // Se asegura de tener n bytes seguidos en buf[pos..]; false si el cliente cerró antes
+    private boolean require(int n) throws IOException {
+        while (limit - pos < n) {
+            if (!fill(n)) return false;
+        }
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        return fill(limit - pos + 1);
+    }
+
+    // Compacta lo pendiente al principio, crece si hace falta sitio para 'needed' bytes y lee del socket
+    private boolean fill(int needed) throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (needed > buf.length || limit == buf.length) {
+            int size = Math.max(needed, buf.length * 2);
+            buf = Arrays.copyOf(buf, Math.min(size, ServerConfig.MAX_LINE_BYTES + 4));
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) return false;
+        limit += n;
+        return true;
+    }
+
+    // Cabecera + fichero pendientes de enviar con transferTo (DOWNLOAD_MEASUREMENT_RAW)
+    private record FileRegion(ByteBuffer header, FileChannel file, long count) {}
+}
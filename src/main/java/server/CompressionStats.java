@@ -0,0 +1,77 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cuánto comprime cada acción y cuánto CPU cuesta (comando "compression" de la consola).
+ * Solo cuenta respuestas de conexiones que negociaron compresión en HELLO.
+ */
+public class CompressionStats {
+
+    private static final class Counters {
+        final LongAdder frames = new LongAdder();          // tramas comprimidas
+        final LongAdder skipped = new LongAdder();         // tramas por debajo del umbral (van sin comprimir)
+        final LongAdder rawBytes = new LongAdder();
+        final LongAdder compressedBytes = new LongAdder();
+        final LongAdder cpuNanos = new LongAdder();
+    }
+
+    private static final Map<String, Counters> byAction = new ConcurrentHashMap<>();
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    static void recordCompressed(String action, int rawBytes, int compressedBytes, long cpuNanos) {
+        Counters c = counters(action);
+        c.frames.increment();
+        c.rawBytes.add(rawBytes);
+        c.compressedBytes.add(compressedBytes);
+        c.cpuNanos.add(cpuNanos);
+    }
+
+    static void recordSkipped(String action) {
+        counters(action).skipped.increment();
+    }
+
+    /**
+     * Fila de la tabla para una trama: la acción si es del protocolo (Protocol.metricName, como Metrics) o el
+     * evento si es un EVENT (esos nombres los pone el servidor). El resto cuenta como UNKNOWN: la acción de
+     * una respuesta a una petición desconocida la eligió el cliente y no debe crear filas nuevas.
+     */
+    static String actionOf(String json) {
+        String action = Protocol.peekField(json, "action");
+        return "EVENT".equals(Protocol.peekField(json, "type")) && action != null ? action : Protocol.metricName(action);
+    }
+
+    // CPU del hilo actual; si la JVM no lo da (p. ej. hilos virtuales) usamos el tiempo de reloj
+    static long cpuNow() {
+        long cpu = threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+        return cpu >= 0 ? cpu : System.nanoTime();
+    }
+
+    // Tabla por acción para la consola de administración
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%-24s %8s %8s %12s %12s %7s %10s%n",
+                "ACTION", "FRAMES", "SKIPPED", "RAW_KB", "SENT_KB", "RATIO", "CPU_US/FR"));
+        for (Map.Entry<String, Counters> e : new TreeMap<>(byAction).entrySet()) {
+            Counters c = e.getValue();
+            long frames = c.frames.sum();
+            long raw = c.rawBytes.sum();
+            long sent = c.compressedBytes.sum();
+            sb.append(String.format(Locale.ROOT, "%-24s %8d %8d %12.1f %12.1f %7.2f %10.1f%n",
+                    e.getKey(), frames, c.skipped.sum(), raw / 1024.0, sent / 1024.0,
+                    sent > 0 ? (double) raw / sent : 0.0,
+                    frames > 0 ? c.cpuNanos.sum() / 1e3 / frames : 0.0));
+        }
+        return sb.toString();
+    }
+
+    private static Counters counters(String action) {
+        return byAction.computeIfAbsent(action, k -> new Counters());
+    }
+}
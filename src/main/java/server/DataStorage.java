@@ -1,14 +1,23 @@
 package server;
 
 import com.google.gson.JsonArray;
+import utilities.TraceEvents;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 /**
  * Guarda y lee señales de BITalino en CSV por carpeta de paciente.
@@ -18,6 +27,59 @@ public class DataStorage {
 
     private static final Path BASE = Paths.get("data"); // carpeta base "data"
     private static final DateTimeFormatter DATE_FMT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    private static final byte[] HEADER = "timestamp,value\n".getBytes(StandardCharsets.US_ASCII);
+    static final int HEADER_BYTES = HEADER.length; // tamaño de un CSV recién creado con createCsv
+
+    // Antes los métodos eran synchronized: con hilos virtuales un hilo bloqueado en E/S dentro de synchronized
+    // clava su carrier thread. Los locks de java.util.concurrent no, y además las lecturas pueden ir en paralelo.
+    private static final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock(true);
+    // Tope de hilos haciendo E/S de ficheros a la vez (-Dtelemed.io.maxConcurrent)
+    private static final Semaphore ioPermits = new Semaphore(ServerConfig.IO_MAX_CONCURRENT, true);
+
+    // CSV escritos que aún pueden estar solo en la caché del sistema (se sincronizan en el apagado)
+    private static final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+    private static volatile boolean closed = false;
+
+    // Evento JFR de la operación en curso en este hilo (para que countBytes le sume los bytes)
+    private static final ThreadLocal<TraceEvents.FileIoEvent> currentTrace = new ThreadLocal<>();
+
+    // Ejecuta una operación de fichero con el permiso de E/S y el lock indicado.
+    // El tiempo (esperas incluidas) va a Metrics con el nombre 'op'; null o un número negativo cuentan como fallo.
+    // 'path' (fichero o carpeta) solo se usa para el evento JFR telemed.FileIo.
+    private static <T> T withLock(String op, String path, Lock lock, Supplier<T> work) {
+        long start = System.nanoTime();
+        TraceEvents.FileIoEvent trace = new TraceEvents.FileIoEvent();
+        trace.begin();
+        T result = null;
+        ioPermits.acquireUninterruptibly();
+        lock.lock();
+        trace.lockWait = System.nanoTime() - start;
+        currentTrace.set(trace);
+        try {
+            result = work.get();
+            return result;
+        } finally {
+            currentTrace.remove();
+            lock.unlock();
+            ioPermits.release();
+            boolean ok = result != null && !(result instanceof Number n && n.longValue() < 0);
+            Metrics.storage(op).record(System.nanoTime() - start, ok);
+            if (trace.shouldCommit()) {
+                trace.operation = op;
+                trace.path = path;
+                trace.commit();
+            }
+        }
+    }
+
+    // Bytes leídos o escritos por la operación 'op' (Metrics y, si se está grabando, su evento JFR)
+    private static void countBytes(String op, long bytes) {
+        Metrics.storage(op).addBytes(bytes);
+        TraceEvents.FileIoEvent trace = currentTrace.get();
+        if (trace != null) {
+            trace.bytes += bytes;
+        }
+    }
 
     // Carpeta del "paciente" (puede ser el email o "patient_<id>")
     private static Path patientDir(String folder) {
@@ -34,26 +96,21 @@ public class DataStorage {
      * @param folder carpeta (ej. "ana@demo.es" o "patient_42")
      * @param rows JsonArray con strings tipo "0.00,523,0.12" o "0,523,-"
      */
-    public static synchronized String appendRowsToCsv(String folder, JsonArray rows) {
-        // synchronized evita que dos hilos escriban en el mismo archivo a la vez
+    public static String appendRowsToCsv(String folder, JsonArray rows) {
+        // el lock de escritura evita que dos hilos escriban en el mismo archivo a la vez
+        return withLock("appendRows", folder, fileLock.writeLock(), () -> writeRows(folder, rows));
+    }
+
+    private static String writeRows(String folder, JsonArray rows) {
         // guarda las señales del bitalino en un archivo CSV por día y por paciente
+        if (closed) {
+            System.err.println("[Storage] Write rejected: storage already closed for shutdown");
+            return null;
+        }
         try {
             ensurePatientDir(folder); // asegura la carpeta
 
-            // Nombre del fichero con fecha del día
-            String today = LocalDate.now().format(DATE_FMT);
-            Path file = patientDir(folder).resolve("signals_" + today + ".csv"); // nombre archivo
-
-            int contadorVueltas=0;
-            do{
-                if(contadorVueltas>0){
-                    // Si ya hemos dado una vuelta, significa que el archivo ya existía
-                    // y hemos tenido que cambiar el nombre para evitar sobrescribirlo.
-                    // Por lo tanto, generamos un nuevo nombre con un sufijo numérico.
-                    file = patientDir(folder).resolve("signals_" + today + "_" + contadorVueltas + ".csv");
-                }
-                contadorVueltas++;
-            }while(Files.exists(file));//Mientras el archivo exista, seguimos buscando un nombre nuevo
+            Path file = newSignalsFile(folder);
 
             boolean newFile = !Files.exists(file); // para escribir cabecera si es nuevo
 
@@ -71,14 +128,19 @@ public class DataStorage {
                 }
 
                 // Escribir cada fila
+                long bytes = 0;
                 for (var el : rows) { // var: java deduce por si solo el tipo de elemento que es
                     // var = JsonElement
                     String row = el.getAsString(); // JSON array
                     bw.write(row);
                     bw.newLine();
+                    bytes += row.length() + 1;
                 }
+                countBytes("appendRows", bytes);
             }
 
+            unsynced.add(file);
+
             // Devolver ruta como String (se guarda en BD como meta)
             return file.toString();
 
@@ -88,11 +150,167 @@ public class DataStorage {
         }
     }
 
+    /**
+     * Escribe una toma completa (SEND_MEASUREMENT) en un CSV nuevo del día: cabecera y filas "indice,valor"
+     * para values[0..count). Como appendRowsToCsv, pero desde el int[] sin crear un String por muestra.
+     * Devuelve la ruta al fichero, o null si falló.
+     * El texto se prepara antes de coger el lock de escritura: dentro solo se escribe el fichero, así una
+     * medición grande no hace esperar a las lecturas mientras se formatea.
+     */
+    public static String writeValuesCsv(String folder, int[] values, int count) {
+        StringBuilder sb = new StringBuilder(HEADER_BYTES + count * 12);
+        sb.append("timestamp,value\n");
+        for (int i = 0; i < count; i++) {
+            sb.append(i).append(',').append(values[i]).append('\n');
+        }
+        ByteBuffer bytes = StandardCharsets.US_ASCII.encode(java.nio.CharBuffer.wrap(sb));
+        return withLock("writeValues", folder, fileLock.writeLock(), () -> {
+            if (closed) {
+                System.err.println("[Storage] Write rejected: storage already closed for shutdown");
+                return null;
+            }
+            countBytes("writeValues", bytes.remaining());
+            try {
+                ensurePatientDir(folder);
+                Path file = newSignalsFile(folder);
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                    while (bytes.hasRemaining()) {
+                        ch.write(bytes);
+                    }
+                }
+                unsynced.add(file);
+                return file.toString();
+            } catch (IOException e) {
+                System.err.println("[Storage] Could not write CSV in " + folder + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    // Primer nombre libre del día: signals_YYYY-MM-DD.csv, signals_YYYY-MM-DD_1.csv...
+    private static Path newSignalsFile(String folder) {
+        // Nombre del fichero con fecha del día
+        String today = LocalDate.now().format(DATE_FMT);
+        Path file = patientDir(folder).resolve("signals_" + today + ".csv"); // nombre archivo
+
+        int contadorVueltas=0;
+        do{
+            if(contadorVueltas>0){
+                // Si ya hemos dado una vuelta, significa que el archivo ya existía
+                // y hemos tenido que cambiar el nombre para evitar sobrescribirlo.
+                // Por lo tanto, generamos un nuevo nombre con un sufijo numérico.
+                file = patientDir(folder).resolve("signals_" + today + "_" + contadorVueltas + ".csv");
+            }
+            contadorVueltas++;
+        }while(Files.exists(file));//Mientras el archivo exista, seguimos buscando un nombre nuevo
+        return file;
+    }
+
+    /**
+     * Crea un CSV nuevo solo con la cabecera, para una subida por trozos (BEGIN_MEASUREMENT).
+     * Devuelve la ruta, o null si no se pudo.
+     */
+    public static String createCsv(String folder) {
+        return withLock("createCsv", folder, fileLock.writeLock(), () -> {
+            if (closed) {
+                System.err.println("[Storage] Write rejected: storage already closed for shutdown");
+                return null;
+            }
+            try {
+                ensurePatientDir(folder);
+                Path file = newSignalsFile(folder);
+                Files.write(file, HEADER, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                unsynced.add(file);
+                return file.toString();
+            } catch (IOException e) {
+                System.err.println("[Storage] Could not create CSV in " + folder + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Añade filas "indice,valor" a un CSV creado con createCsv (MEASUREMENT_CHUNK).
+     * Se escribe justo a partir de 'validBytes' (lo ya confirmado al cliente): si una escritura anterior
+     * se quedó a medias, se recorta primero, así un trozo reenviado no deja filas repetidas.
+     * Devuelve el nuevo tamaño del fichero, o -1 si falló.
+     */
+    public static long appendValues(String filePath, long validBytes, long firstIndex, int[] values, int from, int to) {
+        return withLock("appendValues", filePath, fileLock.writeLock(), () -> {
+            if (closed) {
+                System.err.println("[Storage] Write rejected: storage already closed for shutdown");
+                return -1L;
+            }
+            StringBuilder sb = new StringBuilder((to - from) * 12);
+            long index = firstIndex;
+            for (int i = from; i < to; i++) {
+                sb.append(index++).append(',').append(values[i]).append('\n');
+            }
+            ByteBuffer bytes = StandardCharsets.US_ASCII.encode(java.nio.CharBuffer.wrap(sb));
+            Path file = Paths.get(filePath);
+            countBytes("appendValues", bytes.remaining());
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                if (ch.size() > validBytes) {
+                    ch.truncate(validBytes);
+                }
+                long position = validBytes;
+                while (bytes.hasRemaining()) {
+                    position += ch.write(bytes, position);
+                }
+                unsynced.add(file);
+                return position;
+            } catch (IOException e) {
+                System.err.println("[Storage] Append to " + filePath + " failed: " + e.getMessage());
+                return -1L;
+            }
+        });
+    }
+
+    // Borra el CSV de una subida abandonada (nunca llegó a tener metadatos en BD)
+    public static void discard(String filePath) {
+        withLock("discard", filePath, fileLock.writeLock(), () -> {
+            Path file = Paths.get(filePath);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                System.err.println("[Storage] Could not delete " + filePath + ": " + e.getMessage());
+                return Boolean.FALSE;
+            }
+            unsynced.remove(file);
+            return Boolean.TRUE;
+        });
+    }
+
+    /**
+     * Apagado: espera a que acaben las escrituras en curso (lock de escritura), no admite más
+     * y fuerza a disco los CSV escritos. Devuelve cuántos ficheros se sincronizaron.
+     */
+    public static int flushAndClose() {
+        return withLock("flushAndClose", BASE.toString(), fileLock.writeLock(), () -> {
+            closed = true;
+            int synced = 0;
+            for (Path file : unsynced) {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    ch.force(true);
+                    synced++;
+                } catch (IOException e) {
+                    System.err.println("[Storage] Could not sync " + file + ": " + e.getMessage());
+                }
+            }
+            unsynced.clear();
+            return synced;
+        });
+    }
+
     /**
      * Lee el CSV del día y devuelve un trozo de JSON:
      * {"header":"timestamp,ecg,eda","rows":["...","..."]}
      */
-    public static synchronized String loadTodayAsJsonPayload(String folder) {
+    public static String loadTodayAsJsonPayload(String folder) {
+        return withLock("readToday", folder, fileLock.readLock(), () -> readToday(folder));
+    }
+
+    private static String readToday(String folder) {
         // Lee el archivo CSV del día (las señales del BITalino) y lo convierte en un JSON con:
         try {
             String today = LocalDate.now().format(DATE_FMT);
@@ -102,12 +320,14 @@ public class DataStorage {
             String header = null; // la primera línea del CSV
             JsonArray rows = new JsonArray(); // una lista con todas las filas de datos
 
+            long bytes = 0;
             try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) { // lee linea por linea el archivo
                 String line; boolean first = true;
                 while ((line = br.readLine()) != null) { // lee hasta el final el archivo
                     if (line.isBlank()) continue; // si hay lineas en blanco sigue
                     if (first) { header = line.trim(); first = false; } // solo guarda el header, la primera linea
                     else { rows.add(line.trim()); } // el resto de lineas van al JSON array
+                    bytes += line.length() + 1;
 
                     // los headers permiten saber como se llama cada columna
                     //  las filas son muchas, y deben mantenerse en orden.
@@ -117,6 +337,7 @@ public class DataStorage {
                     //es la estructura natural para una lista
                 }
             }
+            countBytes("readToday", bytes);
 
             if (header == null) return null;
             return "{\"header\":\"" + header + "\",\"rows\":" + rows.toString() + "}";
@@ -129,11 +350,32 @@ public class DataStorage {
 
 
 
+    /**
+     * Abre un CSV para enviarlo tal cual (DOWNLOAD_MEASUREMENT_RAW); null si no existe.
+     * Los CSV de mediciones no cambian una vez escritos (cada toma va a un fichero nuevo),
+     * así que el tamaño que se lee ahora es el que se envía.
+     */
+    public static FileChannel openForTransfer(String filePath) {
+        return withLock("openForTransfer", filePath, fileLock.readLock(), () -> {
+            try {
+                Path file = Paths.get(filePath);
+                return Files.isRegularFile(file) ? FileChannel.open(file, StandardOpenOption.READ) : null;
+            } catch (IOException e) {
+                System.err.println("[Storage] Could not open " + filePath + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
     /**
      * Lee un CSV cualquiera (por ruta absoluta o relativa) y devuelve:
      * {"header":"timestamp,ecg,eda","rows":["...","..."]}
      */
-    public static synchronized String loadCsvAsJson(String filePath) {
+    public static String loadCsvAsJson(String filePath) {
+        return withLock("readCsv", filePath, fileLock.readLock(), () -> readCsv(filePath));
+    }
+
+    private static String readCsv(String filePath) {
         // Lee un archivo CSV (cualquier CSV) y lo convierte en un JSON con la forma:
         //{
         //  "header": "timestamp,ecg,eda",
@@ -150,10 +392,12 @@ public class DataStorage {
             String header = null; // primera linea del archivo
             JsonArray rows = new JsonArray(); // resto de lienas
 
+            long bytes = 0;
             try (BufferedReader br = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
                 String line;
                 boolean first = true;
                 while ((line = br.readLine()) != null) { //lee hasta el final del archivo
+                    bytes += line.length() + 1;
                     if (line.isBlank()) continue; // salta lineas en blanco
                     if (first) {
                         header = line.trim(); // guarda la primera
@@ -163,6 +407,7 @@ public class DataStorage {
                     }
                 }
             }
+            countBytes("readCsv", bytes);
 
             if (header == null) return null;
             return "{\"header\":\"" + header + "\",\"rows\":" + rows.toString() + "}";
@@ -173,4 +418,85 @@ public class DataStorage {
         }
     }
 
-}
\ No newline at end of file
+
+    /**
+     * Abre un CSV de medición para leer sus valores poco a poco (GET_MEASUREMENT_VALUES en modo stream).
+     * Null si no existe.
+     */
+    public static ValueReader openValueReader(String filePath) {
+        return withLock("openValueReader", filePath, fileLock.readLock(), () -> {
+            try {
+                Path file = Paths.get(filePath);
+                if (!Files.isRegularFile(file)) return null;
+                return new ValueReader(filePath, Files.newBufferedReader(file, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                System.err.println("[Storage] Could not open " + filePath + ": " + e.getMessage());
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Lector por trozos de la columna de valores de un CSV "timestamp,value".
+     * Cada read() coge el lock y el permiso de E/S solo mientras lee su trozo: mientras el trozo se
+     * envía a un cliente lento no se bloquea a nadie. La memoria es la del trozo, no la del fichero.
+     */
+    public static final class ValueReader implements AutoCloseable {
+        private final String path;
+        private final BufferedReader reader;
+        private boolean headerSkipped = false;
+        private boolean eof = false;
+
+        private ValueReader(String path, BufferedReader reader) {
+            this.path = path;
+            this.reader = reader;
+        }
+
+        // Rellena buf con los siguientes valores; devuelve cuántos (-1 al final del fichero)
+        public int read(int[] buf) throws IOException {
+            if (eof) return -1;
+            IOException[] failure = new IOException[1];
+            int n = withLock("readValues", path, fileLock.readLock(), () -> {
+                try {
+                    return fill(buf);
+                } catch (IOException e) {
+                    failure[0] = e;
+                    return -1;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            return n == 0 && eof ? -1 : n;
+        }
+
+        // Devuelve cuántos valores leyó (0 si ya no quedaban)
+        private int fill(int[] buf) throws IOException {
+            int count = 0;
+            long bytes = 0;
+            String line;
+            while (count < buf.length && (line = reader.readLine()) != null) {
+                bytes += line.length() + 1;
+                if (!headerSkipped) { // la primera línea es la cabecera
+                    headerSkipped = true;
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                if (comma < 0) continue; // fila rara: la saltamos (igual que el modo normal)
+                int end = line.indexOf(',', comma + 1);
+                try {
+                    buf[count] = Integer.parseInt(line, comma + 1, end < 0 ? line.length() : end, 10);
+                    count++;
+                } catch (NumberFormatException ignored) {}
+            }
+            if (count < buf.length) eof = true;
+            countBytes("readValues", bytes);
+            return count;
+        }
+
+        @Override
+        public void close() {
+            try {
+                reader.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import pojos.Doctor;
+import server.database.DoctorDAO;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caché de lectura para LIST_DOCTORS: la lista de doctores ya serializada a JSON.
+ * Solo cambia cuando un REGISTER_DOCTOR sale bien, que llama a invalidate(); mientras tanto todas las
+ * pantallas de registro de pacientes se sirven sin tocar la BD ni volver a serializar.
+ *
+ * Cada entrada lleva la versión con la que se cargó. invalidate() sube la versión y la siguiente lectura
+ * recarga. Si un registro llega mientras otro hilo está recargando, esa carga se guarda con la versión
+ * vieja y la próxima petición vuelve a leer: nunca se sirve una lista anterior a un registro ya confirmado.
+ */
+public class DoctorListCache {
+
+    private record Entry(long version, String doctorsJson) {}
+
+    private static final Gson gson = new Gson();
+    private static final AtomicLong version = new AtomicLong();
+    private static volatile Entry cached;
+
+    /**
+     * Array JSON de doctores ([{"doctorId","name","surname","email"}, ...]), de la caché o de la BD.
+     */
+    static String doctorsJson() {
+        long current = version.get();
+        Entry entry = cached;
+        if (entry != null && entry.version == current) {
+            Metrics.cacheHit("LIST_DOCTORS");
+            return entry.doctorsJson;
+        }
+        Metrics.cacheMiss("LIST_DOCTORS");
+        List<Doctor> doctors = DoctorDAO.getAllDoctors();
+        String json = toJson(doctors);
+        // Lista vacía no se guarda: el DAO devuelve vacío también si falla la consulta
+        if (!doctors.isEmpty()) {
+            cached = new Entry(current, json); // leída después de 'current': como mucho se recarga una vez de más
+        }
+        return json;
+    }
+
+    // Un doctor nuevo: la próxima lectura va a la BD
+    static void invalidate() {
+        version.incrementAndGet();
+    }
+
+    private static String toJson(List<Doctor> doctors) {
+        JsonArray arr = new JsonArray();
+        for (Doctor d : doctors) {
+            JsonObject jo = new JsonObject();
+            jo.addProperty("doctorId", d.getId());
+            jo.addProperty("name", d.getName());
+            jo.addProperty("surname", d.getSurname());
+            jo.addProperty("email", d.getEmail());
+            arr.add(jo);
+        }
+        return gson.toJson(arr);
+    }
+}
@@ -0,0 +1,193 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registro de suscripciones a eventos (mensajes EVENT que el servidor envía sin petición previa).
+ * Una conexión con LOGIN hecho se suscribe con SUBSCRIBE; SEND_MESSAGE y REQUEST_APPOINTMENT publican
+ * un evento pequeño a las conexiones vivas del otro lado, que así no tienen que sondear LIST_MESSAGES
+ * ni LIST_APPOINTMENTS.
+ *
+ * Cada suscripción tiene su propia cola acotada (-Dtelemed.events.queue): quien publica solo encola y
+ * sigue. La entrega la hace una tarea en un hilo virtual, así que un cliente lento no frena al worker que
+ * atiende SEND_MESSAGE. Si la cola se llena, los eventos se descartan y se avisa después con EVENTS_DROPPED
+ * para que el cliente vuelva a pedir la lista.
+ */
+public class EventBus {
+
+    // Tipos de evento a los que se puede suscribir una conexión
+    public enum Topic {
+        MESSAGE, APPOINTMENT;
+
+        static Topic parse(String value) {
+            try {
+                return Topic.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private static final class Subscription {
+        final ClientConnection conn;
+        final String user;
+        volatile Set<Topic> topics;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(ServerConfig.EVENTS_QUEUE);
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicInteger dropped = new AtomicInteger();
+
+        Subscription(ClientConnection conn, String user, Set<Topic> topics) {
+            this.conn = conn;
+            this.user = user;
+            this.topics = topics;
+        }
+    }
+
+    private static final Map<ClientConnection, Subscription> byConnection = new ConcurrentHashMap<>();
+    private static final Map<String, Set<Subscription>> byUser = new ConcurrentHashMap<>();
+
+    // Entrega en hilos virtuales: escribir en un socket lento solo bloquea a esa tarea
+    private static final ExecutorService delivery = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Eventos retenidos en este hilo durante un BATCH: solo salen si la transacción se confirma
+    private static final ThreadLocal<List<Runnable>> held = new ThreadLocal<>();
+
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder droppedTotal = new LongAdder();
+
+    // Clave de usuario: "DOCTOR:3", "PATIENT:22"
+    static String userKey(String role, int userId) {
+        return role + ":" + userId;
+    }
+
+    /**
+     * Suscribe (o cambia los temas de) una conexión. Una conexión es de un solo usuario.
+     */
+    static void subscribe(ClientConnection conn, String role, int userId, Set<Topic> topics) {
+        String user = userKey(role, userId);
+        Subscription existing = byConnection.get(conn);
+        if (existing != null && existing.user.equals(user)) {
+            existing.topics = topics;
+            return;
+        }
+        unsubscribe(conn);
+        Subscription sub = new Subscription(conn, user, topics);
+        byConnection.put(conn, sub);
+        byUser.computeIfAbsent(user, k -> ConcurrentHashMap.newKeySet()).add(sub);
+    }
+
+    // Quita la suscripción de la conexión (UNSUBSCRIBE, otro LOGIN o cierre de la conexión)
+    static void unsubscribe(ClientConnection conn) {
+        Subscription sub = byConnection.remove(conn);
+        if (sub == null) return;
+        byUser.computeIfPresent(sub.user, (k, subs) -> {
+            subs.remove(sub);
+            return subs.isEmpty() ? null : subs;
+        });
+    }
+
+    // Para no construir el JSON del evento si nadie lo va a recibir
+    static boolean hasSubscribers(String role, int userId) {
+        return byUser.containsKey(userKey(role, userId));
+    }
+
+    /**
+     * Encola el evento para todas las conexiones suscritas de ese usuario. No bloquea nunca.
+     */
+    static void publish(String role, int userId, Topic topic, String eventJson) {
+        List<Runnable> pending = held.get();
+        if (pending != null) {
+            pending.add(() -> publish(role, userId, topic, eventJson));
+            return;
+        }
+        Set<Subscription> subs = byUser.get(userKey(role, userId));
+        if (subs == null) return;
+        published.increment();
+        for (Subscription sub : subs) {
+            if (!sub.topics.contains(topic)) continue;
+            if (!sub.queue.offer(eventJson)) {
+                sub.dropped.incrementAndGet(); // cola llena: el cliente se pondrá al día con LIST_*
+                droppedTotal.increment();
+            }
+            schedule(sub);
+        }
+    }
+
+    // ------------------------- BATCH -------------------------
+
+    // A partir de aquí, lo que se publique en este hilo se retiene hasta releaseHeld()
+    static void holdEvents() {
+        held.set(new ArrayList<>());
+    }
+
+    // Cuántos eventos hay retenidos (marca para discardHeldFrom)
+    static int heldCount() {
+        List<Runnable> pending = held.get();
+        return pending != null ? pending.size() : 0;
+    }
+
+    // Olvida los retenidos desde la marca (un elemento del BATCH que se deshizo)
+    static void discardHeldFrom(int mark) {
+        List<Runnable> pending = held.get();
+        if (pending != null && pending.size() > mark) {
+            pending.subList(mark, pending.size()).clear();
+        }
+    }
+
+    // Deja de retener y publica lo retenido si 'deliver' (transacción confirmada)
+    static void releaseHeld(boolean deliver) {
+        List<Runnable> pending = held.get();
+        held.remove();
+        if (deliver && pending != null) {
+            pending.forEach(Runnable::run);
+        }
+    }
+
+    public static String report() {
+        int subscribers = byConnection.size();
+        return String.format(Locale.ROOT, "subscriptions=%d users=%d published=%d delivered=%d dropped=%d%n",
+                subscribers, byUser.size(), published.sum(), delivered.sum(), droppedTotal.sum());
+    }
+
+    // ------------------------- ENTREGA -------------------------
+
+    // Una sola tarea de entrega por suscripción a la vez: así los eventos salen en orden
+    private static void schedule(Subscription sub) {
+        if (sub.scheduled.compareAndSet(false, true)) {
+            delivery.execute(() -> drain(sub));
+        }
+    }
+
+    private static void drain(Subscription sub) {
+        try {
+            String event;
+            while ((event = sub.queue.poll()) != null) {
+                sub.conn.send(event);
+                delivered.increment();
+            }
+            int lost = sub.dropped.getAndSet(0);
+            if (lost > 0) {
+                sub.conn.send(Protocol.eventsDropped(lost));
+            }
+        } finally {
+            sub.scheduled.set(false);
+        }
+        // algo llegó mientras terminábamos: otra vuelta
+        if (!sub.queue.isEmpty() || sub.dropped.get() > 0) {
+            schedule(sub);
+        }
+    }
+}
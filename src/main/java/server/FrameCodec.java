@@ -0,0 +1,210 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Formato de trama del transporte "LENGTH_PREFIXED" (se activa con HELLO, ver Protocol.handleHello).
+ *
+ * <pre>
+ * int32 (big-endian)  longitud de lo que sigue (kind + flags + cuerpo)
+ * byte                kind: 1 = JSON, 2 = BINARY, 3 = RAW (solo del servidor al cliente)
+ * byte                flags: FLAG_COMPRESSED, FLAG_SAMPLES_INT32 (si no, muestras int16)
+ * cuerpo JSON:        texto UTF-8 (el mismo JSON que iría en una línea)
+ * cuerpo BINARY:      int32 (big-endian) longitud del sobre JSON, sobre JSON UTF-8,
+ *                     y después las muestras empaquetadas en little-endian (int16 o int32)
+ * cuerpo RAW:         bytes de un fichero tal cual (DOWNLOAD_MEASUREMENT_RAW), precedido de su trama JSON
+ * </pre>
+ * Con FLAG_COMPRESSED el cuerpo va comprimido (deflate sin cabecera) con el Deflater de la conexión
+ * y termina en un SYNC_FLUSH: el diccionario se mantiene entre tramas y cada una se puede descomprimir
+ * en cuanto llega. Las tramas sin el flag no pasan por el compresor.
+ * Así una señal viaja como enteros empaquetados y nadie tiene que buscar '\n' en megas de texto.
+ */
+public class FrameCodec {
+
+    public static final byte KIND_JSON = 1;
+    public static final byte KIND_BINARY = 2;
+    public static final byte KIND_RAW = 3;
+
+    public static final int FLAG_COMPRESSED = 0x01;
+    public static final int FLAG_SAMPLES_INT32 = 0x02;
+
+    public static final int HEADER_BYTES = 4 + 1 + 1; // longitud + kind + flags
+
+    public enum SampleFormat {
+        INT16LE(2), INT32LE(4);
+
+        final int width;
+
+        SampleFormat(int width) {
+            this.width = width;
+        }
+
+        // int16 si todas las muestras caben (la mitad de bytes), si no int32
+        public static SampleFormat fitting(int[] samples) {
+            return fitting(samples, samples.length);
+        }
+
+        public static SampleFormat fitting(int[] samples, int count) {
+            for (int i = 0; i < count; i++) {
+                if (samples[i] < Short.MIN_VALUE || samples[i] > Short.MAX_VALUE) return INT32LE;
+            }
+            return INT16LE;
+        }
+    }
+
+    /**
+     * Un mensaje ya decodificado: el JSON (línea, trama JSON o sobre de una trama BINARY)
+     * y, solo en las tramas BINARY, las muestras.
+     */
+    public record Inbound(String json, int[] samples) {
+        public Inbound(String json) {
+            this(json, null);
+        }
+    }
+
+    // ------------------------- CODIFICAR -------------------------
+
+    public static ByteBuffer encodeJson(String json) {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + body.length);
+        buf.putInt(2 + body.length).put(KIND_JSON).put((byte) 0).put(body).flip();
+        return buf;
+    }
+
+    public static ByteBuffer encodeBinary(String envelope, int[] samples, SampleFormat format) {
+        return encodeBinary(envelope, samples, samples.length, format);
+    }
+
+    // Solo las 'count' primeras muestras (trozos de un buffer reutilizado)
+    public static ByteBuffer encodeBinary(String envelope, int[] samples, int count, SampleFormat format) {
+        byte[] env = envelope.getBytes(StandardCharsets.UTF_8);
+        int sampleBytes = count * format.width;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + 4 + env.length + sampleBytes);
+        buf.putInt(2 + 4 + env.length + sampleBytes)
+           .put(KIND_BINARY)
+           .put((byte) (format == SampleFormat.INT32LE ? FLAG_SAMPLES_INT32 : 0))
+           .putInt(env.length)
+           .put(env);
+
+        buf.order(ByteOrder.LITTLE_ENDIAN); // las muestras van en little-endian
+        if (format == SampleFormat.INT32LE) {
+            for (int i = 0; i < count; i++) buf.putInt(samples[i]);
+        } else {
+            for (int i = 0; i < count; i++) buf.putShort((short) samples[i]);
+        }
+        buf.order(ByteOrder.BIG_ENDIAN).flip(); // quien lea la cabecera la espera en big-endian
+        return buf;
+    }
+
+    // Solo la cabecera de una trama RAW: el cuerpo (count bytes) se envía aparte, directamente desde el fichero
+    public static ByteBuffer rawHeader(int count) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES);
+        buf.putInt(2 + count).put(KIND_RAW).put((byte) 0).flip();
+        return buf;
+    }
+
+    /**
+     * Devuelve la trama con el cuerpo comprimido (y FLAG_COMPRESSED). El Deflater es el de la conexión:
+     * hay que llamar en el mismo orden en que se escriben las tramas.
+     */
+    public static ByteBuffer compress(ByteBuffer frame, Deflater deflater) {
+        byte[] data = frame.array();
+        int bodyStart = frame.arrayOffset() + frame.position() + HEADER_BYTES;
+        deflater.setInput(data, bodyStart, frame.remaining() - HEADER_BYTES);
+
+        byte[] out = new byte[HEADER_BYTES + Math.max(64, (frame.remaining() - HEADER_BYTES) / 2)];
+        int n = HEADER_BYTES;
+        while (true) {
+            n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+            if (n < out.length) break; // con hueco libre el flush ha terminado
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(out, 0, n);
+        buf.putInt(0, n - 4)
+           .put(4, data[bodyStart - 2])                               // kind
+           .put(5, (byte) (data[bodyStart - 1] | FLAG_COMPRESSED));   // flags
+        return buf;
+    }
+
+    // ------------------------- DECODIFICAR -------------------------
+
+    /**
+     * Decodifica una trama completa: data[offset..offset+length) es lo que sigue al campo de longitud.
+     */
+    public static Inbound decode(byte[] data, int offset, int length) throws IOException {
+        return decode(data, offset, length, null);
+    }
+
+    /**
+     * Igual, con el Inflater de la conexión para las tramas con FLAG_COMPRESSED (null si no se negoció).
+     */
+    public static Inbound decode(byte[] data, int offset, int length, Inflater inflater) throws IOException {
+        if (length < 2) throw new IOException("Frame too short");
+        byte kind = data[offset];
+        int flags = data[offset + 1];
+        int bodyStart = offset + 2;
+        int bodyLength = length - 2;
+
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            if (inflater == null) throw new IOException("Compressed frame without negotiated compression");
+            data = inflate(inflater, data, bodyStart, bodyLength);
+            bodyStart = 0;
+            bodyLength = data.length;
+        }
+
+        if (kind == KIND_JSON) {
+            return new Inbound(new String(data, bodyStart, bodyLength, StandardCharsets.UTF_8));
+        }
+        if (kind != KIND_BINARY) {
+            throw new IOException("Unknown frame kind " + kind);
+        }
+
+        ByteBuffer body = ByteBuffer.wrap(data, bodyStart, bodyLength);
+        int envLength = body.getInt();
+        if (envLength < 0 || envLength > body.remaining()) throw new IOException("Bad envelope length");
+        String envelope = new String(data, body.position(), envLength, StandardCharsets.UTF_8);
+        body.position(body.position() + envLength);
+
+        SampleFormat format = (flags & FLAG_SAMPLES_INT32) != 0 ? SampleFormat.INT32LE : SampleFormat.INT16LE;
+        if (body.remaining() % format.width != 0) throw new IOException("Truncated samples");
+        int[] samples = new int[body.remaining() / format.width];
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        if (format == SampleFormat.INT32LE) {
+            body.asIntBuffer().get(samples);
+        } else {
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = body.getShort();
+            }
+        }
+        return new Inbound(envelope, samples);
+    }
+
+    // Descomprime el cuerpo de una trama (termina en SYNC_FLUSH: sale entero sin esperar a la siguiente)
+    private static byte[] inflate(Inflater inflater, byte[] data, int offset, int length) throws IOException {
+        inflater.setInput(data, offset, length);
+        byte[] out = new byte[Math.max(256, length * 4)];
+        int n = 0;
+        try {
+            while (true) {
+                n += inflater.inflate(out, n, out.length - n);
+                if (n < out.length && inflater.needsInput()) break;
+                if (inflater.finished() || inflater.needsDictionary()) throw new IOException("Bad compressed stream");
+                if (n == out.length) {
+                    if (out.length >= ServerConfig.MAX_LINE_BYTES) throw new IOException("Inflated frame too large");
+                    out = Arrays.copyOf(out, (int) Math.min((long) out.length * 2, ServerConfig.MAX_LINE_BYTES));
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed frame: " + e.getMessage());
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
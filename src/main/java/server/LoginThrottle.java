@@ -0,0 +1,111 @@
+package server;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Freno de LOGIN fallidos, por cuenta (el email) y por dirección remota (sin el puerto).
+ * Los primeros fallos son gratis (-Dtelemed.login.freeFailures por cuenta, -Dtelemed.login.addressFreeFailures
+ * por dirección); a partir de ahí cada fallo bloquea esa cuenta o dirección -Dtelemed.login.backoffMs, el
+ * doble que el anterior, hasta -Dtelemed.login.maxBackoffMs. Mientras dura, LOGIN se contesta BUSY con
+ * retryAfterMs sin calcular el hash: probar contraseñas en bucle deja de costar CPU al servidor.
+ *
+ * Un login correcto limpia la cuenta; la dirección no (quien prueba muchas cuentas acierta alguna).
+ * Lo que lleva -Dtelemed.login.forgetMs sin fallar se olvida en un barrido que se hace como mucho una vez
+ * por minuto (no en cada fallo). Cada mapa guarda como mucho -Dtelemed.login.maxTracked claves: las
+ * cuentas y direcciones las elige quien ataca, así que, lleno, las que no están no se apuntan hasta
+ * el siguiente barrido (las ya apuntadas siguen frenadas).
+ */
+public class LoginThrottle {
+
+    // Inmutable: ConcurrentHashMap.compute la sustituye entera, sin locks al leer
+    private record Failures(int count, long lastFailure, long blockedUntil) {}
+
+    private static final Map<String, Failures> accounts = new ConcurrentHashMap<>();
+    private static final Map<String, Failures> addresses = new ConcurrentHashMap<>();
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * Milisegundos que quedan para poder intentarlo (0 = adelante). address puede ser null (sin conexión).
+     */
+    static long retryAfterMs(String account, String address) {
+        long now = System.nanoTime();
+        long wait = remaining(accounts, accountKey(account), now);
+        if (address != null) {
+            wait = Math.max(wait, remaining(addresses, address, now));
+        }
+        if (wait <= 0) {
+            return 0;
+        }
+        Metrics.recordLoginThrottled();
+        return TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    static void failed(String account, String address) {
+        long now = System.nanoTime();
+        record(accounts, accountKey(account), ServerConfig.LOGIN_FREE_FAILURES, now);
+        if (address != null) {
+            record(addresses, address, ServerConfig.LOGIN_ADDRESS_FREE_FAILURES, now);
+        }
+    }
+
+    static void succeeded(String account) {
+        accounts.remove(accountKey(account));
+    }
+
+    // "/127.0.0.1:50412" -> "127.0.0.1": todas las conexiones del mismo equipo cuentan juntas
+    static String host(String remoteAddress) {
+        if (remoteAddress == null) return null;
+        int colon = remoteAddress.lastIndexOf(':');
+        String host = colon > 0 ? remoteAddress.substring(0, colon) : remoteAddress;
+        return host.startsWith("/") ? host.substring(1) : host;
+    }
+
+    static String report() {
+        return String.format(Locale.ROOT, "login throttle: accounts=%d addresses=%d max=%d%n",
+                accounts.size(), addresses.size(), ServerConfig.LOGIN_MAX_TRACKED);
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private static String accountKey(String account) {
+        return account.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static long remaining(Map<String, Failures> map, String key, long now) {
+        Failures f = map.get(key);
+        return f != null ? f.blockedUntil - now : 0;
+    }
+
+    private static void record(Map<String, Failures> map, String key, int free, long now) {
+        long forget = TimeUnit.MILLISECONDS.toNanos(ServerConfig.LOGIN_FORGET_MS);
+        sweepIfDue(now, forget);
+        if (map.size() >= ServerConfig.LOGIN_MAX_TRACKED && !map.containsKey(key)) {
+            return; // lleno (ver cabecera)
+        }
+        map.compute(key, (k, f) -> {
+            int count = (f == null || now - f.lastFailure > forget) ? 1 : f.count + 1;
+            int over = count - free;
+            long blockedUntil = now;
+            if (over > 0) {
+                long delayMs = ServerConfig.LOGIN_BACKOFF_MS << Math.min(over - 1, 20);
+                blockedUntil = now + TimeUnit.MILLISECONDS.toNanos(Math.min(delayMs, ServerConfig.LOGIN_MAX_BACKOFF_MS));
+            }
+            return new Failures(count, now, blockedUntil);
+        });
+    }
+
+    // Un solo hilo barre, y solo si ha pasado el intervalo: el resto de fallos no recorre los mapas
+    private static void sweepIfDue(long now, long forget) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        accounts.values().removeIf(f -> now - f.lastFailure > forget && now - f.blockedUntil > 0);
+        addresses.values().removeIf(f -> now - f.lastFailure > forget && now - f.blockedUntil > 0);
+    }
+}
@@ -0,0 +1,120 @@
+package server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Camino rápido para SEND_MEASUREMENT y MEASUREMENT_CHUNK en JSON.
+ * Con gson.fromJson una toma de 10.000 muestras son 10.000 JsonPrimitive (con su String y su número) que
+ * luego se recorren con getAsInt(). Aquí se lee el mensaje con JsonReader y "payload.values" va directo a
+ * un int[]: un solo array por petición, sin objetos por muestra. El resto del mensaje (que es pequeño)
+ * se construye como JsonObject normal, así los handlers no cambian.
+ *
+ * Si algo no encaja (otra acción, valores que no son enteros, JSON raro...) devuelve null y Protocol
+ * usa el camino de siempre, que da los mismos errores que antes.
+ */
+public class MeasurementParser {
+
+    /**
+     * Mensaje ya leído: el sobre (sin "payload.values") y las muestras en values[0..count).
+     */
+    public record Parsed(JsonObject request, String action, int[] values, int count) {}
+
+    private static final int MIN_CAPACITY = 64;
+
+    public static Parsed tryParse(String message) {
+        // Mirar el texto es mucho más barato que parsear: casi todos los mensajes salen aquí
+        if (message.indexOf("\"values\"") < 0
+                || (message.indexOf("SEND_MEASUREMENT") < 0 && message.indexOf("MEASUREMENT_CHUNK") < 0)) {
+            return null;
+        }
+        try (JsonReader in = new JsonReader(new StringReader(message))) {
+            in.setStrictness(Strictness.LENIENT); // igual que gson.fromJson
+            JsonObject request = new JsonObject();
+            int[] values = null;
+            int count = 0;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("action") && in.peek() == JsonToken.STRING) {
+                    String action = in.nextString();
+                    if (!isMeasurement(action)) {
+                        return null; // p. ej. un BATCH que lleva mediciones dentro: no se sigue leyendo
+                    }
+                    request.addProperty(name, action);
+                    continue;
+                }
+                if (!name.equals("payload") || in.peek() != JsonToken.BEGIN_OBJECT) {
+                    request.add(name, JsonParser.parseReader(in));
+                    continue;
+                }
+                JsonObject payload = new JsonObject();
+                in.beginObject();
+                while (in.hasNext()) {
+                    String key = in.nextName();
+                    if (!key.equals("values") || in.peek() != JsonToken.BEGIN_ARRAY) {
+                        payload.add(key, JsonParser.parseReader(in));
+                        continue;
+                    }
+                    // Tamaño inicial contando las comas del array en el texto (no el largo del mensaje, que
+                    // incluye sobre y espacios): casi siempre exacto; si se queda corto, se dobla
+                    values = new int[estimateCount(message)];
+                    count = 0;
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        if (count == values.length) {
+                            values = Arrays.copyOf(values, values.length * 2);
+                        }
+                        values[count++] = in.nextInt(); // 1.5 o null lanzan excepción -> camino normal
+                    }
+                    in.endArray();
+                }
+                in.endObject();
+                request.add(name, payload);
+            }
+            in.endObject();
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                return null;
+            }
+
+            JsonElement action = request.get("action");
+            if (values == null || action == null || !action.isJsonPrimitive()) {
+                return null;
+            }
+            String actionName = action.getAsString();
+            if (!isMeasurement(actionName)) {
+                return null;
+            }
+            return new Parsed(request, actionName, values, count);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Muestras en el primer "values": [...] del texto (comas + 1); un entero no lleva ni ',' ni ']'
+    private static int estimateCount(String message) {
+        int open = message.indexOf('[', message.indexOf("\"values\""));
+        int close = open < 0 ? -1 : message.indexOf(']', open);
+        if (close < 0) {
+            return MIN_CAPACITY;
+        }
+        int commas = 0;
+        for (int i = open + 1; i < close; i++) {
+            if (message.charAt(i) == ',') commas++;
+        }
+        return Math.max(MIN_CAPACITY, commas + 1);
+    }
+
+    private static boolean isMeasurement(String action) {
+        return action.equals("SEND_MEASUREMENT") || action.equals("MEASUREMENT_CHUNK");
+    }
+}
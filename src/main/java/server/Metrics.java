@@ -0,0 +1,291 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import utilities.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Métricas del servidor: por cada acción de Protocol, cada método DAO y cada operación de DataStorage,
+ * cuántas veces se hizo, cuántas fallaron, bytes y un histograma de latencias.
+ * Todo son LongAdder e histogramas sin locks: grabar cuesta unos pocos nanosegundos y no hay contención.
+ *
+ * Se consultan con el comando "stats" de la consola o, si se arranca con -Dtelemed.metrics.port=9464,
+ * en http://127.0.0.1:9464/metrics en formato de texto de Prometheus.
+ */
+public class Metrics {
+
+    // Contadores de una operación
+    public static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        public void record(long nanos, boolean ok) {
+            count.increment();
+            if (!ok) errors.increment();
+            latency.record(nanos);
+        }
+
+        public void addBytes(long n) {
+            if (n > 0) bytes.add(n);
+        }
+    }
+
+    // Familias: nombre en Prometheus, etiqueta y título en la consola
+    private enum Family {
+        ACTION("telemed_action", "action", "Protocol actions"),
+        DAO("telemed_dao", "method", "DAO methods (time holding the DB connection)"),
+        STORAGE("telemed_storage", "op", "DataStorage operations (including lock wait)");
+
+        final String prefix;
+        final String label;
+        final String title;
+        final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+        Family(String prefix, String label, String title) {
+            this.prefix = prefix;
+            this.label = label;
+            this.title = title;
+        }
+
+        Timer timer(String name) {
+            Timer t = timers.get(name); // camino rápido sin lambda: casi siempre ya existe
+            return t != null ? t : timers.computeIfAbsent(name, k -> new Timer());
+        }
+    }
+
+    // Tiempo esperando a poder usar la conexión de escritura (DatabaseManager.acquire) o un lector libre (read)
+    private static final LatencyHistogram dbWait = new LatencyHistogram();
+    private static final LatencyHistogram dbReadWait = new LatencyHistogram();
+    // Hash de contraseñas (PasswordHasher): espera en su cola, tiempo de PBKDF2, rechazos por cola llena
+    private static final LatencyHistogram hashWait = new LatencyHistogram();
+    private static final LatencyHistogram hashTime = new LatencyHistogram();
+    private static final LongAdder hashRejected = new LongAdder();
+    // LOGIN contestados BUSY por LoginThrottle (demasiados fallos)
+    private static final LongAdder loginThrottled = new LongAdder();
+    // Peticiones rechazadas con BUSY antes de llegar a Protocol, por acción
+    private static final Map<String, LongAdder> busy = new ConcurrentHashMap<>();
+    // Aciertos y fallos de las cachés de respuestas (DoctorListCache...), por nombre: {aciertos, fallos}
+    private static final Map<String, LongAdder[]> caches = new ConcurrentHashMap<>();
+
+    private static HttpServer http;
+
+    public static Timer action(String name) {
+        return Family.ACTION.timer(name);
+    }
+
+    public static Timer dao(String name) {
+        return Family.DAO.timer(name);
+    }
+
+    public static Timer storage(String name) {
+        return Family.STORAGE.timer(name);
+    }
+
+    public static void recordDbWait(long nanos) {
+        dbWait.record(nanos);
+    }
+
+    public static void recordDbReadWait(long nanos) {
+        dbReadWait.record(nanos);
+    }
+
+    static void recordHashWait(long nanos) {
+        hashWait.record(nanos);
+    }
+
+    static void recordHash(long nanos) {
+        hashTime.record(nanos);
+    }
+
+    static void recordHashRejected() {
+        hashRejected.increment();
+    }
+
+    static void recordLoginThrottled() {
+        loginThrottled.increment();
+    }
+
+    static void recordBusy(String action) {
+        busy.computeIfAbsent(action, k -> new LongAdder()).increment();
+    }
+
+    static void cacheHit(String cache) {
+        cacheCounters(cache)[0].increment();
+    }
+
+    static void cacheMiss(String cache) {
+        cacheCounters(cache)[1].increment();
+    }
+
+    private static LongAdder[] cacheCounters(String cache) {
+        LongAdder[] c = caches.get(cache);
+        return c != null ? c : caches.computeIfAbsent(cache, k -> new LongAdder[]{new LongAdder(), new LongAdder()});
+    }
+
+    // ------------------------- CONSOLA -------------------------
+
+    // Tablas para el comando "stats" de la consola de administración
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Family f : Family.values()) {
+            sb.append(f.title).append('\n');
+            sb.append(String.format(Locale.ROOT, "  %-36s %9s %7s %10s %9s %9s %9s %9s%n",
+                    f.label.toUpperCase(Locale.ROOT), "COUNT", "ERRORS", "KB", "MEAN_MS", "P50_MS", "P99_MS", "MAX_MS"));
+            for (Map.Entry<String, Timer> e : new TreeMap<>(f.timers).entrySet()) {
+                Timer t = e.getValue();
+                LatencyHistogram h = t.latency;
+                sb.append(String.format(Locale.ROOT, "  %-36s %9d %7d %10.1f %9.3f %9.3f %9.3f %9.3f%n",
+                        e.getKey(), t.count.sum(), t.errors.sum(), t.bytes.sum() / 1024.0,
+                        h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6));
+            }
+        }
+        sb.append(String.format(Locale.ROOT, "DB connection wait: count=%d p50=%.3f ms p99=%.3f ms max=%.3f ms%n",
+                dbWait.count(), dbWait.percentile(50) / 1e6, dbWait.percentile(99) / 1e6, dbWait.max() / 1e6));
+        sb.append(String.format(Locale.ROOT, "DB reader wait: count=%d p50=%.3f ms p99=%.3f ms max=%.3f ms%n",
+                dbReadWait.count(), dbReadWait.percentile(50) / 1e6, dbReadWait.percentile(99) / 1e6, dbReadWait.max() / 1e6));
+        sb.append(String.format(Locale.ROOT, "Password hash: count=%d queue-wait p50=%.3f ms p99=%.3f ms, hash p50=%.3f ms p99=%.3f ms, rejected=%d, login-throttled=%d%n",
+                hashTime.count(), hashWait.percentile(50) / 1e6, hashWait.percentile(99) / 1e6,
+                hashTime.percentile(50) / 1e6, hashTime.percentile(99) / 1e6, hashRejected.sum(), loginThrottled.sum()));
+        busy.forEach((action, n) -> sb.append("BUSY ").append(action).append(": ").append(n.sum()).append('\n'));
+        caches.forEach((cache, c) -> {
+            long hits = c[0].sum();
+            long misses = c[1].sum();
+            sb.append(String.format(Locale.ROOT, "Cache %s: hits=%d misses=%d hit-ratio=%.1f%%%n",
+                    cache, hits, misses, hits + misses == 0 ? 0.0 : 100.0 * hits / (hits + misses)));
+        });
+        return sb.toString();
+    }
+
+    // ------------------------- PROMETHEUS -------------------------
+
+    /**
+     * Formato de texto de Prometheus (versión 0.0.4). Las latencias van como summary con cuantiles
+     * 0.5 / 0.99 / 0.999, en segundos.
+     */
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Family f : Family.values()) {
+            Map<String, Timer> timers = new TreeMap<>(f.timers);
+            header(sb, f.prefix + "_total", "counter", f.title + ": calls");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                sample(sb, f.prefix + "_total", f.label, e.getKey(), null, e.getValue().count.sum());
+            }
+            header(sb, f.prefix + "_errors_total", "counter", f.title + ": failed calls");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                sample(sb, f.prefix + "_errors_total", f.label, e.getKey(), null, e.getValue().errors.sum());
+            }
+            header(sb, f.prefix + "_bytes_total", "counter", f.title + ": bytes");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                sample(sb, f.prefix + "_bytes_total", f.label, e.getKey(), null, e.getValue().bytes.sum());
+            }
+            header(sb, f.prefix + "_seconds", "summary", f.title + ": latency");
+            for (Map.Entry<String, Timer> e : timers.entrySet()) {
+                summary(sb, f.prefix + "_seconds", f.label, e.getKey(), e.getValue().latency);
+            }
+        }
+        header(sb, "telemed_db_wait_seconds", "summary", "Wait for the DB writer connection");
+        summary(sb, "telemed_db_wait_seconds", null, null, dbWait);
+        header(sb, "telemed_db_read_wait_seconds", "summary", "Wait for a free read-only DB connection");
+        summary(sb, "telemed_db_read_wait_seconds", null, null, dbReadWait);
+        header(sb, "telemed_hash_wait_seconds", "summary", "Wait in the password hashing queue");
+        summary(sb, "telemed_hash_wait_seconds", null, null, hashWait);
+        header(sb, "telemed_hash_seconds", "summary", "PBKDF2 password hashing time");
+        summary(sb, "telemed_hash_seconds", null, null, hashTime);
+        header(sb, "telemed_hash_rejected_total", "counter", "Password hashes rejected because the queue was full");
+        sample(sb, "telemed_hash_rejected_total", null, null, null, hashRejected.sum());
+        header(sb, "telemed_login_throttled_total", "counter", "LOGIN attempts refused by the failed-login backoff");
+        sample(sb, "telemed_login_throttled_total", null, null, null, loginThrottled.sum());
+        header(sb, "telemed_busy_total", "counter", "Requests rejected with BUSY before processing");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(busy).entrySet()) {
+            sample(sb, "telemed_busy_total", "action", e.getKey(), null, e.getValue().sum());
+        }
+        header(sb, "telemed_cache_hits_total", "counter", "Response cache hits");
+        for (Map.Entry<String, LongAdder[]> e : new TreeMap<>(caches).entrySet()) {
+            sample(sb, "telemed_cache_hits_total", "cache", e.getKey(), null, e.getValue()[0].sum());
+        }
+        header(sb, "telemed_cache_misses_total", "counter", "Response cache misses (loaded from the DB)");
+        for (Map.Entry<String, LongAdder[]> e : new TreeMap<>(caches).entrySet()) {
+            sample(sb, "telemed_cache_misses_total", "cache", e.getKey(), null, e.getValue()[1].sum());
+        }
+        header(sb, "telemed_connections", "gauge", "Open client connections");
+        sample(sb, "telemed_connections", null, null, null, ClientConnection.openCount());
+        return sb.toString();
+    }
+
+    /**
+     * Arranca el endpoint HTTP /metrics si -Dtelemed.metrics.port > 0 (por defecto solo en 127.0.0.1).
+     */
+    static void startHttp() {
+        if (ServerConfig.METRICS_PORT <= 0) return;
+        try {
+            http = HttpServer.create(new InetSocketAddress(ServerConfig.METRICS_BIND, ServerConfig.METRICS_PORT), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start(); // un solo hilo de fondo basta: lo pide Prometheus cada pocos segundos
+            System.out.println("[Server] Metrics on http://" + ServerConfig.METRICS_BIND + ":" + ServerConfig.METRICS_PORT + "/metrics");
+        } catch (IOException e) {
+            System.err.println("[Server] Could not start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    static void stopHttp() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String label, String value, LatencyHistogram h) {
+        sample(sb, name, label, value, "0.5", h.percentile(50) / 1e9);
+        sample(sb, name, label, value, "0.99", h.percentile(99) / 1e9);
+        sample(sb, name, label, value, "0.999", h.percentile(99.9) / 1e9);
+        sample(sb, name + "_sum", label, value, null, h.sum() / 1e9);
+        sample(sb, name + "_count", label, value, null, h.count());
+    }
+
+    private static void sample(StringBuilder sb, String name, String label, String value, String quantile, double v) {
+        sb.append(name);
+        if (label != null || quantile != null) {
+            sb.append('{');
+            if (label != null) {
+                sb.append(label).append("=\"").append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            if (quantile != null) {
+                if (label != null) sb.append(',');
+                sb.append("quantile=\"").append(quantile).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (v == Math.rint(v) && Math.abs(v) < 1e15) {
+            sb.append((long) v);
+        } else {
+            sb.append(v);
+        }
+        sb.append('\n');
+    }
+}
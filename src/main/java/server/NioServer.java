@@ -0,0 +1,522 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Servidor no bloqueante (modo "nio").
+ * Un hilo acepta conexiones y las reparte entre unos pocos event-loops (un Selector cada uno).
+ * Los event-loops solo leen/escriben bytes y separan las líneas ('\n') o las tramas (tras HELLO) sobre ByteBuffers;
+ * Protocol.process se ejecuta en el pool de workers (RequestDispatcher). El protocolo en el cable es el mismo
+ * que con ClientHandler: una línea JSON de entrada, una línea JSON de respuesta con el mismo requestId
+ * (o tramas de FrameCodec si el cliente las negoció).
+ */
+public class NioServer {
+
+    // Máximo de mensajes pendientes por conexión antes de dejar de leer de su socket
+    private static final int MAX_PENDING_LINES = 64;
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    // Bytes pendientes de enviar a partir de los cuales awaitWritable() hace esperar (respuestas por trozos)
+    private static final long MAX_PENDING_OUT = 1024 * 1024;
+    // una trama de tamaño máximo más su campo de longitud
+    private static final int MAX_BUFFER = ServerConfig.MAX_LINE_BYTES + 4;
+
+    private final int port;
+    private final EventLoop[] loops;
+    private volatile boolean accepting = true; // hilo que acepta
+    private volatile boolean running = true;   // event-loops
+    private ServerSocketChannel serverChannel;
+
+    public NioServer(int port, int eventLoops) throws IOException {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    /**
+     * Acepta conexiones en el hilo que lo llama hasta que se llame a close().
+     */
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+        System.out.println("[Server] Listening on port " + port + " (NIO, " + loops.length + " event loops)");
+
+        int next = 0;
+        try {
+            while (accepting) {
+                SocketChannel channel = serverChannel.accept(); // bloquea hasta que llega un cliente
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                System.out.println("[Server] New client connected");
+
+                // reparto round-robin entre los event-loops
+                loops[next++ % loops.length].register(channel);
+            }
+        } catch (ClosedChannelException e) {
+            // close() cierra el canal para desbloquear accept(): no es un error
+            if (accepting) throw e;
+        }
+    }
+
+    // Deja de aceptar conexiones nuevas; las abiertas siguen funcionando (apagado ordenado)
+    public void stopAccepting() {
+        accepting = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {}
+    }
+
+    // Deja de aceptar y detiene los event-loops (cierra todas las conexiones abiertas, enviando lo pendiente)
+    public void close() {
+        stopAccepting();
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // ------------------------- EVENT LOOP -------------------------
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // tareas que otros hilos piden ejecutar dentro del event-loop (registro, escritura...)
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-loop-" + index);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection conn = new NioConnection(channel, this);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                    System.out.println("[Server] Handling client: " + conn.remote);
+                } catch (IOException e) {
+                    System.err.println("[Server] Could not register client: " + e.getMessage());
+                    try { channel.close(); } catch (IOException ignored) {}
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // p.ej. CancelledKeyException si la conexión se cerró entre medias: el bucle sigue
+                            System.err.println("[Server] Event loop task failed: " + e);
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) conn.onReadable();
+                            if (key.isValid() && key.isWritable()) conn.flush();
+                        } catch (IOException e) {
+                            conn.close();
+                        } catch (RuntimeException e) {
+                            // un fallo en una conexión (p.ej. CancelledKeyException) la cierra solo a ella:
+                            // si saliera del bucle, todas las de este event-loop se quedarían colgadas
+                            System.err.println("[Server] Error on connection " + conn.remote + ", closing it: " + e);
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) System.err.println("[Server] Event loop error: " + e.getMessage());
+                }
+            }
+
+            // al parar, cerramos todas las conexiones de este event-loop (intentando enviar lo pendiente)
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection conn) {
+                    try {
+                        conn.flush();
+                    } catch (IOException ignored) {}
+                    conn.close();
+                }
+            }
+            try { selector.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    // ------------------------- CONEXIÓN -------------------------
+
+    private final class NioConnection extends ClientConnection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final SocketAddress remote;
+        private SelectionKey key;
+
+        // buffer de lectura (modo escritura: position = final de los datos leídos)
+        private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+        private int scanned = 0; // hasta dónde ya se ha buscado '\n'
+
+        private final Queue<FrameCodec.Inbound> inbox = new ConcurrentLinkedQueue<>(); // mensajes pendientes de procesar
+        // respuestas pendientes de enviar: ByteBuffer o FileRegion (DOWNLOAD_MEASUREMENT_RAW)
+        private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong(); // de los ByteBuffer de outbound
+        private final Object drained = new Object();
+        // HELLO recibido y aún sin responder: no se separa nada más hasta saber si lo que sigue son tramas
+        private final AtomicReference<String> helloPending = new AtomicReference<>();
+        private volatile boolean inputClosed = false;
+        private volatile boolean closed = false;
+
+        NioConnection(SocketChannel channel, EventLoop loop) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.remote = channel.getRemoteAddress();
+            opened();
+        }
+
+        @Override
+        protected void abort() {
+            onLoop(() -> {
+                try {
+                    flush();
+                } catch (IOException ignored) {}
+                close();
+            });
+        }
+
+        // Se ejecuta en el event-loop cuando hay bytes para leer
+        void onReadable() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                // fin de stream: la última línea sin '\n' también cuenta (como readLine)
+                inputClosed = true;
+                if (readBuffer.position() > 0 && !isFramed() && helloPending.get() == null) {
+                    inbox.add(new FrameCodec.Inbound(decode(0, readBuffer.position())));
+                    readBuffer.clear();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                schedule();
+                closeIfDone();
+                return;
+            }
+
+            parseBuffered();
+            schedule();
+        }
+
+        // Separa los mensajes completos del buffer y decide si seguir leyendo
+        private void parseBuffered() throws IOException {
+            if (helloPending.get() == null) {
+                if (isFramed()) {
+                    extractFrames();
+                } else {
+                    extractLines();
+                }
+            }
+
+            if (!readBuffer.hasRemaining()) {
+                grow();
+            }
+            if (inbox.size() >= MAX_PENDING_LINES || helloPending.get() != null) {
+                // el cliente manda más rápido de lo que procesamos (o esperamos al HELLO): dejamos de leer
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // Separa las líneas completas del buffer y deja el resto al principio
+        private void extractLines() {
+            int end = readBuffer.position();
+            byte[] data = readBuffer.array();
+            int lineStart = 0;
+            boolean hello = false;
+            for (int i = scanned; i < end; i++) {
+                if (data[i] == '\n') {
+                    int lineEnd = (i > lineStart && data[i - 1] == '\r') ? i - 1 : i;
+                    String line = decode(lineStart, lineEnd);
+                    lineStart = i + 1;
+                    if (isHello(line)) {
+                        // lo que venga detrás puede ir ya en tramas: paramos aquí
+                        helloPending.set(line);
+                        hello = true;
+                        break;
+                    }
+                    inbox.add(new FrameCodec.Inbound(line));
+                }
+            }
+            if (lineStart > 0) {
+                readBuffer.flip();
+                readBuffer.position(lineStart);
+                readBuffer.compact();
+            }
+            scanned = hello ? 0 : readBuffer.position();
+        }
+
+        // Separa las tramas completas (int32 de longitud + contenido) y deja el resto al principio
+        private void extractFrames() throws IOException {
+            int end = readBuffer.position();
+            int start = 0;
+            while (end - start >= 4) {
+                int length = readBuffer.getInt(start);
+                if (length < 2 || length > ServerConfig.MAX_LINE_BYTES) {
+                    System.err.println("[Server] Bad frame length " + length + " from " + remote + ", closing connection");
+                    throw new IOException("bad frame length");
+                }
+                if (end - start - 4 < length) break; // trama incompleta
+                inbox.add(decodeFrame(readBuffer.array(), start + 4, length));
+                start += 4 + length;
+            }
+            if (start > 0) {
+                readBuffer.flip();
+                readBuffer.position(start);
+                readBuffer.compact();
+            }
+        }
+
+        private String decode(int from, int to) {
+            return new String(readBuffer.array(), from, to - from, StandardCharsets.UTF_8);
+        }
+
+        // Línea más larga que el buffer: duplicamos hasta el máximo configurado
+        private void grow() throws IOException {
+            int capacity = readBuffer.capacity();
+            if (capacity >= MAX_BUFFER) {
+                System.err.println("[Server] Line too long from " + remote + ", closing connection");
+                throw new IOException("line too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate((int) Math.min((long) capacity * 2, MAX_BUFFER));
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return String.valueOf(remote);
+        }
+
+        // Lanza a los workers tantos mensajes pendientes como quepan en la ventana de la conexión
+        private void schedule() {
+            while (!closed && !inbox.isEmpty() && tryAcquireSlot()) {
+                FrameCodec.Inbound message = inbox.poll();
+                if (message == null) { // otro hilo se llevó el último
+                    releaseSlot();
+                    return;
+                }
+                RequestDispatcher.submit(this, message);
+            }
+            // HELLO pendiente: se responde cuando ya no queda nada anterior en curso
+            if (!closed && helloPending.get() != null && inbox.isEmpty() && inFlight() == 0) {
+                String hello = helloPending.getAndSet(null);
+                if (hello != null) {
+                    handleHello(hello);
+                    onLoop(this::afterHello);
+                }
+            }
+        }
+
+        // En el event-loop: lo que ya estaba en el buffer detrás del HELLO se separa con el formato nuevo
+        private void afterHello() {
+            if (closed || !key.isValid()) return;
+            try {
+                parseBuffered();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            schedule();
+            resumeReading();
+        }
+
+        // Al terminar una petición (en el worker): seguimos con las pendientes y reactivamos la lectura
+        @Override
+        protected void onRequestDone() {
+            schedule();
+            onLoop(this::resumeReading);
+        }
+
+        // Encola la respuesta (todos sus buffers seguidos) y pide al event-loop que la escriba
+        @Override
+        protected synchronized void write(ByteBuffer... data) {
+            for (ByteBuffer buf : data) {
+                pendingBytes.addAndGet(buf.remaining());
+                outbound.add(buf);
+            }
+            requestFlush();
+        }
+
+        // Respuestas por trozos (en un worker): espera a que la cola de salida baje del límite
+        @Override
+        public void awaitWritable() {
+            synchronized (drained) {
+                while (!closed && pendingBytes.get() > MAX_PENDING_OUT) {
+                    try {
+                        drained.wait(50);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Cabecera + fichero, seguidos en la cola; el event-loop hace transferTo según el socket acepte
+        @Override
+        protected synchronized void writeFile(ByteBuffer header, FileChannel file, long count) {
+            outbound.add(header);
+            outbound.add(new FileRegion(file, count));
+            requestFlush();
+        }
+
+        private void requestFlush() {
+            onLoop(() -> {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        // Escribe todo lo que acepte el socket; si se llena, esperamos a OP_WRITE
+        void flush() throws IOException {
+            if (closed || !key.isValid()) return;
+            Object item;
+            while ((item = outbound.peek()) != null) {
+                boolean done;
+                if (item instanceof FileRegion region) {
+                    done = region.transferTo(channel);
+                } else {
+                    ByteBuffer buf = (ByteBuffer) item;
+                    long pending = pendingBytes.addAndGet(-channel.write(buf));
+                    done = !buf.hasRemaining();
+                    if (done && pending <= MAX_PENDING_OUT) {
+                        synchronized (drained) {
+                            drained.notifyAll();
+                        }
+                    }
+                }
+                if (!done) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            closeIfDone();
+        }
+
+        private void resumeReading() {
+            if (closed || !key.isValid()) return;
+            if (!inputClosed && helloPending.get() == null && inbox.size() < MAX_PENDING_LINES) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            closeIfDone();
+        }
+
+        // Tarea de esta conexión en su event-loop: si falla, se cierra solo esta conexión
+        private void onLoop(Runnable task) {
+            loop.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("[Server] Error on connection " + remote + ", closing it: " + e);
+                    close();
+                }
+            });
+        }
+
+        // Si el cliente cerró su lado y ya no queda nada por procesar ni enviar, cerramos
+        private void closeIfDone() {
+            if (inputClosed && inbox.isEmpty() && helloPending.get() == null && inFlight() == 0 && outbound.isEmpty()) {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            // ficheros que no se llegaron a enviar
+            for (Object item : outbound) {
+                if (item instanceof FileRegion region) region.close();
+            }
+            outbound.clear();
+            closed();
+            System.out.printf("[Server] Connection closed for %s%n", remote);
+        }
+    }
+
+    // Trozo de fichero pendiente de enviar con transferTo (sin copiarlo al heap)
+    private static final class FileRegion {
+        private final FileChannel file;
+        private final long count;
+        private long position = 0;
+
+        FileRegion(FileChannel file, long count) {
+            this.file = file;
+            this.count = count;
+        }
+
+        // true cuando ya se ha enviado entero (y el fichero se ha cerrado)
+        boolean transferTo(SocketChannel channel) throws IOException {
+            while (position < count) {
+                long n = file.transferTo(position, count - position, channel);
+                if (n == 0) {
+                    if (position >= file.size()) throw new IOException("File truncated while sending");
+                    return false; // el socket no acepta más por ahora
+                }
+                position += n;
+            }
+            close();
+            return true;
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
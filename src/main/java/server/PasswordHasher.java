@@ -0,0 +1,90 @@
+package server;
+
+import utilities.Encryption;
+import utilities.TraceEvents;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool propio para el PBKDF2 de LOGIN y REGISTER_*: 65.536 iteraciones son decenas de milisegundos de CPU.
+ * Antes se hacían en el worker de la petición, así que una ráfaga de logins (apertura de la consulta,
+ * o un ataque probando contraseñas) ocupaba todos los núcleos y frenaba las subidas de mediciones.
+ *
+ * Aquí hay un número fijo de hilos (-Dtelemed.hash.threads, la mitad de los núcleos) con una cola acotada
+ * (-Dtelemed.hash.queue): como mucho esos núcleos hacen hash a la vez, y lo que no cabe en la cola se
+ * contesta BUSY enseguida en vez de acumular workers esperando. El resto de acciones siempre tiene CPU.
+ */
+public class PasswordHasher {
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            ServerConfig.HASH_THREADS, ServerConfig.HASH_THREADS, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(ServerConfig.HASH_QUEUE),
+            r -> {
+                Thread t = new Thread(r, "password-hash-" + threadCount.incrementAndGet());
+                t.setDaemon(true); // no retrasan el apagado: lo que quede se pierde con su petición
+                return t;
+            });
+
+    /**
+     * Encryption.encryptPassword() hecho en el pool; el worker espera el resultado.
+     * El evento JFR telemed.PasswordHash se graba aquí, en el hilo de la petición (espera en cola incluida),
+     * para que siga saliendo anidado dentro de su telemed.Request.
+     * @return el hash, o null si la cola está llena (responder BUSY)
+     * @throws InterruptedException si interrumpen al worker mientras espera (apagado): no es cola llena
+     */
+    static String hash(String password) throws InterruptedException {
+        TraceEvents.PasswordHashEvent trace = new TraceEvents.PasswordHashEvent();
+        trace.begin();
+        long submitted = System.nanoTime();
+        long[] queueWait = new long[1]; // lo escribe el hilo del pool antes de terminar; se lee tras get()
+        try {
+            Future<String> result;
+            try {
+                result = pool.submit(() -> {
+                    long start = System.nanoTime();
+                    queueWait[0] = start - submitted;
+                    Metrics.recordHashWait(queueWait[0]);
+                    try {
+                        return Encryption.encryptPassword(password);
+                    } finally {
+                        Metrics.recordHash(System.nanoTime() - start);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Metrics.recordHashRejected();
+                trace.rejected = true;
+                return null;
+            }
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                result.cancel(true);
+                throw e;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException re) throw re;
+                throw new IllegalStateException(e.getCause());
+            }
+        } finally {
+            if (trace.shouldCommit()) {
+                trace.algorithm = Encryption.ALGORITHM;
+                trace.iterations = Encryption.ITERATIONS;
+                trace.queueWait = queueWait[0];
+                trace.commit();
+            }
+        }
+    }
+
+    // En cola y en curso ahora mismo (consola)
+    static String report() {
+        return String.format(java.util.Locale.ROOT, "password hashing: threads=%d active=%d queued=%d/%d%n",
+                ServerConfig.HASH_THREADS, pool.getActiveCount(), pool.getQueue().size(), ServerConfig.HASH_QUEUE);
+    }
+}
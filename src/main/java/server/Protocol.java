@@ -3,10 +3,13 @@ package server;
 import com.google.gson.*;
 import pojos.*;
 import server.database.*;
-import utilities.Encryption;
+import utilities.TraceEvents;
 
+import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Interpreta los mensajes JSON de los clientes (Patient/Doctor).
@@ -17,17 +20,39 @@ public class Protocol {
     // Gson para parsear y construir JSON
     private static final Gson gson = new Gson();
 
+    // Acciones con métricas propias; lo demás cuenta como UNKNOWN (la acción la escribe el cliente)
+    private static final java.util.Set<String> KNOWN_ACTIONS = java.util.Arrays.stream(server.enumerates.Action.values())
+            .map(Enum::name).collect(java.util.stream.Collectors.toUnmodifiableSet());
+
     /**
      * Punto de entrada: recibe una línea de texto (JSON), devuelve otra (JSON).
      */
     public static String process(String message) {
+        return process(message, null);
+    }
+
+    /**
+     * Igual, pero sabiendo por qué conexión llegó (HELLO y las respuestas binarias la necesitan).
+     * conn puede ser null (pruebas): entonces todo se responde como JSON normal.
+     */
+    public static String process(String message, ClientConnection conn) {
         // Recibe un mensaje JSON enviado por el cliente (por socket).
         // Lo convierte a un objeto JSON.
         // Mira qué acción quiere hacer el cliente (login, registrar, enviar señal, pedir doctores…).
         // Llama al métdo adecuado (handleRegisterPatient(), handleLogin(), etc.).
         // Devuelve un JSON con la respuesta que el servidor enviará al cliente.
 
+        // Intervalo JFR de toda la petición (parseo incluido); sus consultas y E/S quedan dentro
+        TraceEvents.RequestEvent trace = new TraceEvents.RequestEvent();
+        trace.begin();
         try {
+            // Mediciones en JSON: las muestras van directas a un int[] (ver MeasurementParser)
+            MeasurementParser.Parsed measurement = MeasurementParser.tryParse(message);
+            if (measurement != null) {
+                return processSamples(measurement.request(), measurement.values(), measurement.count(),
+                        message.length(), trace, conn);
+            }
+
             // Parseamos el texto a objeto JSON (o null si estaba vacío/incorrecto)
             JsonObject req = gson.fromJson(message, JsonObject.class); // Convierte el string recibido por el socket en un JsonObject.
             if (req == null) {
@@ -44,39 +69,16 @@ public class Protocol {
                 return error(requestId, "UNKNOWN", "Missing 'action' field");
             }
 
-            // Enrutamos por acción
-            switch (action) { // router
-                // según la acción envía al métdo correcto
-                case "REGISTER_PATIENT":
-                    return handleRegisterPatient(req, requestId);
-                case "REGISTER_DOCTOR":
-                    return handleRegisterDoctor(req, requestId);
-                case "LOGIN":
-                    return handleLogin(req, requestId);
-                case "SEND_SYMPTOMS":
-                    return handleSendSymptoms(req, requestId);
-                case "SEND_MEASUREMENT":
-                    return handleSendMeasurement(req, requestId);
-                case "LIST_PATIENTS":
-                    return handleListPatients(req, requestId);
-                case "REQUEST_APPOINTMENT":
-                    return handleRequestAppointment(req, requestId);
-                case "LIST_APPOINTMENTS":
-                    return handleListAppointments(req, requestId);
-                case "LIST_MEASUREMENTS":
-                    return handleListMeasurements(req, requestId);
-                case "GET_MEASUREMENT_VALUES":
-                    return handleGetMeasurementValues(req, requestId);
-                case "LIST_SYMPTOMS":
-                    return handleListSymptoms(req, requestId);
-                case "LIST_DOCTORS":
-                    return handleListDoctors(req, requestId);
-                case "SEND_MESSAGE":
-                    return handleSendMessage(req, requestId);
-                case "LIST_MESSAGES":
-                    return handleListMessages(req, requestId);
-                default:
-                    return error(requestId, action, "Unknown action: " + action);
+            // Tiempo, fallos y bytes por acción (comando "stats" y /metrics)
+            long start = System.nanoTime();
+            String response = null;
+            boolean completed = false;
+            try {
+                response = route(req, action, requestId, conn);
+                completed = true;
+                return response;
+            } finally {
+                recordMetrics(trace, action, requestId, start, message.length(), response, completed);
             }
 
         } catch (JsonSyntaxException e) {
@@ -88,8 +90,156 @@ public class Protocol {
         }
     }
 
+    // Enrutamos por acción
+    private static String route(JsonObject req, String action, String requestId, ClientConnection conn) {
+        String identityError = bindIdentity(req, action, conn);
+        if (identityError != null) {
+            return error(requestId, action, identityError);
+        }
+        switch (action) { // router
+            // según la acción envía al métdo correcto
+            case "HELLO":
+                return handleHello(req, requestId, conn);
+            case "REGISTER_PATIENT":
+                return handleRegisterPatient(req, requestId);
+            case "REGISTER_DOCTOR":
+                return handleRegisterDoctor(req, requestId);
+            case "LOGIN":
+                return handleLogin(req, requestId, conn);
+            case "SEND_SYMPTOMS":
+                return handleSendSymptoms(req, requestId);
+            case "SEND_MEASUREMENT":
+                return handleSendMeasurement(req, requestId);
+            case "BEGIN_MEASUREMENT":
+                return handleBeginMeasurement(req, requestId);
+            case "MEASUREMENT_CHUNK":
+                return handleMeasurementChunk(getPayload(req), requestId, null, 0);
+            case "END_MEASUREMENT":
+                return handleEndMeasurement(req, requestId);
+            case "LIST_PATIENTS":
+                return handleListPatients(req, requestId);
+            case "REQUEST_APPOINTMENT":
+                return handleRequestAppointment(req, requestId);
+            case "LIST_APPOINTMENTS":
+                return handleListAppointments(req, requestId);
+            case "LIST_MEASUREMENTS":
+                return handleListMeasurements(req, requestId);
+            case "GET_MEASUREMENT_VALUES":
+                return handleGetMeasurementValues(req, requestId, conn);
+            case "LIST_SYMPTOMS":
+                return handleListSymptoms(req, requestId);
+            case "LIST_DOCTORS":
+                return handleListDoctors(req, requestId);
+            case "SEND_MESSAGE":
+                return handleSendMessage(req, requestId);
+            case "LIST_MESSAGES":
+                return handleListMessages(req, requestId);
+            case "DOWNLOAD_MEASUREMENT_RAW":
+                return handleDownloadMeasurementRaw(req, requestId, conn);
+            case "SUBSCRIBE":
+                return handleSubscribe(req, requestId, conn);
+            case "UNSUBSCRIBE":
+                return handleUnsubscribe(requestId, conn);
+            case "BATCH":
+                return handleBatch(req, requestId, conn);
+            case "RESUME_SESSION":
+                return handleResumeSession(req, requestId, conn);
+            case "LOGOUT":
+                return handleLogout(req, requestId, conn);
+            default:
+                return error(requestId, action, "Unknown action: " + action);
+        }
+    }
+
+    /**
+     * Mensaje recibido en una trama BINARY: sobre JSON + muestras ya decodificadas.
+     * Llevan muestras SEND_MEASUREMENT y MEASUREMENT_CHUNK.
+     */
+    public static String processBinary(String envelope, int[] samples, ClientConnection conn) {
+        TraceEvents.RequestEvent trace = new TraceEvents.RequestEvent();
+        trace.begin();
+        try {
+            JsonObject req = gson.fromJson(envelope, JsonObject.class);
+            if (req == null) {
+                return error(null, "UNKNOWN", "Empty message");
+            }
+            return processSamples(req, samples, samples.length, envelope.length() + 4L * samples.length, trace, conn);
+
+        } catch (JsonSyntaxException e) {
+            return error(null, "UNKNOWN", "Invalid JSON: " + e.getMessage());
+        } catch (Exception e) {
+            return error(null, "UNKNOWN", "Internal error: " + e.getMessage());
+        }
+    }
+
+    // Sobre ya parseado + muestras en samples[0..count) (trama BINARY o JSON leído por MeasurementParser)
+    private static String processSamples(JsonObject req, int[] samples, int count, long bytesIn,
+                                         TraceEvents.RequestEvent trace, ClientConnection conn) {
+        String action = req.has("action") ? req.get("action").getAsString() : null;
+        String requestId = req.has("requestId") ? req.get("requestId").getAsString() : null;
+
+        long start = System.nanoTime();
+        String response = null;
+        boolean completed = false;
+        try {
+            String identityError = action != null ? bindIdentity(req, action, conn) : null;
+            if (identityError != null) {
+                response = error(requestId, action, identityError);
+            } else if ("SEND_MEASUREMENT".equals(action)) {
+                response = storeMeasurement(getPayload(req), requestId, samples, count);
+            } else if ("MEASUREMENT_CHUNK".equals(action)) {
+                response = handleMeasurementChunk(getPayload(req), requestId, samples, count);
+            } else {
+                response = error(requestId, action, "Binary body not supported for action: " + action);
+            }
+            completed = true;
+            return response;
+        } finally {
+            recordMetrics(trace, action, requestId, start, bytesIn, response, completed);
+        }
+    }
+
     // ------------------------- HANDLERS -------------------------
 
+    /**
+     * HELLO -> negociación del transporte. Payload (todo opcional):
+     * { "framing": "LENGTH_PREFIXED", "binarySamples": true, "compression": "DEFLATE" }
+     * La respuesta va todavía como línea; si se acepta framing, lo siguiente (en los dos sentidos)
+     * son tramas de FrameCodec. La compresión (deflate crudo, SYNC_FLUSH por trama) solo existe con tramas.
+     * Los clientes que no mandan HELLO siguen con una línea JSON por mensaje.
+     */
+    private static String handleHello(JsonObject req, String requestId, ClientConnection conn) {
+        JsonObject payload = getPayload(req);
+        boolean wantsFrames = getString(payload, "framing", "LINES").equalsIgnoreCase("LENGTH_PREFIXED");
+        boolean wantsBinary = getBoolean(payload, "binarySamples", false);
+        boolean wantsDeflate = getString(payload, "compression", "NONE").equalsIgnoreCase("DEFLATE");
+
+        // sin conexión (pruebas) no hay transporte que cambiar
+        boolean framed = conn != null && (wantsFrames || conn.isFramed());
+        boolean binary = framed && wantsBinary;
+        boolean deflate = framed && wantsDeflate;
+        if (conn != null) {
+            conn.negotiate(wantsFrames, wantsBinary, wantsDeflate);
+        }
+
+        JsonObject resp = baseResponse("HELLO", requestId, "OK", "Capabilities negotiated");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("framing", framed ? "LENGTH_PREFIXED" : "LINES");
+        respPayload.addProperty("binarySamples", binary);
+        JsonArray formats = new JsonArray();
+        for (FrameCodec.SampleFormat f : FrameCodec.SampleFormat.values()) {
+            formats.add(f.name());
+        }
+        respPayload.add("sampleFormats", formats);
+        respPayload.addProperty("maxFrameBytes", ServerConfig.MAX_LINE_BYTES);
+        respPayload.addProperty("compression", deflate ? "DEFLATE" : "NONE");
+        if (deflate) {
+            respPayload.addProperty("compressionMinBytes", ServerConfig.COMPRESS_MIN_BYTES);
+        }
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
     // REGISTRO de paciente -> inserta en BD y devuelve su id
     private static String handleRegisterPatient(JsonObject req, String requestId) {
         JsonObject payload = getPayload(req); // req = JSON completo enviado por el cliente, payload solo contiene los datos reales
@@ -133,22 +283,26 @@ public class Protocol {
             return error(requestId, "REGISTER_PATIENT", "Doctor not found");
         }
 
-        String passwordHash = Encryption.encryptPassword(password);
         // hashear la contraseña, el servidor nunca guarda la contraseña en texto plano siempre su hash
-
-        // Insertar en BD
-        boolean ok = PatientDAO.registerPatient(name, surname, email, passwordHash, dob, sex, phone, doctor.getId());
-        // en la tabla
-        Integer patientId = ok ? PatientDAO.getIdByEmail(email) : null; // si la inserción fue bien, los ID de los emails coinciden
-        if (!ok || patientId == null) { // si algo falla, da error
-            return error(requestId, "REGISTER_PATIENT", "Register failed (maybe duplicated email)");
+        String passwordHash;
+        try {
+            passwordHash = PasswordHasher.hash(password);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error(requestId, "REGISTER_PATIENT", "Server shutting down");
+        }
+        if (passwordHash == null) {
+            return busy(requestId, "REGISTER_PATIENT", "password hashing queue full", ServerConfig.ADMISSION_RETRY_AFTER_MS);
         }
 
-        //Recuperar el paciente completo de la BD
-        Patient patient = PatientDAO.getPatientById(patientId);
-        if (patient == null) {
-            return error(requestId, "REGISTER_PATIENT", "Patient registered but not found");
+        // Insertar en BD: devuelve el paciente ya con su id, sin volver a buscarlo por email
+        Patient patient = PatientDAO.insert(name, surname, email, passwordHash, dob, sex, phone, doctor);
+        if (patient == null) { // si algo falla, da error
+            return error(requestId, "REGISTER_PATIENT", "Register failed (maybe duplicated email)");
         }
+        int patientId = patient.getId();
+        Versions.bump(Versions.patientsOf(doctor.getId())); // LIST_PATIENTS de su doctor cambia
+        Sessions.patientRegistered(doctor.getId(), patientId); // y ya es suyo para sus sesiones abiertas
 
         // Respuesta OK del servidor al paciente con id para asegurarle que se ha realizado correctamente la acción
         JsonObject resp = baseResponse("REGISTER_PATIENT", requestId, "OK","Patient registered successfully");
@@ -188,26 +342,27 @@ public class Protocol {
             return error(requestId, "REGISTER_DOCTOR", "Missing required fields (name, surname, email, password)");
         }
 
-        String passwordHash = Encryption.encryptPassword(password);
         // hashear la contraseña, el servidor nunca guarda la contraseña en texto plano siempre su hash
-
-        // Llama a DoctorDAO para insertar en la tabla
-        boolean ok = DoctorDAO.register(name, surname, email, passwordHash, phone);
-
-        if (!ok) { // si no se inserta bien da error
-            return error(requestId, "REGISTER_DOCTOR", "Register failed (maybe duplicated email)");
+        String passwordHash;
+        try {
+            passwordHash = PasswordHasher.hash(password);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error(requestId, "REGISTER_DOCTOR", "Server shutting down");
         }
-
-        // Buscamos el ID para guardar su sesión y poder identificar al doctor
-        Integer doctorId = DoctorDAO.getIdByEmail(email);
-        if (doctorId == null) {
-            return error(requestId, "REGISTER_DOCTOR", "Doctor registered but ID not found. Internal error.");
+        if (passwordHash == null) {
+            return busy(requestId, "REGISTER_DOCTOR", "password hashing queue full", ServerConfig.ADMISSION_RETRY_AFTER_MS);
         }
 
-        Doctor doctor = DoctorDAO.getDoctorById(doctorId);
-        if (doctor == null) {
-            return error(requestId, "REGISTER_DOCTOR", "Doctor registered but not found");
+        // Llama a DoctorDAO para insertar en la tabla; devuelve el doctor con el ID generado
+        Doctor doctor = DoctorDAO.insert(name, surname, email, passwordHash, phone);
+
+        if (doctor == null) { // si no se inserta bien da error
+            return error(requestId, "REGISTER_DOCTOR", "Register failed (maybe duplicated email)");
         }
+        DoctorListCache.invalidate(); // LIST_DOCTORS tiene que incluirlo ya
+        Versions.bump(Versions.DOCTORS);
+        int doctorId = doctor.getId();
 
         // Construcción de la respuesta OK COMO ANTERIOR MÉTDO
         JsonObject resp = baseResponse("REGISTER_DOCTOR", requestId, "OK","Doctor registered successfully");
@@ -229,7 +384,7 @@ public class Protocol {
     /**
      * LOGIN -> valida credenciales del usuario y diferencia el rol (Patient o Doctor)
      */
-    private static String handleLogin(JsonObject req, String requestId) {
+    private static String handleLogin(JsonObject req, String requestId, ClientConnection conn) {
         JsonObject payload = getPayload(req);
         String username = getString(payload, "username", ""); // email
         String password = getString(payload, "password", "");
@@ -238,25 +393,40 @@ public class Protocol {
             return error(requestId, "LOGIN", "Missing username or password");
         }
 
-        String passwordHash = Encryption.encryptPassword(password);
-
-        // --- 1. INTENTO DE VALIDACIÓN COMO PACIENTE ---
-        if (PatientDAO.validateLogin(username, passwordHash)) {
+        // Demasiados fallos de esta cuenta o de esta dirección: ni se calcula el hash (ver LoginThrottle)
+        String address = conn != null ? LoginThrottle.host(conn.remoteAddress()) : null;
+        long retryAfterMs = LoginThrottle.retryAfterMs(username, address);
+        if (retryAfterMs > 0) {
+            return busy(requestId, "LOGIN", "too many failed logins", retryAfterMs);
+        }
 
-            Integer pid = PatientDAO.getIdByEmail(username);
-            Patient patient = (pid != null) ? PatientDAO.getPatientById(pid) : null;
+        String passwordHash;
+        try {
+            passwordHash = PasswordHasher.hash(password);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // apagado: no es cola llena, no tiene sentido reintentar aquí
+            return error(requestId, "LOGIN", "Server shutting down");
+        }
+        if (passwordHash == null) {
+            return busy(requestId, "LOGIN", "password hashing queue full", ServerConfig.ADMISSION_RETRY_AFTER_MS);
+        }
 
-            if (patient == null) {
-                return error(requestId, "LOGIN", "Patient not found after login");
-            }
+        // --- 1. INTENTO DE VALIDACIÓN COMO PACIENTE ---
+        // Una sola consulta: valida y trae el paciente con su doctor (JOIN)
+        Patient patient = PatientDAO.login(username, passwordHash);
+        if (patient != null) {
 
             // Login exitoso como PACIENTE
+            LoginThrottle.succeeded(username);
+            Sessions.Session session = Sessions.create("PATIENT", patient.getId());
+            if (conn != null) conn.authenticated(session); // para SUBSCRIBE y para omitir ids (bindIdentity)
             JsonObject resp = baseResponse("LOGIN", requestId, "OK", "Login successful (Patient)");
             JsonObject respPayload = new JsonObject();
 
             respPayload.addProperty("userId", patient.getId());
             respPayload.addProperty("role", "PATIENT"); // <-- ROL
-            respPayload.addProperty("token", "session-" + username);
+            respPayload.addProperty("token", session.token()); // para RESUME_SESSION al reconectar
+            respPayload.addProperty("expiresInMs", Sessions.expiresInMs(session));
 
             // Datos básicos del paciente y del doctor asignado
             respPayload.addProperty("name", patient.getName());
@@ -267,11 +437,13 @@ public class Protocol {
             if (patient.getSex() != null) {
                 respPayload.addProperty("sex", patient.getSex().toString());
             }
-            respPayload.addProperty("doctor_id", patient.getDoctor().getId());//AÑADIDO
-            respPayload.addProperty("doctorName", patient.getDoctor().getName());
-            respPayload.addProperty("doctorSurname", patient.getDoctor().getSurname());
-            respPayload.addProperty("doctorEmail", patient.getDoctor().getEmail());
-            respPayload.addProperty("doctorPhone", patient.getDoctor().getPhonenumber());
+            if (patient.getDoctor() != null) { // doctor borrado: doctor_id queda a NULL
+                respPayload.addProperty("doctor_id", patient.getDoctor().getId());//AÑADIDO
+                respPayload.addProperty("doctorName", patient.getDoctor().getName());
+                respPayload.addProperty("doctorSurname", patient.getDoctor().getSurname());
+                respPayload.addProperty("doctorEmail", patient.getDoctor().getEmail());
+                respPayload.addProperty("doctorPhone", patient.getDoctor().getPhonenumber());
+            }
 
 
 
@@ -280,23 +452,21 @@ public class Protocol {
         }
 
         // --- 2. INTENTO DE VALIDACIÓN COMO DOCTOR ---
-        if (DoctorDAO.validateLogin(username, passwordHash)) {
-
-            Integer did = DoctorDAO.getIdByEmail(username);
-            Doctor doctor = (did != null) ? DoctorDAO.getDoctorById(did) : null;
-
-            if (doctor == null) {
-                return error(requestId, "LOGIN", "Doctor not found after login");
-            }
+        Doctor doctor = DoctorDAO.login(username, passwordHash);
+        if (doctor != null) {
 
             // Login exitoso como DOCTOR
+            LoginThrottle.succeeded(username);
+            Sessions.Session session = Sessions.create("DOCTOR", doctor.getId());
+            if (conn != null) conn.authenticated(session); // para SUBSCRIBE y para omitir ids (bindIdentity)
             JsonObject resp = baseResponse("LOGIN", requestId, "OK", "Login successful (Doctor)");
             JsonObject respPayload = new JsonObject();
 
 
             respPayload.addProperty("userId", doctor.getId());
             respPayload.addProperty("role", "DOCTOR"); // <-- ROL
-            respPayload.addProperty("token", "session-" + username);
+            respPayload.addProperty("token", session.token()); // para RESUME_SESSION al reconectar
+            respPayload.addProperty("expiresInMs", Sessions.expiresInMs(session));
 
             // Datos básicos del doctor
             respPayload.addProperty("name", doctor.getName());
@@ -311,9 +481,49 @@ public class Protocol {
         }
 
         //  3. FALLO TOTAL
+        LoginThrottle.failed(username, address);
         return error(requestId, "LOGIN", "Invalid username or password");
     }
 
+    /**
+     * RESUME_SESSION -> { "token": "..." } (el que devolvió LOGIN). Al reconectar, ata la conexión a la sesión
+     * sin contraseña ni consultas a la BD. Responde lo mismo que identifica a LOGIN: userId, role y token.
+     */
+    private static String handleResumeSession(JsonObject req, String requestId, ClientConnection conn) {
+        Sessions.Session session = Sessions.resume(getString(getPayload(req), "token", null));
+        if (session == null) {
+            return error(requestId, "RESUME_SESSION", "Invalid or expired session");
+        }
+        if (conn != null) conn.authenticated(session);
+
+        JsonObject resp = baseResponse("RESUME_SESSION", requestId, "OK", "Session resumed");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("userId", session.userId());
+        respPayload.addProperty("role", session.role());
+        respPayload.addProperty("token", session.token());
+        respPayload.addProperty("expiresInMs", Sessions.expiresInMs(session));
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    /**
+     * LOGOUT -> borra la sesión (la de la conexión, o la del "token" del payload) y deja anónimas la conexión
+     * y cualquier otra que estuviera atada al mismo token (p.ej. la de antes de un RESUME_SESSION).
+     */
+    private static String handleLogout(JsonObject req, String requestId, ClientConnection conn) {
+        String token = getString(getPayload(req), "token", conn != null ? conn.sessionToken() : null);
+        Sessions.revoke(token);
+        if (token != null) {
+            ClientConnection.sessionRevoked(token);
+        }
+        if (conn != null && token != null && token.equals(conn.sessionToken())) {
+            conn.loggedOut(); // por si no está registrada (sin transporte)
+        }
+        JsonObject resp = baseResponse("LOGOUT", requestId, "OK", "Logged out");
+        resp.add("payload", new JsonObject());
+        return gson.toJson(resp);
+    }
+
 
     // SÍNTOMAS -> inserta en tabla symptoms
     private static String handleSendSymptoms(JsonObject req, String requestId) {
@@ -346,28 +556,30 @@ public class Protocol {
     // MEDICIÓN -> guarda CSV + metadatos en BD
     private static String handleSendMeasurement(JsonObject req, String requestId) {
         JsonObject payload = getPayload(req);
-        int patientId       = getInt(payload, "patientId", -1);
-        String typeStr      = getString(payload, "type", "");
-        String dateStr      = getString(payload, "date", ""); // ISO-8601 de inicio
         JsonArray valuesArr = payload.has("values") && payload.get("values").isJsonArray()
                 ? payload.getAsJsonArray("values") : new JsonArray();
 
-        if (patientId <= 0 || typeStr.isBlank() || dateStr.isBlank() || valuesArr.size() == 0) {
-            return error(requestId, "SEND_MEASUREMENT", "Missing patientId/type/date/values");
+        int[] values = new int[valuesArr.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = valuesArr.get(i).getAsInt();
         }
+        return storeMeasurement(payload, requestId, values, values.length);
+    }
 
-        // Convertimos valores a filas CSV (timestamp sintético: índice; valor; '-')
-        JsonArray rows = new JsonArray();
-        for (int i = 0; i < valuesArr.size(); i++) {
-            //String line = i + "," + valuesArr.get(i).getAsInt() + ",-"; // "0,523,-"
-            String line = i + "," + valuesArr.get(i).getAsInt(); // "0,523"
+    // Parte común de SEND_MEASUREMENT: las muestras values[0..count) llegan del array JSON o de una trama BINARY
+    private static String storeMeasurement(JsonObject payload, String requestId, int[] values, int count) {
+        int patientId       = getInt(payload, "patientId", -1);
+        String typeStr      = getString(payload, "type", "");
+        String dateStr      = getString(payload, "date", ""); // ISO-8601 de inicio
 
-            rows.add(line);
+        if (patientId <= 0 || typeStr.isBlank() || dateStr.isBlank() || count == 0) {
+            return error(requestId, "SEND_MEASUREMENT", "Missing patientId/type/date/values");
         }
 
         // Guardamos CSV en carpeta por id: data/patient_<id>/signals_yyyy-MM-dd.csv
+        // Filas "indice,valor" (timestamp sintético: índice), escritas directamente desde el int[]
         String folder = "patient_" + patientId;
-        String filePath = DataStorage.appendRowsToCsv(folder, rows);
+        String filePath = DataStorage.writeValuesCsv(folder, values, count);
         if (filePath == null) {
             return error(requestId, "SEND_MEASUREMENT", "CSV write failed");
         }
@@ -377,6 +589,7 @@ public class Protocol {
         if (!ok) {
             return error(requestId, "SEND_MEASUREMENT", "DB insert failed (measurement meta)");
         }
+        Versions.bump(Versions.measurementsOf(patientId));
 
         JsonObject resp = baseResponse("SEND_MEASUREMENT", requestId, "OK","Measurement stored");
         JsonObject respPayload = new JsonObject();
@@ -385,8 +598,133 @@ public class Protocol {
         return gson.toJson(resp);
     }
 
+    /**
+     * BEGIN_MEASUREMENT -> abre una subida por trozos (ver UploadSessions).
+     * Nueva:    { "patientId": 22, "type": "ECG", "date": "2025-01-01T10:00:00" }
+     * Reanudar: { "uploadId": "..." }
+     * Respuesta: { "uploadId", "offset", "resumed" }; el siguiente MEASUREMENT_CHUNK empieza en "offset".
+     */
+    private static String handleBeginMeasurement(JsonObject req, String requestId) {
+        JsonObject payload = getPayload(req);
+        String uploadId = getString(payload, "uploadId", "");
+        UploadSessions.Session session;
+        boolean resumed = !uploadId.isBlank();
+
+        if (resumed) {
+            session = UploadSessions.find(uploadId);
+            if (session == null) {
+                return error(requestId, "BEGIN_MEASUREMENT", "Unknown or expired uploadId");
+            }
+        } else {
+            int patientId  = getInt(payload, "patientId", -1);
+            String typeStr = getString(payload, "type", "");
+            String dateStr = getString(payload, "date", "");
+            if (patientId <= 0 || typeStr.isBlank() || dateStr.isBlank()) {
+                return error(requestId, "BEGIN_MEASUREMENT", "Missing patientId/type/date");
+            }
+            session = UploadSessions.begin(patientId, typeStr, dateStr);
+            if (session == null) {
+                return error(requestId, "BEGIN_MEASUREMENT", "Cannot open upload (too many open uploads or CSV create failed)");
+            }
+        }
+
+        JsonObject resp = baseResponse("BEGIN_MEASUREMENT", requestId, "OK", resumed ? "Upload resumed" : "Upload started");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("uploadId", session.id);
+        respPayload.addProperty("offset", session.samples);
+        respPayload.addProperty("resumed", resumed);
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    /**
+     * MEASUREMENT_CHUNK -> { "uploadId": "...", "offset": 8192, "values": [...] }
+     * (o trama BINARY con el mismo sobre y las muestras detrás). Se guarda en el acto.
+     * La respuesta confirma "offset": muestras guardadas en total. Con status ERROR también lleva "offset",
+     * para que el cliente sepa desde dónde reenviar.
+     */
+    private static String handleMeasurementChunk(JsonObject payload, String requestId, int[] samples, int count) {
+        UploadSessions.Session session = UploadSessions.find(getString(payload, "uploadId", ""));
+        if (session == null) {
+            return error(requestId, "MEASUREMENT_CHUNK", "Unknown or expired uploadId");
+        }
+        if (!payload.has("offset")) {
+            return error(requestId, "MEASUREMENT_CHUNK", "Missing offset");
+        }
+        long offset = payload.get("offset").getAsLong();
+
+        int[] values = samples;
+        if (values == null) {
+            JsonArray valuesArr = payload.has("values") && payload.get("values").isJsonArray()
+                    ? payload.getAsJsonArray("values") : new JsonArray();
+            values = new int[valuesArr.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = valuesArr.get(i).getAsInt();
+            }
+            count = values.length;
+        }
+        if (offset < 0 || count == 0) {
+            return error(requestId, "MEASUREMENT_CHUNK", "Missing offset/values");
+        }
+
+        UploadSessions.ChunkResult result = UploadSessions.append(session, offset, values, count);
+        JsonObject resp = baseResponse("MEASUREMENT_CHUNK", requestId,
+                result.error() == null ? "OK" : "ERROR", result.error() == null ? "Chunk stored" : result.error());
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("uploadId", session.id);
+        respPayload.addProperty("offset", result.offset());
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    /**
+     * END_MEASUREMENT -> { "uploadId": "...", "totalSamples": 120000 } (totalSamples opcional, para comprobar).
+     * Solo aquí se insertan los metadatos: hasta entonces la toma no existe para LIST_MEASUREMENTS.
+     */
+    private static String handleEndMeasurement(JsonObject req, String requestId) {
+        JsonObject payload = getPayload(req);
+        UploadSessions.Session session = UploadSessions.find(getString(payload, "uploadId", ""));
+        if (session == null) {
+            return error(requestId, "END_MEASUREMENT", "Unknown or expired uploadId");
+        }
+
+        session.lock.lock();
+        try {
+            if (session.finished) {
+                return error(requestId, "END_MEASUREMENT", "Upload already finished");
+            }
+            long expected = payload.has("totalSamples") ? payload.get("totalSamples").getAsLong() : session.samples;
+            if (expected != session.samples || session.samples == 0) {
+                JsonObject resp = baseResponse("END_MEASUREMENT", requestId, "ERROR",
+                        "Upload incomplete: " + session.samples + " samples stored");
+                JsonObject respPayload = new JsonObject();
+                respPayload.addProperty("uploadId", session.id);
+                respPayload.addProperty("offset", session.samples);
+                resp.add("payload", respPayload);
+                return gson.toJson(resp);
+            }
+
+            boolean ok = MeasurementDAO.insertMeta(session.patientId, session.type, session.date, session.filePath);
+            if (!ok) {
+                // la sesión sigue abierta: el cliente puede repetir END_MEASUREMENT
+                return error(requestId, "END_MEASUREMENT", "DB insert failed (measurement meta)");
+            }
+            UploadSessions.complete(session);
+            Versions.bump(Versions.measurementsOf(session.patientId));
+
+            JsonObject resp = baseResponse("END_MEASUREMENT", requestId, "OK", "Measurement stored");
+            JsonObject respPayload = new JsonObject();
+            respPayload.addProperty("measurementId", -1); // placeholder, como en SEND_MEASUREMENT
+            respPayload.addProperty("totalSamples", session.samples);
+            resp.add("payload", respPayload);
+            return gson.toJson(resp);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
     // GET_MEASUREMENT_VALUES -> devuelve los valores (array de enteros) de una medición concreta
-    private static String handleGetMeasurementValues(JsonObject req, String requestId) {
+    private static String handleGetMeasurementValues(JsonObject req, String requestId, ClientConnection conn) {
         JsonObject payload = getPayload(req);
         int measurementId = getInt(payload, "measurementId", -1);
 
@@ -400,6 +738,11 @@ public class Protocol {
             return error(requestId, "GET_MEASUREMENT_VALUES", "Measurement not found.");
         }
 
+        // Modo stream: trozos de chunkSamples valores con el mismo requestId y un mensaje final
+        if (getBoolean(payload, "stream", false)) {
+            return streamMeasurementValues(meta, payload, requestId, conn);
+        }
+
         // 2) Leer el CSV asociado
         String csvJson = DataStorage.loadCsvAsJson(meta.getFilePath());
         if (csvJson == null) {
@@ -411,20 +754,23 @@ public class Protocol {
         JsonArray rows = csvObj.getAsJsonArray("rows");
 
         // 3) Convertir las filas a un array de valores (enteros)
-        JsonArray values = new JsonArray();
+        int[] values = new int[rows.size()];
+        int count = 0;
         for (JsonElement rowEl : rows) {
             String row = rowEl.getAsString();      // "0,523,-"
             String[] parts = row.split(",");
             //if (parts.length >= 2) {
             if (parts.length >= 1) { // ahora solo hay dos columnas: timestamp, valor
                 try {
-                    int val = Integer.parseInt(parts[1].trim()); // la columna del valor
-                    values.add(val);
-                } catch (NumberFormatException ignored) {
-                    // si hay una fila rara, la saltamos
+                    values[count++] = Integer.parseInt(parts[1].trim()); // la columna del valor
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+                    count--; // si hay una fila rara, la saltamos
                 }
             }
         }
+        if (count < values.length) {
+            values = java.util.Arrays.copyOf(values, count);
+        }
 
         // 4) Construir la respuesta
         JsonObject resp = baseResponse("GET_MEASUREMENT_VALUES", requestId, "OK", "Values loaded");
@@ -432,13 +778,142 @@ public class Protocol {
         respPayload.addProperty("measurementId", meta.getId());
         respPayload.addProperty("type", meta.getType());
         respPayload.addProperty("date", meta.getStartedAt());
-        respPayload.add("values", values);
+
+        // Si la conexión negoció muestras binarias: trama BINARY (sobre JSON + enteros empaquetados)
+        if (conn != null && conn.acceptsBinarySamples()) {
+            FrameCodec.SampleFormat format = FrameCodec.SampleFormat.fitting(values);
+            respPayload.addProperty("sampleFormat", format.name());
+            respPayload.addProperty("sampleCount", values.length);
+            resp.add("payload", respPayload);
+            conn.sendBinary(gson.toJson(resp), values, format);
+            return null; // ya enviada
+        }
+
+        JsonArray valuesJson = new JsonArray();
+        for (int v : values) {
+            valuesJson.add(v);
+        }
+        respPayload.add("values", valuesJson);
         resp.add("payload", respPayload);
 
         return gson.toJson(resp);
     }
 
 
+    /**
+     * GET_MEASUREMENT_VALUES con "stream": true (y opcional "chunkSamples": 4096).
+     * Se envían varios mensajes con el mismo requestId:
+     *  - trozos: payload { "chunk": n, "offset": primeraMuestra, "values": [...], "done": false }
+     *    (con binarySamples negociado, trama BINARY con sampleFormat/sampleCount en el sobre)
+     *  - final:  payload { "measurementId", "type", "date", "totalSamples", "chunks", "done": true }
+     * El fichero se lee trozo a trozo: la memoria por petición no depende de la longitud de la grabación.
+     */
+    private static String streamMeasurementValues(MeasurementDAO.MeasurementMeta meta, JsonObject payload,
+                                                  String requestId, ClientConnection conn) {
+        if (conn == null) {
+            return error(requestId, "GET_MEASUREMENT_VALUES", "Streaming needs a live connection");
+        }
+        int chunkSamples = Math.max(64, Math.min(65_536, getInt(payload, "chunkSamples", ServerConfig.STREAM_CHUNK_SAMPLES)));
+        String quotedId = gson.toJson(requestId); // "null" si no vino
+
+        int[] buf = new int[chunkSamples];
+        long total = 0;
+        int chunks = 0;
+        try (DataStorage.ValueReader reader = DataStorage.openValueReader(meta.getFilePath())) {
+            if (reader == null) {
+                return error(requestId, "GET_MEASUREMENT_VALUES", "CSV file not found or empty.");
+            }
+            int n;
+            while ((n = reader.read(buf)) > 0) {
+                // cabecera escrita a mano: un JsonArray por trozo sería la misma basura que queremos evitar
+                StringBuilder sb = new StringBuilder(64 + n * 6);
+                sb.append("{\"type\":\"RESPONSE\",\"action\":\"GET_MEASUREMENT_VALUES\",\"requestId\":").append(quotedId)
+                  .append(",\"status\":\"OK\",\"message\":\"Chunk\",\"payload\":{\"chunk\":").append(chunks)
+                  .append(",\"offset\":").append(total).append(",\"done\":false");
+                if (conn.acceptsBinarySamples()) {
+                    FrameCodec.SampleFormat format = FrameCodec.SampleFormat.fitting(buf, n);
+                    sb.append(",\"sampleFormat\":\"").append(format.name()).append("\",\"sampleCount\":").append(n).append("}}");
+                    conn.sendBinary(sb.toString(), buf, n, format);
+                } else {
+                    sb.append(",\"values\":[");
+                    for (int i = 0; i < n; i++) {
+                        if (i > 0) sb.append(',');
+                        sb.append(buf[i]);
+                    }
+                    sb.append("]}}");
+                    conn.send(sb.toString());
+                }
+                total += n;
+                chunks++;
+                conn.awaitWritable(); // no preparar más trozos de los que el cliente va leyendo
+            }
+        } catch (java.io.IOException e) {
+            return error(requestId, "GET_MEASUREMENT_VALUES", "CSV read failed after " + total + " samples: " + e.getMessage());
+        }
+
+        JsonObject resp = baseResponse("GET_MEASUREMENT_VALUES", requestId, "OK", "Values streamed");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("measurementId", meta.getId());
+        respPayload.addProperty("type", meta.getType());
+        respPayload.addProperty("date", meta.getStartedAt());
+        respPayload.addProperty("totalSamples", total);
+        respPayload.addProperty("chunks", chunks);
+        respPayload.addProperty("done", true);
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    /**
+     * DOWNLOAD_MEASUREMENT_RAW -> el CSV de una medición tal cual, sin convertirlo a JSON.
+     * Payload: { "measurementId": 12 }
+     * Respuesta: cabecera JSON con payload.byteLength y payload.format, seguida de exactamente
+     * byteLength bytes del fichero (en modo líneas justo después del salto de línea; con tramas, en una
+     * trama RAW). Los bytes salen del page cache al socket con FileChannel.transferTo.
+     */
+    private static String handleDownloadMeasurementRaw(JsonObject req, String requestId, ClientConnection conn) {
+        if (conn == null) {
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "Raw download needs a live connection");
+        }
+        int measurementId = getInt(getPayload(req), "measurementId", -1);
+        if (measurementId <= 0) {
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "Missing or invalid measurementId.");
+        }
+
+        MeasurementDAO.MeasurementMeta meta = MeasurementDAO.getById(measurementId);
+        if (meta == null) {
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "Measurement not found.");
+        }
+
+        java.nio.channels.FileChannel file = DataStorage.openForTransfer(meta.getFilePath());
+        if (file == null) {
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "CSV file not found.");
+        }
+        long size;
+        try {
+            size = file.size();
+        } catch (java.io.IOException e) {
+            try { file.close(); } catch (java.io.IOException ignored) {}
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "CSV file not readable.");
+        }
+        if (size > ServerConfig.MAX_LINE_BYTES) {
+            try { file.close(); } catch (java.io.IOException ignored) {}
+            return error(requestId, "DOWNLOAD_MEASUREMENT_RAW", "File too large for one download.");
+        }
+
+        JsonObject resp = baseResponse("DOWNLOAD_MEASUREMENT_RAW", requestId, "OK", "Raw file follows");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("measurementId", meta.getId());
+        respPayload.addProperty("type", meta.getType());
+        respPayload.addProperty("date", meta.getStartedAt());
+        respPayload.addProperty("format", "CSV");
+        respPayload.addProperty("contentType", "text/csv; charset=UTF-8");
+        respPayload.addProperty("byteLength", size);
+        resp.add("payload", respPayload);
+
+        conn.sendFile(gson.toJson(resp), file, size); // la conexión cierra el fichero al terminar
+        return null; // ya enviada
+    }
+
     //LIST_PATIENTS -> Lista los pacientes asociados a un doctor que ha iniciado sesión.
     /*private static String handleListPatients(JsonObject req, String requestId) {
         JsonObject payload = getPayload(req);
@@ -486,6 +961,12 @@ public class Protocol {
             return error(requestId, "LIST_PATIENTS", "Missing or invalid userId (doctorId) in request.");
         }
 
+        String version = requestVersion(Versions.current(Versions.patientsOf(doctorId)), payload); // antes de consultar (ver Versions)
+        String notModified = notModified(payload, "LIST_PATIENTS", requestId, version);
+        if (notModified != null) {
+            return notModified;
+        }
+
         List<Patient> patients = DoctorDAO.getPatientsByDoctorId(doctorId); // coges objetos paciente del doctor (objetos)
 
         JsonArray arrayPatients = new JsonArray(); // crea un array para ir metiendo JSON
@@ -510,6 +991,7 @@ public class Protocol {
         // el array SIEMPRE va dentro de payload
         JsonObject respPayload = new JsonObject(); // se crea el objeto para mandar al cliente
         respPayload.add("patients", arrayPatients); // añade los pacientes al payload que se va a mandar
+        respPayload.addProperty("version", version);
 
         resp.add("payload", respPayload);
 
@@ -526,11 +1008,15 @@ public class Protocol {
             return error(requestId, "LIST_SYMPTOMS", "Missing or invalid patientId.");
         }
 
-        List<Symptoms> symptoms = SymptomDAO.getSymptomsByPatientId(patientId);
+        Paging paging = paging(payload);
+        if (paging.error() != null) {
+            return error(requestId, "LIST_SYMPTOMS", paging.error());
+        }
+        Page<Symptoms> page = SymptomDAO.getSymptomsByPatientId(patientId, paging.limit(), paging.after());
 
         JsonArray symptomsArray = new JsonArray();
 
-        for (Symptoms s : symptoms) {
+        for (Symptoms s : page.items()) {
             JsonObject jo = new JsonObject();
             jo.addProperty("symptomsId", s.getId());
             jo.addProperty("description", s.getDescription());
@@ -541,6 +1027,7 @@ public class Protocol {
         JsonObject resp = baseResponse("LIST_SYMPTOMS", requestId, "OK", "Symptoms retrieved");
         JsonObject respPayload = new JsonObject();
         respPayload.add("symptoms", symptomsArray);
+        respPayload.addProperty("nextCursor", page.nextCursor()); // no sale si es la última página
         resp.add("payload", respPayload);
 
         return gson.toJson(resp);
@@ -552,35 +1039,22 @@ public class Protocol {
      * LIST_DOCTORS -> Devuelve una lista de todos los doctores registrados.
      */
     private static String handleListDoctors(JsonObject req, String requestId) {
-        // No necesitamos datos de entrada, solo llamamos al DAO
-
-        // 1. Obtiene la lista de objetos Doctor del DAO.
-        List<Doctor> doctors = DoctorDAO.getAllDoctors();
-
-        /*
-        // 2. Convierte la lista de objetos Java (Doctor) en un array JSON.
-        JsonElement doctorsJson = gson.toJsonTree(doctors);
-         */
-
-        JsonArray arr = new JsonArray();
-        for (Doctor d : doctors) {
-            JsonObject jo = new JsonObject();
-            jo.addProperty("doctorId", d.getId());
-            jo.addProperty("name", d.getName());
-            jo.addProperty("surname", d.getSurname());
-            jo.addProperty("email", d.getEmail());
-            arr.add(jo);
+        // Solo "ifVersion" como dato de entrada. La lista sale ya serializada de DoctorListCache (solo cambia con
+        // REGISTER_DOCTOR), así que la respuesta se monta pegando texto: mismo JSON que baseResponse + payload.
+        String version = Versions.current(Versions.DOCTORS);
+        String notModified = notModified(getPayload(req), "LIST_DOCTORS", requestId, version);
+        if (notModified != null) {
+            return notModified;
         }
-
-        // 3. Construcción de la respuesta OK
-        JsonObject resp = baseResponse("LIST_DOCTORS", requestId, "OK", "Doctors retrieved successfully");
-        JsonObject respPayload = new JsonObject();
-
-        // Añadimos el array de doctores al payload de la respuesta
-        respPayload.add("doctors",arr);
-        resp.add("payload", respPayload);
-
-        return gson.toJson(resp);
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"type\":\"RESPONSE\",\"action\":\"LIST_DOCTORS\",");
+        if (requestId != null) {
+            sb.append("\"requestId\":").append(gson.toJson(requestId)).append(',');
+        }
+        sb.append("\"status\":\"OK\",\"message\":\"Doctors retrieved successfully\",\"payload\":{\"doctors\":")
+          .append(DoctorListCache.doctorsJson())
+          .append(",\"version\":\"").append(version).append("\"}}");
+        return sb.toString();
     }
 
     // LIST_MEASUREMENTS -> Lista las mediciones asociadas a un paciente.
@@ -592,13 +1066,24 @@ public class Protocol {
             return error(requestId, "LIST_MEASUREMENTS", "Missing or invalid patientId.");
         }
 
+        String version = requestVersion(Versions.current(Versions.measurementsOf(patientId)), payload);
+        String notModified = notModified(payload, "LIST_MEASUREMENTS", requestId, version);
+        if (notModified != null) {
+            return notModified;
+        }
+
+        Paging paging = paging(payload);
+        if (paging.error() != null) {
+            return error(requestId, "LIST_MEASUREMENTS", paging.error());
+        }
+
         // Llama al DAO para obtener la lista de metadatos de medición
-        java.util.List<server.database.MeasurementDAO.MeasurementMeta> measurements =
-                server.database.MeasurementDAO.listByPatientId(patientId);
+        Page<server.database.MeasurementDAO.MeasurementMeta> page =
+                server.database.MeasurementDAO.listByPatientId(patientId, paging.limit(), paging.after());
 
         // Convertimos a JSON sencillo
         JsonArray arr = new JsonArray();
-        for (server.database.MeasurementDAO.MeasurementMeta m : measurements) {
+        for (server.database.MeasurementDAO.MeasurementMeta m : page.items()) {
             JsonObject jo = new JsonObject();
             jo.addProperty("id", m.getId());
             jo.addProperty("type", m.getType());
@@ -610,6 +1095,8 @@ public class Protocol {
         JsonObject resp = baseResponse("LIST_MEASUREMENTS", requestId, "OK", "Measurements retrieved");
         JsonObject respPayload = new JsonObject();
         respPayload.add("measurements", arr);
+        respPayload.addProperty("nextCursor", page.nextCursor());
+        respPayload.addProperty("version", version);
         resp.add("payload", respPayload);
 
         return gson.toJson(resp);
@@ -651,6 +1138,18 @@ public class Protocol {
         if (appId == null) {
             return error(requestId, "REQUEST_APPOINTMENT", "DB insert failed (appointment)");
         }
+        Versions.bump(Versions.appointmentsOf("DOCTOR", doctorId));
+        Versions.bump(Versions.appointmentsOf("PATIENT", patientId));
+
+        // Aviso al médico si tiene alguna conexión suscrita
+        if (EventBus.hasSubscribers("DOCTOR", doctorId)) {
+            JsonObject ev = new JsonObject();
+            ev.addProperty("appointmentId", appId);
+            ev.addProperty("doctorId", doctorId);
+            ev.addProperty("patientId", patientId);
+            ev.addProperty("datetime", datetime);
+            EventBus.publish("DOCTOR", doctorId, EventBus.Topic.APPOINTMENT, event("NEW_APPOINTMENT", ev));
+        }
 
         JsonObject resp = baseResponse("REQUEST_APPOINTMENT", requestId, "OK", "Appointment created");
         JsonObject respPayload = new JsonObject();
@@ -666,6 +1165,8 @@ public class Protocol {
      * - { "doctorId": 1 }
      * - { "patientId": 5 }
      * Si vienen ambos, priorizamos doctorId.
+     * Con "sinceAppointmentId" solo devuelve las citas creadas después de esa (ver sinceLimit()).
+     * Con "ifVersion" igual a la "version" actual contesta NOT_MODIFIED (ver notModified()).
      */
     private static String handleListAppointments(JsonObject req, String requestId) {
         JsonObject payload = getPayload(req);
@@ -673,20 +1174,79 @@ public class Protocol {
         int doctorId  = getInt(payload, "doctorId",  -1);
         int patientId = getInt(payload, "patientId", -1);
 
-        java.util.List<AppointmentDAO.AppointmentMeta> appointments;
+        if (doctorId <= 0 && patientId <= 0) {
+            return error(requestId, "LIST_APPOINTMENTS",
+                    "You must provide doctorId or patientId in payload");
+        }
+        String version = requestVersion(Versions.current(doctorId > 0
+                ? Versions.appointmentsOf("DOCTOR", doctorId) : Versions.appointmentsOf("PATIENT", patientId)), payload);
+        String notModified = notModified(payload, "LIST_APPOINTMENTS", requestId, version);
+        if (notModified != null) {
+            return notModified;
+        }
+
+        if (payload.has("sinceAppointmentId")) {
+            return handleListAppointmentsSince(payload, requestId, doctorId, patientId, version);
+        }
+
+        Paging paging = paging(payload);
+        if (paging.error() != null) {
+            return error(requestId, "LIST_APPOINTMENTS", paging.error());
+        }
+
+        Page<AppointmentDAO.AppointmentMeta> page;
         String scope;
 
         if (doctorId > 0) {
-            appointments = AppointmentDAO.listByDoctor(doctorId);
+            page = AppointmentDAO.listByDoctor(doctorId, paging.limit(), paging.after());
             scope = "DOCTOR";
-        } else if (patientId > 0) {
-            appointments = AppointmentDAO.listByPatient(patientId);
+        } else {
+            page = AppointmentDAO.listByPatient(patientId, paging.limit(), paging.after());
             scope = "PATIENT";
+        }
+
+        JsonArray arr = new JsonArray();
+        for (AppointmentDAO.AppointmentMeta a : page.items()) {
+            JsonObject jo = new JsonObject();
+            jo.addProperty("id", a.getId());
+            jo.addProperty("doctorId", a.getDoctorId());
+            jo.addProperty("patientId", a.getPatientId());
+            jo.addProperty("datetime", a.getDatetime());
+            jo.addProperty("message", a.getMessage());
+            arr.add(jo);
+        }
+
+        JsonObject resp = baseResponse("LIST_APPOINTMENTS", requestId, "OK",
+                "Appointments retrieved for " + scope);
+        JsonObject respPayload = new JsonObject();
+        respPayload.add("appointments", arr);
+        respPayload.addProperty("nextCursor", page.nextCursor());
+        respPayload.addProperty("version", version);
+        resp.add("payload", respPayload);
+
+        return gson.toJson(resp);
+    }
+
+    // LIST_APPOINTMENTS con sinceAppointmentId: solo lo nuevo, por id ascendente
+    private static String handleListAppointmentsSince(JsonObject payload, String requestId, int doctorId, int patientId,
+                                                      String version) {
+        int sinceId = getInt(payload, "sinceAppointmentId", -1);
+        int limit = sinceLimit(payload, sinceId);
+        if (limit < 0) {
+            return error(requestId, "LIST_APPOINTMENTS", "sinceAppointmentId must be >= 0, without cursor, and limit positive");
+        }
+
+        List<AppointmentDAO.AppointmentMeta> appointments;
+        String scope;
+        if (doctorId > 0) {
+            appointments = AppointmentDAO.listByDoctorSince(doctorId, sinceId, limit);
+            scope = "DOCTOR";
         } else {
-            return error(requestId, "LIST_APPOINTMENTS",
-                    "You must provide doctorId or patientId in payload");
+            appointments = AppointmentDAO.listByPatientSince(patientId, sinceId, limit);
+            scope = "PATIENT";
         }
 
+        int lastId = sinceId;
         JsonArray arr = new JsonArray();
         for (AppointmentDAO.AppointmentMeta a : appointments) {
             JsonObject jo = new JsonObject();
@@ -696,12 +1256,15 @@ public class Protocol {
             jo.addProperty("datetime", a.getDatetime());
             jo.addProperty("message", a.getMessage());
             arr.add(jo);
+            lastId = a.getId();
         }
 
         JsonObject resp = baseResponse("LIST_APPOINTMENTS", requestId, "OK",
                 "Appointments retrieved for " + scope);
         JsonObject respPayload = new JsonObject();
         respPayload.add("appointments", arr);
+        respPayload.addProperty("lastAppointmentId", lastId);
+        respPayload.addProperty("version", version);
         resp.add("payload", respPayload);
 
         return gson.toJson(resp);
@@ -745,6 +1308,21 @@ public class Protocol {
             return error(requestId, "SEND_MESSAGE", "DB insert failed (message)");
         }
 
+        // Aviso al otro lado de la conversación (si tiene alguna conexión suscrita)
+        String recipientRole = senderRole.equals("PATIENT") ? "DOCTOR" : "PATIENT";
+        int recipientId = senderRole.equals("PATIENT") ? doctorId : patientId;
+        if (EventBus.hasSubscribers(recipientRole, recipientId)) {
+            JsonObject ev = new JsonObject();
+            ev.addProperty("messageId", msgId);
+            ev.addProperty("doctorId", doctorId);
+            ev.addProperty("patientId", patientId);
+            ev.addProperty("senderRole", senderRole);
+            ev.addProperty("timestamp", timestamp);
+            // evento pequeño: el texto completo se pide con LIST_MESSAGES si hace falta
+            ev.addProperty("preview", text.length() <= 200 ? text : text.substring(0, 200));
+            EventBus.publish(recipientRole, recipientId, EventBus.Topic.MESSAGE, event("NEW_MESSAGE", ev));
+        }
+
         JsonObject resp = baseResponse("SEND_MESSAGE", requestId, "OK", "Message stored");
         JsonObject respPayload = new JsonObject();
         respPayload.addProperty("messageId", msgId);
@@ -754,12 +1332,209 @@ public class Protocol {
         return gson.toJson(resp);
     }
 
+    /**
+     * SUBSCRIBE -> la conexión recibe eventos EVENT del usuario que hizo LOGIN por ella.
+     * Payload (opcional): { "topics": ["MESSAGE", "APPOINTMENT"] }  (por defecto, todos)
+     * Eventos: NEW_MESSAGE, NEW_APPOINTMENT y EVENTS_DROPPED (se perdieron eventos: volver a pedir la lista).
+     */
+    private static String handleSubscribe(JsonObject req, String requestId, ClientConnection conn) {
+        if (conn == null) {
+            return error(requestId, "SUBSCRIBE", "Subscriptions need a live connection");
+        }
+        if (conn.userRole() == null) {
+            return error(requestId, "SUBSCRIBE", "LOGIN required before SUBSCRIBE");
+        }
+
+        JsonObject payload = getPayload(req);
+        java.util.Set<EventBus.Topic> topics = java.util.EnumSet.noneOf(EventBus.Topic.class);
+        if (payload.has("topics") && payload.get("topics").isJsonArray()) {
+            for (JsonElement el : payload.getAsJsonArray("topics")) {
+                EventBus.Topic topic = EventBus.Topic.parse(el.getAsString());
+                if (topic == null) {
+                    return error(requestId, "SUBSCRIBE", "Unknown topic: " + el.getAsString());
+                }
+                topics.add(topic);
+            }
+        } else {
+            topics = java.util.EnumSet.allOf(EventBus.Topic.class);
+        }
+
+        EventBus.subscribe(conn, conn.userRole(), conn.userId(), topics);
+
+        JsonObject resp = baseResponse("SUBSCRIBE", requestId, "OK", "Subscribed");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("role", conn.userRole());
+        respPayload.addProperty("userId", conn.userId());
+        JsonArray arr = new JsonArray();
+        for (EventBus.Topic t : topics) arr.add(t.name());
+        respPayload.add("topics", arr);
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    private static String handleUnsubscribe(String requestId, ClientConnection conn) {
+        if (conn != null) {
+            EventBus.unsubscribe(conn);
+        }
+        JsonObject resp = baseResponse("UNSUBSCRIBE", requestId, "OK", "Unsubscribed");
+        resp.add("payload", new JsonObject());
+        return gson.toJson(resp);
+    }
+
+    // Acciones que pueden ir dentro de un BATCH: solo tocan BD/CSV y no dependen de la conexión
+    private static final java.util.Set<String> BATCH_ACTIONS = java.util.Set.of(
+            "SEND_SYMPTOMS", "SEND_MESSAGE", "SEND_MEASUREMENT", "REQUEST_APPOINTMENT",
+            "LIST_SYMPTOMS", "LIST_MESSAGES", "LIST_APPOINTMENTS", "LIST_MEASUREMENTS");
+
+    /**
+     * BATCH -> varias peticiones normales en un solo viaje y una sola transacción de BD
+     * (una app que estuvo sin red y reenvía lo que tenía pendiente).
+     * Payload:
+     * {
+     *   "mode": "ALL_OR_NOTHING" | "BEST_EFFORT",
+     *   "requests": [ {"action":"SEND_SYMPTOMS","requestId":"s1","payload":{...}}, ... ]
+     * }
+     * Respuesta: { "mode", "committed", "succeeded", "failed", "results": [respuesta de cada una, en orden] }
+     *
+     * ALL_OR_NOTHING (por defecto): al primer fallo se deshace todo; las anteriores salen como ROLLED_BACK
+     * y las siguientes como SKIPPED. BEST_EFFORT: cada petición va en su savepoint; si falla se deshace
+     * solo ella. Los eventos (NEW_MESSAGE...) se retienen hasta el commit. Los CSV de SEND_MEASUREMENT no
+     * son transaccionales: si se deshace la toma, el fichero se queda sin metadatos y no sale en ninguna lista.
+     */
+    private static String handleBatch(JsonObject req, String requestId, ClientConnection conn) {
+        JsonObject payload = getPayload(req);
+        String mode = getString(payload, "mode", "ALL_OR_NOTHING").toUpperCase(Locale.ROOT);
+        boolean bestEffort = mode.equals("BEST_EFFORT");
+        if (!bestEffort && !mode.equals("ALL_OR_NOTHING")) {
+            return error(requestId, "BATCH", "Unknown mode: " + mode);
+        }
+        JsonArray items = payload.has("requests") && payload.get("requests").isJsonArray()
+                ? payload.getAsJsonArray("requests") : new JsonArray();
+        if (items.isEmpty()) {
+            return error(requestId, "BATCH", "Missing requests");
+        }
+        if (items.size() > ServerConfig.BATCH_MAX_ITEMS) {
+            return error(requestId, "BATCH", "Too many requests in batch: " + items.size()
+                    + " (max " + ServerConfig.BATCH_MAX_ITEMS + ")");
+        }
+        // Se revisa todo antes de empezar: un elemento mal formado rechaza el lote sin tocar la BD
+        for (int i = 0; i < items.size(); i++) {
+            if (!items.get(i).isJsonObject()) {
+                return error(requestId, "BATCH", "Request " + i + " is not a JSON object");
+            }
+            String action = getString(items.get(i).getAsJsonObject(), "action", "");
+            if (!BATCH_ACTIONS.contains(action)) {
+                return error(requestId, "BATCH", "Action not allowed in BATCH (request " + i + "): " + action);
+            }
+        }
+        // Cada petición gasta las fichas de su clase (AdmissionControl), como si llegara suelta
+        if (conn != null) {
+            AdmissionControl.Decision charged = AdmissionControl.chargeBatch(conn, items);
+            if (charged != null) {
+                return busy(requestId, "BATCH", charged.reason(), charged.retryAfterMs());
+            }
+        }
+
+        JsonArray results = new JsonArray();
+        int succeeded = 0;
+        int failed = 0;
+        boolean committed = false;
+        EventBus.holdEvents();
+        Versions.deferBumps();
+        try (DatabaseManager.Transaction tx = DatabaseManager.begin("Protocol.batch")) {
+            int failedAt = -1;
+            for (int i = 0; i < items.size(); i++) {
+                JsonObject item = items.get(i).getAsJsonObject();
+                Savepoint savepoint = bestEffort ? tx.savepoint() : null;
+                int eventMark = EventBus.heldCount();
+                JsonObject result = JsonParser.parseString(routeBatchItem(item, conn)).getAsJsonObject();
+                results.add(result);
+                String status = getString(result, "status", "");
+                if (status.equals("OK") || status.equals("NOT_MODIFIED")) {
+                    succeeded++;
+                    continue;
+                }
+                failed++;
+                EventBus.discardHeldFrom(eventMark);
+                if (bestEffort) {
+                    tx.rollbackTo(savepoint);
+                } else {
+                    failedAt = i;
+                    break;
+                }
+            }
+
+            if (failedAt < 0) {
+                tx.commit();
+                committed = true;
+            } else {
+                tx.rollback();
+                String reason = "request " + failedAt + " failed";
+                for (int i = 0; i < failedAt; i++) {
+                    JsonObject done = results.get(i).getAsJsonObject();
+                    results.set(i, batchStatus(done, "ROLLED_BACK", "Rolled back: " + reason));
+                }
+                for (int i = failedAt + 1; i < items.size(); i++) {
+                    results.add(batchStatus(items.get(i).getAsJsonObject(), "SKIPPED", "Not executed: " + reason));
+                }
+                succeeded = 0;
+            }
+        } catch (SQLException e) {
+            return error(requestId, "BATCH", "DB transaction error: " + e.getMessage());
+        } finally {
+            EventBus.releaseHeld(committed);
+            Versions.releaseBumps(); // ya cerrada la transacción (commit o rollback)
+        }
+
+        JsonObject resp = baseResponse("BATCH", requestId, committed ? "OK" : "ERROR",
+                committed ? succeeded + " of " + items.size() + " requests stored" : "Batch rolled back");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("mode", mode);
+        respPayload.addProperty("committed", committed);
+        respPayload.addProperty("succeeded", succeeded);
+        respPayload.addProperty("failed", failed);
+        respPayload.add("results", results);
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    // Una petición de un BATCH, con sus propias métricas (y evento JFR, dentro del del BATCH)
+    private static String routeBatchItem(JsonObject item, ClientConnection conn) {
+        String action = getString(item, "action", null);
+        String requestId = getString(item, "requestId", null);
+        TraceEvents.RequestEvent trace = new TraceEvents.RequestEvent();
+        trace.begin();
+        long start = System.nanoTime();
+        String response = null;
+        boolean completed = false;
+        try {
+            response = route(item, action, requestId, conn);
+            completed = true;
+        } catch (RuntimeException e) {
+            response = error(requestId, action, "Internal error: " + e.getMessage());
+        } finally {
+            recordMetrics(trace, action, requestId, start, 0, completed ? response : null, completed);
+        }
+        return response;
+    }
+
+    // Respuesta corta de un elemento del BATCH que no llegó a guardarse
+    private static JsonObject batchStatus(JsonObject source, String status, String msg) {
+        JsonObject resp = baseResponse(getString(source, "action", "UNKNOWN"),
+                getString(source, "requestId", null), status, msg);
+        resp.add("payload", new JsonObject());
+        return resp;
+    }
+
     /**
      * LIST_MESSAGES
      * Payload esperado:
      * {
      *   "doctorId": 1,
-     *   "patientId": 5
+     *   "patientId": 5,
+     *   "limit": 50,          (opcional, ver paging())
+     *   "cursor": "...",      (opcional: el nextCursor de la página anterior)
+     *   "sinceMessageId": 120 (opcional: solo los mensajes posteriores, ver sinceLimit())
      * }
      */
     private static String handleListMessages(JsonObject req, String requestId) {
@@ -773,12 +1548,21 @@ public class Protocol {
                     "You must provide doctorId and patientId in payload");
         }
 
-        List<MessageDAO.MessageMeta> msgs =
-                MessageDAO.listConversation(doctorId, patientId);
+        if (payload.has("sinceMessageId")) {
+            return handleListMessagesSince(payload, requestId, doctorId, patientId);
+        }
+
+        Paging paging = paging(payload);
+        if (paging.error() != null) {
+            return error(requestId, "LIST_MESSAGES", paging.error());
+        }
+
+        Page<MessageDAO.MessageMeta> page =
+                MessageDAO.listConversation(doctorId, patientId, paging.limit(), paging.after());
 
         JsonArray arr = new JsonArray();
 
-        for (MessageDAO.MessageMeta m : msgs) {
+        for (MessageDAO.MessageMeta m : page.items()) {
             JsonObject jo = new JsonObject();
 
             jo.addProperty("messageId", m.getId());
@@ -796,6 +1580,41 @@ public class Protocol {
                 "Conversation messages retrieved");
         JsonObject respPayload = new JsonObject();
         respPayload.add("messages", arr);
+        respPayload.addProperty("nextCursor", page.nextCursor());
+        resp.add("payload", respPayload);
+
+        return gson.toJson(resp);
+    }
+
+    // LIST_MESSAGES con sinceMessageId: el refresco del chat, solo los mensajes que el cliente no tiene
+    private static String handleListMessagesSince(JsonObject payload, String requestId, int doctorId, int patientId) {
+        int sinceId = getInt(payload, "sinceMessageId", -1);
+        int limit = sinceLimit(payload, sinceId);
+        if (limit < 0) {
+            return error(requestId, "LIST_MESSAGES", "sinceMessageId must be >= 0, without cursor, and limit positive");
+        }
+
+        List<MessageDAO.MessageMeta> msgs = MessageDAO.listConversationSince(doctorId, patientId, sinceId, limit);
+
+        int lastId = sinceId;
+        JsonArray arr = new JsonArray();
+        for (MessageDAO.MessageMeta m : msgs) {
+            JsonObject jo = new JsonObject();
+            jo.addProperty("messageId", m.getId());
+            jo.addProperty("doctorId", m.getDoctorId());
+            jo.addProperty("patientId", m.getPatientId());
+            jo.addProperty("senderRole", m.getSenderRole());
+            jo.addProperty("timestamp", m.getTimestamp());
+            jo.addProperty("text", m.getText());
+            arr.add(jo);
+            lastId = m.getId();
+        }
+
+        JsonObject resp = baseResponse("LIST_MESSAGES", requestId, "OK",
+                "Conversation messages retrieved");
+        JsonObject respPayload = new JsonObject();
+        respPayload.add("messages", arr);
+        respPayload.addProperty("lastMessageId", lastId);
         resp.add("payload", respPayload);
 
         return gson.toJson(resp);
@@ -804,6 +1623,142 @@ public class Protocol {
 
     // ------------------------- HELPERS JSON -------------------------
 
+    /**
+     * Paginación de LIST_MESSAGES / LIST_MEASUREMENTS / LIST_APPOINTMENTS / LIST_SYMPTOMS:
+     * "limit" (como mucho -Dtelemed.list.maxLimit) y "cursor" (el "nextCursor" de la respuesta anterior).
+     * Sin ninguno de los dos se devuelve todo, como siempre; con cursor y sin limit, páginas de
+     * -Dtelemed.list.defaultLimit. La respuesta lleva "nextCursor" mientras queden más.
+     */
+    private record Paging(int limit, Page.Cursor after, String error) {}
+
+    private static Paging paging(JsonObject payload) {
+        String cursor = getString(payload, "cursor", null);
+        if (!payload.has("limit") && cursor == null) {
+            return new Paging(0, null, null);
+        }
+        int limit = getInt(payload, "limit", ServerConfig.LIST_DEFAULT_LIMIT);
+        if (limit <= 0) {
+            return new Paging(0, null, "limit must be positive");
+        }
+        Page.Cursor after = Page.decode(cursor);
+        if (cursor != null && after == null) {
+            return new Paging(0, null, "Invalid cursor");
+        }
+        return new Paging(Math.min(limit, ServerConfig.LIST_MAX_LIMIT), after, null);
+    }
+
+    // Acciones en las que patientId (si es un paciente) o doctorId (si es un médico) es el propio usuario
+    private static final java.util.Set<String> OWN_ID_ACTIONS = java.util.Set.of(
+            "SEND_SYMPTOMS", "SEND_MEASUREMENT", "BEGIN_MEASUREMENT", "LIST_SYMPTOMS", "LIST_MEASUREMENTS",
+            "LIST_PATIENTS", "REQUEST_APPOINTMENT", "LIST_APPOINTMENTS", "SEND_MESSAGE", "LIST_MESSAGES");
+
+    // Acciones de un solo rol: con sesión del otro rol se rechazan
+    private static final java.util.Set<String> DOCTOR_ONLY_ACTIONS = java.util.Set.of("LIST_PATIENTS");
+    private static final java.util.Set<String> PATIENT_ONLY_ACTIONS = java.util.Set.of(
+            "SEND_SYMPTOMS", "SEND_MEASUREMENT", "BEGIN_MEASUREMENT");
+
+    /**
+     * Con sesión en la conexión (LOGIN o RESUME_SESSION), el id del propio usuario sale de ella: si la petición
+     * no lo trae se añade al payload (y en SEND_MESSAGE también senderRole); si trae otro, se rechaza.
+     * Además: las acciones del otro rol se rechazan, un doctor solo puede nombrar a sus propios pacientes
+     * (patientId) y un paciente no puede pedir LIST_APPOINTMENTS por doctorId (serían las citas de otros).
+     * Sin sesión (clientes antiguos, pruebas) todo sigue como antes. Devuelve el error o null.
+     */
+    private static String bindIdentity(JsonObject req, String action, ClientConnection conn) {
+        if (conn == null || conn.userRole() == null || !OWN_ID_ACTIONS.contains(action)) {
+            return null;
+        }
+        JsonObject payload;
+        if (req.has("payload") && req.get("payload").isJsonObject()) {
+            payload = req.getAsJsonObject("payload");
+        } else {
+            payload = new JsonObject();
+            req.add("payload", payload);
+        }
+        String role = conn.userRole();
+        boolean patient = role.equals("PATIENT");
+        if ((patient ? DOCTOR_ONLY_ACTIONS : PATIENT_ONLY_ACTIONS).contains(action)) {
+            return action + " is not allowed for a " + role.toLowerCase(java.util.Locale.ROOT);
+        }
+        String key = patient ? "patientId" : "doctorId";
+        if (!payload.has(key)) {
+            payload.addProperty(key, conn.userId());
+        } else if (getInt(payload, key, -1) != conn.userId()) {
+            return key + " does not match the logged-in user";
+        }
+        if (!patient && payload.has("patientId") && !conn.isOwnPatient(getInt(payload, "patientId", -1))) {
+            return "patientId is not a patient of the logged-in doctor";
+        }
+        if (patient && action.equals("LIST_APPOINTMENTS") && payload.has("doctorId")) {
+            return "doctorId is not allowed for a patient";
+        }
+        if (action.equals("SEND_MESSAGE")) {
+            String senderRole = getString(payload, "senderRole", null);
+            if (senderRole == null) {
+                payload.addProperty("senderRole", role);
+            } else if (!senderRole.equals(role)) {
+                return "senderRole does not match the logged-in user";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Versión del ámbito más lo que elige la página (cursor, limit, since): "<versión>|<cursor>|<limit>|<since>".
+     * Sin ninguno de ellos es la versión tal cual.
+     */
+    private static String requestVersion(String version, JsonObject payload) {
+        String cursor = getString(payload, "cursor", null);
+        String limit = getString(payload, "limit", null);
+        String since = getString(payload, "sinceAppointmentId", getString(payload, "sinceMessageId", null));
+        if (cursor == null && limit == null && since == null) {
+            return version;
+        }
+        return version + "|" + cursor + "|" + limit + "|" + since;
+    }
+
+    /**
+     * LIST_PATIENTS / LIST_DOCTORS / LIST_APPOINTMENTS / LIST_MEASUREMENTS devuelven "version"; si el cliente
+     * la manda de vuelta como "ifVersion" y el ámbito no ha cambiado desde entonces, recibe solo
+     * { "status": "NOT_MODIFIED", "payload": { "version" } } y la consulta ni se hace. La versión lleva la
+     * página pedida (ver requestVersion): la de la página 1 no vale para pedir la 2 ni otro since.
+     * Devuelve null si hay que responder normal.
+     */
+    private static String notModified(JsonObject payload, String action, String requestId, String version) {
+        String ifVersion = getString(payload, "ifVersion", null);
+        if (ifVersion == null) {
+            return null;
+        }
+        if (!ifVersion.equals(version)) {
+            Metrics.cacheMiss("ifVersion " + action);
+            return null;
+        }
+        Metrics.cacheHit("ifVersion " + action);
+        JsonObject resp = baseResponse(action, requestId, "NOT_MODIFIED", "Not modified");
+        JsonObject respPayload = new JsonObject();
+        respPayload.addProperty("version", version);
+        resp.add("payload", respPayload);
+        return gson.toJson(resp);
+    }
+
+    /**
+     * Sincronización incremental (sinceMessageId / sinceAppointmentId): el cliente manda el último id que
+     * tiene (0 la primera vez) y recibe solo los posteriores, con "lastMessageId"/"lastAppointmentId" para la
+     * siguiente llamada. Con "limit" (como mucho -Dtelemed.list.maxLimit) puede traerlos a trozos: si llegan
+     * limit filas, hay que volver a pedir. No se combina con "cursor".
+     * Devuelve el limit (0 = todos) o -1 si la petición no es válida.
+     */
+    private static int sinceLimit(JsonObject payload, int sinceId) {
+        if (sinceId < 0 || payload.has("cursor")) {
+            return -1;
+        }
+        if (!payload.has("limit")) {
+            return 0;
+        }
+        int limit = getInt(payload, "limit", 0);
+        return limit > 0 ? Math.min(limit, ServerConfig.LIST_MAX_LIMIT) : -1;
+    }
+
     // payload seguro ({} si no existe)
     private static JsonObject getPayload(JsonObject req) {
         return req.has("payload") && req.get("payload").isJsonObject()
@@ -823,12 +1778,40 @@ public class Protocol {
     }
 
     // error uniforme
-    private static String error(String requestId, String action, String msg) {
+    static String error(String requestId, String action, String msg) {
         JsonObject resp = baseResponse(action != null ? action : "UNKNOWN", requestId, "ERROR", msg);
         resp.add("payload", new JsonObject());
         return gson.toJson(resp);
     }
 
+    // Mensaje EVENT (sin requestId: no responde a ninguna petición)
+    private static String event(String action, JsonObject payload) {
+        JsonObject ev = new JsonObject();
+        ev.addProperty("type", "EVENT");
+        ev.addProperty("action", action);
+        ev.add("payload", payload);
+        return gson.toJson(ev);
+    }
+
+    // Aviso de que se descartaron eventos (cola llena): el cliente debe volver a pedir LIST_*
+    static String eventsDropped(int count) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("dropped", count);
+        return event("EVENTS_DROPPED", payload);
+    }
+
+    /**
+     * BUSY uniforme: la petición no se ha procesado (control de admisión); el cliente puede
+     * reintentarla pasado retryAfterMs.
+     */
+    static String busy(String requestId, String action, String reason, long retryAfterMs) {
+        JsonObject resp = baseResponse(action != null ? action : "UNKNOWN", requestId, "BUSY", "Server busy: " + reason);
+        JsonObject payload = new JsonObject();
+        payload.addProperty("retryAfterMs", retryAfterMs);
+        resp.add("payload", payload);
+        return gson.toJson(resp);
+    }
+
     // “no implementado” uniforme
     private static String notImplemented(String requestId, String action, String msg) {
         JsonObject resp = baseResponse(action, requestId, "ERROR", msg);
@@ -836,6 +1819,52 @@ public class Protocol {
         return gson.toJson(resp);
     }
 
+    /**
+     * Saca el valor de un campo de primer nivel del JSON sin parsearlo entero: busca "campo":"valor"
+     * en los primeros caracteres (las respuestas de Protocol siempre empiezan por type/action/requestId/status).
+     */
+    static String peekField(String json, String field) {
+        if (json == null) return null;
+        if (json.length() > 512) json = json.substring(0, 512); // no recorremos mediciones enteras
+        String key = "\"" + field + "\"";
+        int k = json.indexOf(key);
+        if (k < 0) return null;
+        int i = k + key.length();
+        while (i < json.length() && (json.charAt(i) == ' ' || json.charAt(i) == ':')) i++;
+        if (i >= json.length()) return null;
+        if (json.charAt(i) == '"') {
+            int end = json.indexOf('"', i + 1);
+            return end < 0 ? null : json.substring(i + 1, end);
+        }
+        int end = i;
+        while (end < json.length() && ",}] ".indexOf(json.charAt(end)) < 0) end++;
+        return json.substring(i, end);
+    }
+
+    // Nombre de la acción para Metrics: lo que no es una Action conocida va junto (el nombre lo elige el cliente)
+    static String metricName(String action) {
+        return action != null && KNOWN_ACTIONS.contains(action) ? action : "UNKNOWN";
+    }
+
+    // Una petición terminada: sin respuesta (ya enviada por la conexión) cuenta como correcta; una excepción, como fallo
+    private static void recordMetrics(TraceEvents.RequestEvent trace, String action, String requestId, long startNanos,
+                                      long bytesIn, String response, boolean completed) {
+        Metrics.Timer timer = Metrics.action(metricName(action));
+        String status = !completed ? "EXCEPTION" : response == null ? "STREAMED" : peekField(response, "status");
+        boolean ok = "OK".equals(status) || "STREAMED".equals(status) || "NOT_MODIFIED".equals(status);
+        long bytesOut = response != null ? response.length() : 0;
+        timer.record(System.nanoTime() - startNanos, ok);
+        timer.addBytes(bytesIn + bytesOut);
+        if (trace.shouldCommit()) {
+            trace.action = metricName(action);
+            trace.requestId = requestId;
+            trace.bytesIn = bytesIn;
+            trace.bytesOut = bytesOut;
+            trace.status = status;
+            trace.commit();
+        }
+    }
+
     // lecturas seguras de JSON
     private static String getString(JsonObject obj, String key, String def) {
         return obj.has(key) && !obj.get(key).isJsonNull() ? obj.get(key).getAsString() : def;
@@ -843,4 +1872,7 @@ public class Protocol {
     private static int getInt(JsonObject obj, String key, int def) {
         return obj.has(key) && !obj.get(key).isJsonNull() ? obj.get(key).getAsInt() : def;
     }
+    private static boolean getBoolean(JsonObject obj, String key, boolean def) {
+        return obj.has(key) && !obj.get(key).isJsonNull() ? obj.get(key).getAsBoolean() : def;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ejecuta las peticiones de los clientes en el pool de workers.
+ * Varias peticiones de una misma conexión pueden estar en curso a la vez; cada respuesta se envía
+ * en cuanto termina y el cliente la relaciona con su petición por el requestId (Protocol lo devuelve siempre).
+ * Antes de encolar pasa por AdmissionControl: lo que no se admite se contesta BUSY en el momento.
+ */
+public class RequestDispatcher {
+
+    private static volatile ExecutorService workers;
+    // Peticiones que caben en un pool sin cola acotada propia (hilos virtuales); null si la acota el pool
+    private static volatile Semaphore capacity;
+
+    // Peticiones admitidas que aún no han terminado (para el apagado ordenado)
+    private static final AtomicInteger running = new AtomicInteger();
+    private static volatile boolean draining = false;
+
+    // ServerMain fija el pool al arrancar; sin pool (p.ej. en pruebas) se procesa en el hilo que llama
+    public static void setWorkers(ExecutorService pool) {
+        setWorkers(pool, 0);
+    }
+
+    /**
+     * Como setWorkers(pool), para un pool que no limita lo que se le encola (newVirtualThreadPerTaskExecutor):
+     * como mucho maxTasks peticiones dentro (en curso o esperando); con el resto se responde BUSY.
+     */
+    public static void setWorkers(ExecutorService pool, int maxTasks) {
+        capacity = maxTasks > 0 ? new Semaphore(maxTasks) : null;
+        workers = pool;
+    }
+
+    /**
+     * Lanza una petición ya admitida en la ventana de la conexión (acquireSlot/tryAcquireSlot).
+     * El hueco se libera al terminar, haya respuesta o no.
+     */
+    static void submit(ClientConnection conn, FrameCodec.Inbound message) {
+        if (draining) {
+            // apagando: lo que ya estaba en curso termina, lo nuevo se rechaza
+            reject(conn, message, new AdmissionControl.Decision(AdmissionControl.RequestClass.CONTROL,
+                    "server shutting down", ServerConfig.SHUTDOWN_DRAIN_MS));
+            return;
+        }
+        AdmissionControl.Decision decision = AdmissionControl.admit(conn, message.json());
+        if (!decision.admitted()) {
+            reject(conn, message, decision);
+            return;
+        }
+        ExecutorService pool = workers;
+        if (pool == null) {
+            running.incrementAndGet();
+            handle(conn, message, decision, null);
+            return;
+        }
+        Semaphore cap = capacity;
+        if (cap != null && !cap.tryAcquire()) {
+            reject(conn, message, AdmissionControl.queueFull(decision)); // pool lleno, como la cola del fijo
+            return;
+        }
+        running.incrementAndGet();
+        try {
+            pool.execute(() -> handle(conn, message, decision, cap));
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            if (cap != null) cap.release();
+            if (pool.isShutdown()) {
+                // el pool se está cerrando (apagado del servidor)
+                AdmissionControl.release(decision);
+                conn.releaseSlot();
+            } else {
+                // cola de trabajo llena
+                reject(conn, message, AdmissionControl.queueFull(decision));
+            }
+        }
+    }
+
+    // Apagado: a partir de aquí las peticiones nuevas se contestan BUSY
+    static void startDraining() {
+        draining = true;
+    }
+
+    /**
+     * Espera (como mucho timeoutMillis) a que terminen las peticiones en curso.
+     * Devuelve cuántas quedaban al acabar la espera (0 si todas terminaron).
+     */
+    static int awaitIdle(long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (running.get() > 0 && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+        }
+        return running.get();
+    }
+
+    // Respuesta BUSY inmediata, en el hilo que lee de la conexión (no ocupa un worker)
+    private static void reject(ClientConnection conn, FrameCodec.Inbound message, AdmissionControl.Decision decision) {
+        long start = System.nanoTime();
+        try {
+            String json = message.json();
+            String action = Protocol.peekField(json, "action");
+            String response = Protocol.busy(Protocol.peekField(json, "requestId"), action,
+                    decision.reason(), decision.retryAfterMs());
+            Metrics.recordBusy(Protocol.metricName(action));
+            conn.send(response);
+            RequestLog.record(conn.remoteAddress(), json, response, System.nanoTime() - start);
+        } finally {
+            conn.releaseSlot();
+        }
+    }
+
+    // Con pipelining el cliente espera una respuesta por requestId: si la petición falla, se le contesta ERROR
+    private static void failed(ClientConnection conn, FrameCodec.Inbound message) {
+        String json = message.json();
+        try {
+            conn.send(Protocol.error(Protocol.peekField(json, "requestId"), Protocol.peekField(json, "action"),
+                    "Internal server error"));
+        } catch (RuntimeException e) {
+            System.err.println("[Server] Could not send error response to " + conn.remoteAddress() + ": " + e.getMessage());
+        }
+    }
+
+    private static void handle(ClientConnection conn, FrameCodec.Inbound message, AdmissionControl.Decision decision,
+                               Semaphore cap) {
+        long start = System.nanoTime();
+        try {
+            // Procesa el mensaje con la clase Protocol (las tramas BINARY traen además las muestras)
+            String response = message.samples() == null
+                    ? Protocol.process(message.json(), conn)
+                    : Protocol.processBinary(message.json(), message.samples(), conn);
+
+            // Envía la respuesta de vuelta al cliente
+            if (response != null) {
+                conn.send(response);
+            }
+            // resumen al log asíncrono (ya no se imprime la línea entera)
+            RequestLog.record(conn.remoteAddress(), message.json(), response, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            System.err.println("[Server] Error processing request from " + conn.remoteAddress() + ": " + e.getMessage());
+            failed(conn, message);
+        } finally {
+            AdmissionControl.release(decision);
+            if (cap != null) cap.release();
+            running.decrementAndGet();
+            conn.releaseSlot();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package server;
+
+import utilities.RingBuffer;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log de peticiones asíncrono.
+ * Los workers solo dejan un registro resumido (acción, requestId, tamaños, latencia) en un RingBuffer
+ * y siguen; un hilo de fondo los escribe por consola en bloques. Si el buffer está lleno el registro
+ * se descarta y se cuenta, nunca se bloquea al worker. Antes se imprimía cada línea completa
+ * (mediciones de 10.000 valores incluidas) con System.out dentro del hilo del cliente.
+ *
+ * Nivel y muestreo por acción: -Dtelemed.log.level=INFO, -Dtelemed.log.level.SEND_MEASUREMENT=OFF,
+ * -Dtelemed.log.sample=1.0, -Dtelemed.log.sample.LIST_DOCTORS=0.01 (o el comando "log" de la consola).
+ * Las acciones desconocidas cuentan todas como UNKNOWN (Protocol.metricName): la acción la elige el cliente.
+ */
+public class RequestLog {
+
+    public enum Level {
+        OFF,   // no se registra
+        ERROR, // solo respuestas con status distinto de OK
+        INFO,  // resumen de cada petición (muestreado)
+        DEBUG  // resumen + inicio de la petición y de la respuesta (recortados)
+    }
+
+    // Un registro ya resumido: no guarda las líneas completas
+    private record Entry(String action, String requestId, String status, String remote,
+                         int inBytes, int outBytes, long latencyNanos, String inSnippet, String outSnippet) {}
+
+    private record Rule(Level level, double sampleRate) {}
+
+    private static final RingBuffer<Entry> buffer = new RingBuffer<>(ServerConfig.LOG_BUFFER_SIZE);
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder enqueued = new LongAdder();
+    private static volatile long written = 0; // solo lo actualiza el hilo de fondo
+    // Puestas desde la consola por acción; tienen prioridad y no se borran al cambiar el nivel por defecto
+    private static final Map<String, Rule> overrides = new ConcurrentHashMap<>();
+    // Lo resuelto con las propiedades y el nivel por defecto (solo acciones conocidas: tamaño acotado)
+    private static final Map<String, Rule> rules = new ConcurrentHashMap<>();
+    private static volatile Rule defaultRule =
+            new Rule(parseLevel(ServerConfig.LOG_LEVEL, Level.INFO), ServerConfig.LOG_SAMPLE_RATE);
+
+    private static final Thread drainer = new Thread(RequestLog::drainLoop, "request-log");
+    static {
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Registra una petición ya respondida. Barato: decide nivel/muestreo y encola un resumen.
+     */
+    public static void record(String remote, String request, String response, long latencyNanos) {
+        // action/requestId/status salen de la respuesta (Protocol siempre los pone al principio);
+        // si no hay respuesta miramos el principio de la petición
+        String source = response != null ? response : request;
+        String action = Protocol.peekField(source, "action");
+        if (action == null) action = "UNKNOWN";
+        String status = response != null ? Protocol.peekField(response, "status") : null;
+
+        Rule rule = ruleFor(action);
+        boolean failed = status != null && !status.equals("OK");
+        switch (rule.level) {
+            case OFF:
+                return;
+            case ERROR:
+                if (!failed) return;
+                break;
+            default:
+                // los errores siempre se registran; lo demás según el muestreo
+                if (!failed && rule.sampleRate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rule.sampleRate) {
+                    return;
+                }
+        }
+
+        boolean debug = rule.level == Level.DEBUG;
+        Entry entry = new Entry(action, Protocol.peekField(source, "requestId"), status, remote,
+                request.length(), response != null ? response.length() : 0, latencyNanos,
+                debug ? truncate(request) : null, debug ? truncate(response) : null);
+
+        if (buffer.offer(entry)) {
+            enqueued.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Cambia nivel y muestreo de una acción ("*" = por defecto; lo puesto antes por acción se mantiene).
+     * Devuelve el nombre con que queda (UNKNOWN si no es una acción del protocolo).
+     */
+    public static String configure(String action, Level level, double sampleRate) {
+        Rule rule = new Rule(level, Math.max(0.0, Math.min(1.0, sampleRate)));
+        if (action.equals("*")) {
+            defaultRule = rule;
+            rules.clear(); // se vuelven a resolver con el nuevo por defecto
+            return action;
+        }
+        String name = Protocol.metricName(action.toUpperCase(Locale.ROOT));
+        overrides.put(name, rule);
+        return name;
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    // Espera (como mucho timeoutMillis) a que el hilo de fondo vacíe el buffer; para el apagado
+    public static void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (written < enqueued.sum() && System.currentTimeMillis() < deadline) {
+            LockSupport.unpark(drainer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    // ------------------------- HILO DE FONDO -------------------------
+
+    private static void drainLoop() {
+        StringBuilder sb = new StringBuilder(8192);
+        long reportedDrops = 0;
+        while (true) {
+            Entry e;
+            int n = 0;
+            while (n < 512 && (e = buffer.poll()) != null) {
+                format(sb, e);
+                n++;
+            }
+            long drops = dropped.sum();
+            if (drops != reportedDrops) {
+                sb.append("[Log] ").append(drops - reportedDrops).append(" request records dropped (buffer full)\n");
+                reportedDrops = drops;
+            }
+            if (sb.length() > 0) {
+                System.out.print(sb); // una sola escritura por bloque
+                sb.setLength(0);
+            }
+            written += n;
+            if (n == 0) {
+                LockSupport.parkNanos(5_000_000); // nada pendiente: dormimos 5 ms
+            }
+        }
+    }
+
+    private static void format(StringBuilder sb, Entry e) {
+        sb.append("[Server] ").append(e.action);
+        if (e.requestId != null) sb.append(" id=").append(e.requestId);
+        sb.append(" status=").append(e.status != null ? e.status : "-")
+          .append(" in=").append(e.inBytes).append("B")
+          .append(" out=").append(e.outBytes).append("B ")
+          .append(String.format(Locale.ROOT, "%.2fms", e.latencyNanos / 1e6))
+          .append(" from ").append(e.remote);
+        if (e.inSnippet != null) sb.append("\n    req : ").append(e.inSnippet);
+        if (e.outSnippet != null) sb.append("\n    resp: ").append(e.outSnippet);
+        sb.append('\n');
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private static Rule ruleFor(String rawAction) {
+        String action = Protocol.metricName(rawAction);
+        Rule rule = overrides.get(action);
+        if (rule != null) return rule;
+        rule = rules.get(action);
+        if (rule != null) return rule;
+        Rule base = defaultRule;
+        String level = ServerConfig.getString("telemed.log.level." + action, null);
+        String sample = ServerConfig.getString("telemed.log.sample." + action, null);
+        if (level == null && sample == null) {
+            rules.put(action, base); // sin configuración propia: no volvemos a mirar las propiedades
+            return base;
+        }
+        double rate = base.sampleRate;
+        try {
+            if (sample != null) rate = Double.parseDouble(sample);
+        } catch (NumberFormatException ignored) {}
+        rule = new Rule(parseLevel(level, base.level), rate);
+        rules.put(action, rule);
+        return rule;
+    }
+
+    static Level parseLevel(String value, Level def) {
+        if (value == null) return def;
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return def;
+        }
+    }
+
+    private static String truncate(String s) {
+        if (s == null) return null;
+        int max = ServerConfig.LOG_MAX_PAYLOAD;
+        return s.length() <= max ? s : s.substring(0, max) + "... (" + s.length() + " chars)";
+    }
+}
@@ -0,0 +1,151 @@
+package server;
+
+/**
+ * Parámetros de arranque del servidor.
+ * Se leen de propiedades del sistema (-Dtelemed.clave=valor) o de argumentos --telemed.clave=valor
+ * (ServerMain los copia a propiedades antes de tocar esta clase: los campos se leen al cargarla).
+ */
+public class ServerConfig {
+
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+
+    // Modo de E/S: "classic" (un hilo por cliente con ClientHandler), "virtual" (ClientHandler en un hilo virtual
+    // por cliente) o "nio" (selector con NioServer)
+    public static final String MODE = getString("telemed.mode", "classic");
+
+    // Número de hilos event-loop (selectores) en modo NIO
+    public static final int NIO_EVENT_LOOPS = getInt("telemed.nio.eventLoops", Math.max(1, CPUS / 2));
+
+    // Hilos del pool que ejecuta Protocol.process (RequestDispatcher); en modo "virtual" se usan hilos virtuales
+    public static final int WORKER_THREADS = getInt("telemed.workers", CPUS * 2);
+
+    // Peticiones en curso a la vez por conexión (pipelining); con 1 se procesa y responde en orden
+    public static final int PIPELINE_WINDOW = Math.max(1, getInt("telemed.pipeline.window", 8));
+
+    // Peticiones que pueden esperar en la cola del pool; si se llena se responde BUSY
+    // (en modo "virtual", workers + cola es el máximo de peticiones dentro del pool de hilos virtuales)
+    public static final int WORKER_QUEUE = Math.max(1, getInt("telemed.workers.queue", 1024));
+
+    // Control de admisión (AdmissionControl): límites por clase con telemed.admission.<clase>.*
+    public static final boolean ADMISSION_ENABLED = getBoolean("telemed.admission.enabled", true);
+    public static final int ADMISSION_MAX_CONCURRENT = getInt("telemed.admission.maxConcurrent", 256);
+    public static final long ADMISSION_RETRY_AFTER_MS = getLong("telemed.admission.retryAfterMs", 200);
+
+    // Hash de contraseñas (PasswordHasher): hilos fijos y cola acotada; con la cola llena LOGIN/REGISTER_* dan BUSY
+    public static final int HASH_THREADS = Math.max(1, getInt("telemed.hash.threads", Math.max(1, CPUS / 2)));
+    public static final int HASH_QUEUE = Math.max(1, getInt("telemed.hash.queue", Math.max(1, CPUS / 2)));
+
+    // LOGIN fallidos (LoginThrottle): fallos sin freno por cuenta y por dirección, espera inicial (se dobla
+    // con cada fallo), espera máxima y tiempo sin fallos tras el que se olvidan
+    public static final int LOGIN_FREE_FAILURES = getInt("telemed.login.freeFailures", 3);
+    public static final int LOGIN_ADDRESS_FREE_FAILURES = getInt("telemed.login.addressFreeFailures", 20);
+    public static final long LOGIN_BACKOFF_MS = Math.max(1, getLong("telemed.login.backoffMs", 1000));
+    public static final long LOGIN_MAX_BACKOFF_MS = getLong("telemed.login.maxBackoffMs", 5 * 60_000L);
+    public static final long LOGIN_FORGET_MS = getLong("telemed.login.forgetMs", 15 * 60_000L);
+    // Cuentas (y direcciones) con fallos recordadas como mucho; lleno, las nuevas no se apuntan hasta el barrido
+    public static final int LOGIN_MAX_TRACKED = Math.max(1, getInt("telemed.login.maxTracked", 100_000));
+
+    // Sesiones de LOGIN (Sessions): un token sin reanudar durante este tiempo caduca
+    public static final long SESSION_TTL_MS = Math.max(1, getLong("telemed.session.ttlMs", 12 * 60 * 60_000L));
+
+    // Tamaño máximo de una línea (en bytes); las mediciones grandes ocupan varios MB
+    public static final int MAX_LINE_BYTES = getInt("telemed.maxLineBytes", 64 * 1024 * 1024);
+
+    // Respuestas pendientes de enviar por conexión en ClientHandler (las escribe el hilo escritor de la conexión):
+    // con más bytes en cola se cierra la conexión (cliente que no lee). Y cuánto espera como mucho un worker en
+    // una respuesta por trozos a que el cliente lea, o el cierre a que salga lo pendiente
+    public static final long OUTBOUND_MAX_BYTES = Math.max(1, getLong("telemed.outbound.maxBytes", 64L * 1024 * 1024));
+    public static final long OUTBOUND_STALL_MS = Math.max(1, getLong("telemed.outbound.stallMs", 30_000));
+
+    // Compresión negociada en HELLO: solo se comprimen tramas con al menos estos bytes; nivel de Deflater (1-9)
+    public static final int COMPRESS_MIN_BYTES = getInt("telemed.compress.minBytes", 1024);
+    public static final int COMPRESS_LEVEL = Math.max(1, Math.min(9, getInt("telemed.compress.level", 6)));
+
+    // Log de peticiones (RequestLog): nivel y muestreo por defecto; por acción con telemed.log.level.<ACCION>
+    public static final String LOG_LEVEL = getString("telemed.log.level", "INFO");
+    public static final double LOG_SAMPLE_RATE = getDouble("telemed.log.sample", 1.0);
+    public static final int LOG_BUFFER_SIZE = getInt("telemed.log.bufferSize", 8192);
+    public static final int LOG_MAX_PAYLOAD = getInt("telemed.log.maxPayload", 200); // caracteres en nivel DEBUG
+
+    // Hilos que pueden usar a la vez la conexión SQLite de escritura (ver DatabaseManager.acquire)
+    public static final int DB_MAX_CONCURRENT = getInt("telemed.db.maxConcurrent", 1);
+    // Conexiones de solo lectura para las consultas (DatabaseManager.read); 0 = todo por la de escritura.
+    // Apagado por defecto: con 1 núcleo no mejora las lecturas (ver ReadScalingBenchmark); probar con varios
+    public static final int DB_READERS = Math.max(0, getInt("telemed.db.readers", 0));
+
+    // Accesos simultáneos a los CSV de señales en DataStorage
+    public static final int IO_MAX_CONCURRENT = getInt("telemed.io.maxConcurrent", Math.max(1, CPUS / 2));
+
+    // Valores por trozo en GET_MEASUREMENT_VALUES con "stream": true (el cliente puede pedir otro tamaño)
+    public static final int STREAM_CHUNK_SAMPLES = getInt("telemed.stream.chunkSamples", 4096);
+
+    // Subidas por trozos (UploadSessions): abiertas a la vez y tiempo sin trozos antes de descartarlas
+    public static final int UPLOAD_MAX_SESSIONS = Math.max(1, getInt("telemed.upload.maxSessions", 1024));
+    public static final long UPLOAD_IDLE_MS = getLong("telemed.upload.idleMs", 10 * 60_000L);
+
+    // LIST_* paginados: tamaño de página si el cliente manda cursor sin limit, y límite máximo
+    public static final int LIST_DEFAULT_LIMIT = Math.max(1, getInt("telemed.list.defaultLimit", 50));
+    public static final int LIST_MAX_LIMIT = Math.max(1, getInt("telemed.list.maxLimit", 500));
+
+    // Peticiones como mucho dentro de un BATCH (van todas en una transacción con la BD cogida)
+    public static final int BATCH_MAX_ITEMS = Math.max(1, getInt("telemed.batch.maxItems", 100));
+
+    // Endpoint HTTP de métricas en formato Prometheus (Metrics); 0 = desactivado
+    public static final int METRICS_PORT = getInt("telemed.metrics.port", 0);
+    public static final String METRICS_BIND = getString("telemed.metrics.bind", "127.0.0.1");
+
+    // Eventos EVENT pendientes de enviar por suscripción; si se llena se descartan (y se avisa)
+    public static final int EVENTS_QUEUE = Math.max(1, getInt("telemed.events.queue", 64));
+
+    // Apagado ordenado: tiempo máximo para que terminen las peticiones en curso
+    public static final long SHUTDOWN_DRAIN_MS = getLong("telemed.shutdown.drainMs", 10_000);
+
+    // Ruta de la BD; si no se indica se busca telemedicina.db subiendo carpetas
+    public static final String DB_PATH = getString("telemed.db.path", null);
+
+    public static boolean isNioMode() {
+        return MODE.equalsIgnoreCase("nio");
+    }
+
+    public static boolean isVirtualMode() {
+        return MODE.equalsIgnoreCase("virtual");
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    static String getString(String key, String def) {
+        String v = System.getProperty(key);
+        return (v == null || v.isBlank()) ? def : v.trim();
+    }
+
+    static int getInt(String key, int def) {
+        try {
+            return Integer.parseInt(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid value for " + key + ", using " + def);
+            return def;
+        }
+    }
+
+    static long getLong(String key, long def) {
+        try {
+            return Long.parseLong(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid value for " + key + ", using " + def);
+            return def;
+        }
+    }
+
+    static double getDouble(String key, double def) {
+        try {
+            return Double.parseDouble(getString(key, String.valueOf(def)));
+        } catch (NumberFormatException e) {
+            System.err.println("[Config] Invalid value for " + key + ", using " + def);
+            return def;
+        }
+    }
+
+    static boolean getBoolean(String key, boolean def) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(def)));
+    }
+}
@@ -1,18 +1,26 @@
 package server;
 
 import server.database.DatabaseManager;
+import utilities.TraceEvents;
 import utilities.Utilities;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Arranca el servidor y acepta conexiones en el puerto 9000.
  * Cada nuevo cliente se maneja por separado con ClientHandler.
+ * Con --telemed.mode=nio se usa NioServer (selector) en vez de un hilo por cliente,
+ * y con --telemed.mode=virtual cada ClientHandler corre en un hilo virtual.
  */
 
 public class ServerMain {
@@ -24,10 +32,13 @@ public class ServerMain {
 
     // Variables estáticas para control de la conexión y los hilos
     private static ServerSocket serverSocket;
-    private static ExecutorService clientPool;
+    private static ExecutorService clientPool;   // hilos que leen de cada socket (no se usa en modo NIO)
+    private static ExecutorService requestPool;  // workers que ejecutan Protocol.process (RequestDispatcher)
+    private static NioServer nioServer; // solo en modo "nio"
 
     // Bandera atómica para controlar el ciclo de vida de los bucles (seguro en entorno multihilo)
     private static final AtomicBoolean isRunning = new AtomicBoolean(true);
+    private static volatile long shutdownStart = 0; // System.nanoTime() al empezar el apagado
 
         // crea un "pool" de hilos para manejar varios clientes a la vez
         // permite manejar varios clientes A LA VEZ
@@ -38,11 +49,28 @@ public class ServerMain {
         // está siempre activo escuchando a ver si se conectan nuevos clientes
 
    public static void main(String[] args) {
+       // Argumentos opcionales --telemed.clave=valor (ej. --telemed.mode=nio), ver ServerConfig
+       applyArgs(args); // antes de usar ServerConfig
+
        // 1. Inicialización de Recursos
        DatabaseManager.connect(); // Abre la única conexión con la DB (telemedicina.db).
+       Metrics.startHttp(); // /metrics para Prometheus, solo si se pidió --telemed.metrics.port
 
-       // Asigna la referencia estática al pool de hilos.
-       clientPool = Executors.newCachedThreadPool();
+       // Asigna la referencia estática a los pools de hilos.
+       // En modo NIO los hilos no se quedan esperando en el socket, así que basta con el pool fijo de workers.
+       // En modo "virtual" cada cliente tiene su propio hilo virtual: esperar en readLine() ya no ocupa un hilo del SO.
+       if (ServerConfig.isVirtualMode()) {
+           clientPool = Executors.newVirtualThreadPerTaskExecutor();
+           requestPool = Executors.newVirtualThreadPerTaskExecutor();
+           // sin cola propia: RequestDispatcher deja dentro lo mismo que cabe en el pool fijo (hilos + cola)
+           RequestDispatcher.setWorkers(requestPool, ServerConfig.WORKER_THREADS + ServerConfig.WORKER_QUEUE);
+       } else {
+           clientPool = ServerConfig.isNioMode() ? null : Executors.newCachedThreadPool();
+           // pool fijo con cola acotada: si se llena, RequestDispatcher responde BUSY en vez de acumular
+           requestPool = new ThreadPoolExecutor(ServerConfig.WORKER_THREADS, ServerConfig.WORKER_THREADS,
+                   0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(ServerConfig.WORKER_QUEUE));
+           RequestDispatcher.setWorkers(requestPool);
+       }
 
        // 2. Hilo de Consola (Interfaz de Administración)
        Thread adminConsoleThread = new Thread(ServerMain::adminConsoleLoop); // Crea el hilo para leer comandos.
@@ -50,9 +78,20 @@ public class ServerMain {
        adminConsoleThread.start(); // Inicia el hilo de la consola.
 
        try {
+           if (ServerConfig.isNioMode()) {
+               // Modo NIO: pocos event-loops con Selector en vez de un hilo bloqueado por cliente
+               nioServer = new NioServer(PORT, ServerConfig.NIO_EVENT_LOOPS);
+               nioServer.run(); // bloquea hasta que se cierre el servidor
+               return;
+           }
+
            // Asigna la referencia estática al ServerSocket
-           serverSocket = new ServerSocket(PORT);
-           System.out.println("[Server] Listening on port " + PORT);
+           // Desde un ServerSocketChannel para que cada Socket tenga su canal (transferTo en DOWNLOAD_MEASUREMENT_RAW);
+           // en modo bloqueante se usa igual que un ServerSocket normal
+           ServerSocketChannel serverChannel = ServerSocketChannel.open();
+           serverChannel.bind(new InetSocketAddress(PORT));
+           serverSocket = serverChannel.socket();
+           System.out.println("[Server] Listening on port " + PORT + " (" + ServerConfig.MODE + " threads)");
 
            // 3. Bucle Principal de Escucha
            while (isRunning.get()) { // Bucle controlado por la bandera (se detiene cuando isRunning es 'false')
@@ -60,7 +99,7 @@ public class ServerMain {
                System.out.println("[Server] New client connected");
 
                // Asigna la gestión del nuevo cliente a un hilo libre del pool.
-               clientPool.execute( new ClientHandler(clientSocket));
+               clientPool.execute(ClientHandler.accept(clientSocket));
            }
 
        } catch (IOException e) {
@@ -74,10 +113,27 @@ public class ServerMain {
            shutdownServer(); // Llama al nuevo métdo para detener hilos y cerrar la DB.
        }
    }
+    // Copia los argumentos "--clave=valor" a propiedades del sistema.
+    // Tiene que estar fuera de ServerConfig: llamar a un métdo suyo ya cargaría la clase con los valores por defecto.
+    private static void applyArgs(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) continue;
+            int eq = arg.indexOf('=');
+            System.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+    }
+
     // Lógica del hilo de consola (Interfaz de Administración)
     private static void adminConsoleLoop() {
         System.out.println("-------------------------------------");
         System.out.println("Admin Console: Type 'shutdown' to stop.");
+        System.out.println("  log <ACTION|*> <OFF|ERROR|INFO|DEBUG> [sampleRate]  -> request log level");
+        System.out.println("  compression  -> compression ratio and CPU per action");
+        System.out.println("  admission    -> in-flight requests and BUSY rejections");
+        System.out.println("  events       -> event subscriptions and deliveries");
+        System.out.println("  uploads      -> open chunked measurement uploads");
+        System.out.println("  stats        -> latency and errors per action, DAO method and storage op");
+        System.out.println("  jfr <start [file]|stop|status>  -> Flight Recorder with request/query/file events");
         System.out.println("-------------------------------------");
 
         while (isRunning.get()) {
@@ -87,10 +143,63 @@ public class ServerMain {
                 if (attemptShutdown()) {
                     break;
                 }
+            } else if (command.toLowerCase().startsWith("log ")) {
+                configureLog(command.split("\\s+"));
+            } else if (command.equalsIgnoreCase("compression")) {
+                System.out.print(CompressionStats.report());
+            } else if (command.equalsIgnoreCase("admission")) {
+                System.out.print(AdmissionControl.report());
+                System.out.print(PasswordHasher.report());
+                System.out.print(LoginThrottle.report());
+                System.out.print(Sessions.report());
+                System.out.print(DatabaseManager.report());
+            } else if (command.equalsIgnoreCase("events")) {
+                System.out.print(EventBus.report());
+            } else if (command.equalsIgnoreCase("uploads")) {
+                System.out.print(UploadSessions.report());
+            } else if (command.equalsIgnoreCase("stats")) {
+                System.out.print(Metrics.report());
+            } else if (command.equalsIgnoreCase("jfr") || command.toLowerCase().startsWith("jfr ")) {
+                configureJfr(command.split("\\s+"));
             }
         }
     }
 
+    // jfr start [fichero] | jfr stop | jfr status
+    private static void configureJfr(String[] parts) {
+        String sub = parts.length > 1 ? parts[1].toLowerCase() : "status";
+        switch (sub) {
+            case "start" -> System.out.println("[Admin] " + TraceEvents.start(parts.length > 2 ? parts[2] : null));
+            case "stop" -> System.out.println("[Admin] " + TraceEvents.stop());
+            case "status" -> System.out.println("[Admin] " + TraceEvents.status());
+            default -> System.out.println("[Admin] Usage: jfr <start [file]|stop|status>");
+        }
+    }
+
+    // log <ACTION|*> <LEVEL> [sampleRate]
+    private static void configureLog(String[] parts) {
+        if (parts.length < 3) {
+            System.out.println("[Admin] Usage: log <ACTION|*> <OFF|ERROR|INFO|DEBUG> [sampleRate]");
+            return;
+        }
+        RequestLog.Level level = RequestLog.parseLevel(parts[2], null);
+        if (level == null) {
+            System.out.println("[Admin] Unknown level: " + parts[2]);
+            return;
+        }
+        double rate = 1.0;
+        if (parts.length > 3) {
+            try {
+                rate = Double.parseDouble(parts[3]);
+            } catch (NumberFormatException e) {
+                System.out.println("[Admin] Invalid sample rate: " + parts[3]);
+                return;
+            }
+        }
+        String action = RequestLog.configure(parts[1], level, rate);
+        System.out.println("[Admin] Request log for " + action + " set to " + level + " (sample " + rate + ")");
+    }
+
     // Lógica de apagado seguro con comprobación de contraseña
     private static boolean attemptShutdown() {
         String pwd = Utilities.readString("Enter admin password to confirm shutdown: ");
@@ -100,30 +209,88 @@ public class ServerMain {
         }
 
         System.out.println("[Admin] Shutting down server...");
+        beginShutdown();
+        return true;
+    }
+
+    // Fase 1 del apagado: dejar de aceptar. Desbloquea el accept() del hilo principal,
+    // que sigue con el resto en shutdownServer() (bloque finally de main).
+    private static void beginShutdown() {
+        shutdownStart = System.nanoTime();
         isRunning.set(false); // Detiene el bucle principal
+        RequestDispatcher.startDraining(); // lo nuevo se contesta BUSY
+
+        if (nioServer != null) {
+            nioServer.stopAccepting(); // las conexiones abiertas siguen hasta terminar lo que tienen en curso
+        }
 
         // Cerrar el ServerSocket para desbloquear serverSocket.accept()
         if (serverSocket != null && !serverSocket.isClosed()) {
             try {
                 serverSocket.close();
-                System.exit(0);
             } catch (IOException e) {
                 System.err.println("[Admin] Error closing ServerSocket: " + e.getMessage());
             }
         }
-        return true;
     }
 
-    // Cierre final que limpia recursos (ejecutado en el bloque finally)
+    // Cierre final que limpia recursos (ejecutado en el bloque finally).
+    // Antes se hacía System.exit(0) nada más cerrar el socket: se cortaban escrituras de CSV a medias
+    // y el WAL se quedaba sin volcar. Ahora se vacía por fases y se informa de lo que tarda cada una.
     private static void shutdownServer() {
-        System.out.println("[Server] Shutting down thread pool and DB connection...");
+        if (shutdownStart == 0) {
+            beginShutdown(); // salimos por un error, no desde la consola
+        }
+        System.out.println("[Server] Draining: stopped accepting connections (" + phaseMillis(shutdownStart) + ")");
 
-        clientPool.shutdownNow(); // Detiene los hilos de clientes
+        // 2. Terminar las peticiones en curso (como mucho telemed.shutdown.drainMs)
+        long phase = System.nanoTime();
+        int left = RequestDispatcher.awaitIdle(ServerConfig.SHUTDOWN_DRAIN_MS);
+        System.out.println("[Server] Draining: in-flight requests " + (left == 0 ? "finished" : left + " still running, deadline reached")
+                + " (" + phaseMillis(phase) + ")");
 
+        // 3. Cerrar conexiones (enviando lo pendiente) y los pools de hilos
+        phase = System.nanoTime();
+        int connections = ClientConnection.openCount();
+        if (nioServer != null) nioServer.close();
+        ClientConnection.abortAll();
+        if (clientPool != null) clientPool.shutdownNow(); // Detiene los hilos de clientes
+        requestPool.shutdownNow(); // y los workers (interrumpe los que pasaron del plazo)
+        try {
+            requestPool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("[Server] Draining: closed " + connections + " connections and thread pools (" + phaseMillis(phase) + ")");
+
+        // 4. Borrar las subidas por trozos a medias y forzar a disco los CSV de señales (y no admitir más escrituras)
+        phase = System.nanoTime();
+        int uploads = UploadSessions.discardAll();
+        int synced = DataStorage.flushAndClose();
+        System.out.println("[Server] Draining: discarded " + uploads + " unfinished uploads, synced " + synced
+                + " signal files (" + phaseMillis(phase) + ")");
+
+        // 5. Volcar el WAL de SQLite para que el siguiente arranque no lo tenga que reproducir
+        phase = System.nanoTime();
+        boolean checkpointed = DatabaseManager.checkpoint(2000);
+        System.out.println("[Server] Draining: WAL checkpoint " + (checkpointed ? "done" : "incomplete") + " (" + phaseMillis(phase) + ")");
+
+        // 6. Cerrar la BD y vaciar el log de peticiones
+        phase = System.nanoTime();
         DatabaseManager.close(); // Cierra la conexión de la DB de forma segura
+        RequestLog.flush(1000); // lo que quede en el log de peticiones
+        Metrics.stopHttp();
+        System.out.println("[Server] Draining: DB, request log and metrics endpoint closed (" + phaseMillis(phase) + ")");
+        if (TraceEvents.isRecording()) { // una grabación JFR a medias no se pierde al apagar
+            System.out.println("[Server] " + TraceEvents.stop());
+        }
 
         System.out.println("-------------------------------------");
-        System.out.println("[Server] Server stopped successfully.");
+        System.out.println("[Server] Server stopped successfully in " + phaseMillis(shutdownStart) + ".");
+    }
+
+    private static String phaseMillis(long startNanos) {
+        return String.format(java.util.Locale.ROOT, "%.1f ms", (System.nanoTime() - startNanos) / 1e6);
     }
 
 }
\ No newline at end of file
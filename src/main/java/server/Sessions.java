@@ -0,0 +1,122 @@
+package server;
+
+import server.database.PatientDAO;
+
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sesiones de LOGIN en memoria. El LOGIN correcto crea un token aleatorio (256 bits) que queda atado a la
+ * conexión: a partir de ahí las peticiones pueden omitir su patientId/doctorId (ver Protocol.bindIdentity)
+ * y el servidor sabe quién es sin volver a preguntar a PatientDAO/DoctorDAO.
+ * Si la conexión se cae, el cliente manda RESUME_SESSION con el token en vez de repetir el LOGIN
+ * (que son 65.536 iteraciones de PBKDF2 y cuatro consultas).
+ *
+ * Validar es un get() en un ConcurrentHashMap. Un token caduca tras -Dtelemed.session.ttlMs sin usarse
+ * para reanudar (cada RESUME_SESSION lo renueva); los caducados se borran en un barrido que se hace como
+ * mucho una vez por minuto. LOGOUT borra el token y deja anónimas todas las conexiones atadas a él.
+ * Una conexión atada sigue autenticada aunque su token caduque: la caducidad solo limita la reanudación.
+ *
+ * Las sesiones de doctor llevan el conjunto de ids de sus pacientes, cargado en el LOGIN y compartido por
+ * todas sus sesiones; REGISTER_PATIENT lo amplía. Así comprobar que un patientId es suyo (bindIdentity)
+ * no consulta la BD, salvo si el id no está en el conjunto.
+ */
+public class Sessions {
+
+    // patients: ids de los pacientes del doctor (null en sesiones de paciente)
+    record Session(String token, String role, int userId, long expiresAt, Set<Integer> patients) {}
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // Pacientes de cada doctor con alguna sesión viva (el mismo conjunto que llevan sus Session)
+    private static final Map<Integer, Set<Integer>> patientsOfDoctor = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    private static final long TTL_NANOS = ServerConfig.SESSION_TTL_MS * 1_000_000L;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    static Session create(String role, int userId) {
+        sweepIfDue();
+        Set<Integer> patients = role.equals("DOCTOR") ? patientsOf(userId) : null;
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        Session session = new Session(HexFormat.of().formatHex(bytes), role, userId, System.nanoTime() + TTL_NANOS, patients);
+        sessions.put(session.token, session);
+        return session;
+    }
+
+    /**
+     * Sesión viva con ese token, con la caducidad ya renovada; null si no existe o caducó.
+     */
+    static Session resume(String token) {
+        if (token == null) return null;
+        long now = System.nanoTime();
+        return sessions.computeIfPresent(token, (k, s) ->
+                s.expiresAt - now > 0 ? new Session(s.token, s.role, s.userId, now + TTL_NANOS, s.patients) : null);
+    }
+
+    /**
+     * ¿Es patientId paciente del doctor? Mira el conjunto de su sesión y solo si no está pregunta a la BD
+     * (y lo apunta si lo es: p.ej. registrado mientras se cargaba el conjunto).
+     */
+    static boolean isPatientOf(Set<Integer> patients, int doctorId, int patientId) {
+        if (patients != null && patients.contains(patientId)) {
+            return true;
+        }
+        if (!PatientDAO.isPatientOf(patientId, doctorId)) {
+            return false;
+        }
+        if (patients != null) patients.add(patientId);
+        return true;
+    }
+
+    // REGISTER_PATIENT: si su doctor tiene sesiones, el nuevo paciente ya cuenta como suyo
+    static void patientRegistered(int doctorId, int patientId) {
+        Set<Integer> patients = patientsOfDoctor.get(doctorId);
+        if (patients != null) patients.add(patientId);
+    }
+
+    // El conjunto del doctor: el de sus otras sesiones, o se carga de la BD (fuera del lock del mapa)
+    private static Set<Integer> patientsOf(int doctorId) {
+        Set<Integer> patients = patientsOfDoctor.get(doctorId);
+        if (patients != null) return patients;
+        Set<Integer> loaded = ConcurrentHashMap.newKeySet();
+        loaded.addAll(PatientDAO.listIdsByDoctorId(doctorId));
+        patients = patientsOfDoctor.putIfAbsent(doctorId, loaded);
+        return patients != null ? patients : loaded;
+    }
+
+    static void revoke(String token) {
+        if (token != null) sessions.remove(token);
+    }
+
+    static long expiresInMs(Session session) {
+        return Math.max(0, (session.expiresAt - System.nanoTime()) / 1_000_000L);
+    }
+
+    static String report() {
+        return String.format(Locale.ROOT, "sessions=%d ttl=%d min%n", sessions.size(), ServerConfig.SESSION_TTL_MS / 60_000);
+    }
+
+    // Un solo hilo barre, y solo si ha pasado el intervalo: el resto de LOGIN no recorre el mapa
+    private static void sweepIfDue() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        sessions.values().removeIf(s -> s.expiresAt - now <= 0);
+        // los doctores sin sesiones vivas ya no necesitan su conjunto
+        Set<Integer> doctors = new HashSet<>();
+        for (Session s : sessions.values()) {
+            if (s.patients != null) doctors.add(s.userId);
+        }
+        patientsOfDoctor.keySet().retainAll(doctors);
+    }
+}
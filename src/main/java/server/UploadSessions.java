@@ -0,0 +1,175 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Subidas de mediciones por trozos (BEGIN_MEASUREMENT / MEASUREMENT_CHUNK / END_MEASUREMENT).
+ * Cada subida tiene un uploadId aleatorio y su propio CSV, al que se van añadiendo los trozos según llegan.
+ * La sesión no va atada a la conexión: si el móvil pierde la red, vuelve a conectar, manda BEGIN_MEASUREMENT
+ * con el mismo uploadId y sigue desde el último offset confirmado. Los metadatos en BD solo se insertan en
+ * END_MEASUREMENT, así que una toma a medias nunca aparece en LIST_MEASUREMENTS.
+ *
+ * Las sesiones viven en memoria: una subida sin actividad durante -Dtelemed.upload.idleMs se descarta
+ * (y se borra su CSV), y como mucho hay -Dtelemed.upload.maxSessions abiertas a la vez. El barrido lo hace
+ * un hilo de fondo (aunque no empiece ninguna subida nueva) y en el apagado se borran las que queden:
+ * tras reiniciar no se podrían reanudar.
+ */
+public class UploadSessions {
+
+    static final class Session {
+        final String id;
+        final int patientId;
+        final String type;
+        final String date;
+        final String filePath;
+        // Se usa un lock y no synchronized: END_MEASUREMENT escribe en BD con él cogido (hilos virtuales)
+        final ReentrantLock lock = new ReentrantLock();
+        long samples;       // muestras guardadas y confirmadas (= offset del siguiente trozo)
+        long bytes;         // tamaño válido del CSV
+        boolean finished;   // END_MEASUREMENT hecho o sesión caducada
+        volatile long lastTouched = System.nanoTime();
+
+        Session(String id, int patientId, String type, String date, String filePath, long bytes) {
+            this.id = id;
+            this.patientId = patientId;
+            this.type = type;
+            this.date = date;
+            this.filePath = filePath;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Resultado de append(): error null si fue bien; offset es siempre lo confirmado hasta ahora.
+     */
+    record ChunkResult(long offset, String error) {}
+
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private static final SecureRandom random = new SecureRandom();
+    private static final long IDLE_NANOS = ServerConfig.UPLOAD_IDLE_MS * 1_000_000L;
+    // cada cuánto mira el hilo de fondo: como mucho un minuto, y no más de una vez por segundo
+    private static final long SWEEP_NANOS = Math.max(TimeUnit.SECONDS.toNanos(1), Math.min(IDLE_NANOS, TimeUnit.MINUTES.toNanos(1)));
+
+    private static final Thread sweeper = new Thread(UploadSessions::sweepLoop, "upload-sweeper");
+    static {
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    /**
+     * Abre una subida nueva con su CSV (solo cabecera). Null si hay demasiadas abiertas o falla el disco.
+     */
+    static Session begin(int patientId, String type, String date) {
+        expire(IDLE_NANOS, "expired");
+        if (sessions.size() >= ServerConfig.UPLOAD_MAX_SESSIONS) {
+            return null;
+        }
+        String filePath = DataStorage.createCsv("patient_" + patientId);
+        if (filePath == null) {
+            return null;
+        }
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        Session session = new Session(HexFormat.of().formatHex(id), patientId, type, date, filePath,
+                DataStorage.HEADER_BYTES);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    // Sesión abierta con ese id (null si no existe, ya terminó o caducó)
+    static Session find(String uploadId) {
+        Session session = uploadId != null ? sessions.get(uploadId) : null;
+        if (session != null) {
+            session.lastTouched = System.nanoTime();
+        }
+        return session;
+    }
+
+    /**
+     * Añade un trozo que empieza en la muestra 'offset'. Un trozo repetido (el cliente no llegó a ver la
+     * confirmación) se acepta sin escribir lo que ya estaba; un hueco se rechaza con el offset esperado.
+     */
+    static ChunkResult append(Session session, long offset, int[] values, int count) {
+        session.lock.lock();
+        try {
+            if (session.finished) {
+                return new ChunkResult(session.samples, "Upload already finished");
+            }
+            if (offset > session.samples) {
+                return new ChunkResult(session.samples, "Chunk offset " + offset + " leaves a gap; expected " + session.samples);
+            }
+            int skip = (int) Math.min(count, session.samples - offset); // ya guardado antes
+            if (skip < count) {
+                long size = DataStorage.appendValues(session.filePath, session.bytes, session.samples, values, skip, count);
+                if (size < 0) {
+                    return new ChunkResult(session.samples, "CSV write failed");
+                }
+                session.bytes = size;
+                session.samples += count - skip;
+            }
+            session.lastTouched = System.nanoTime();
+            return new ChunkResult(session.samples, null);
+        } finally {
+            session.lock.unlock();
+        }
+    }
+
+    // La subida terminó bien (metadatos ya en BD): se olvida la sesión y el CSV se queda
+    static void complete(Session session) {
+        session.finished = true;
+        sessions.remove(session.id, session);
+    }
+
+    // Apagado (antes de DataStorage.flushAndClose): borra las subidas a medias. Devuelve cuántas había
+    public static int discardAll() {
+        return expire(0, "discarded on shutdown");
+    }
+
+    public static String report() {
+        long samples = 0;
+        for (Session s : sessions.values()) samples += s.samples;
+        return String.format(Locale.ROOT, "uploads open=%d/%d samples-pending=%d%n",
+                sessions.size(), ServerConfig.UPLOAD_MAX_SESSIONS, samples);
+    }
+
+    // ------------------------- HELPERS -------------------------
+
+    private static void sweepLoop() {
+        while (true) {
+            LockSupport.parkNanos(SWEEP_NANOS);
+            try {
+                expire(IDLE_NANOS, "expired");
+            } catch (RuntimeException e) {
+                System.err.println("[Storage] Upload sweep failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Descarta las subidas sin actividad desde hace idleNanos; las que están escribiendo ahora mismo se dejan
+    // para la próxima vuelta
+    private static int expire(long idleNanos, String why) {
+        long now = System.nanoTime();
+        int n = 0;
+        for (Session s : sessions.values()) {
+            if (now - s.lastTouched < idleNanos || !s.lock.tryLock()) continue;
+            try {
+                if (s.finished) continue;
+                s.finished = true;
+                sessions.remove(s.id, s);
+                DataStorage.discard(s.filePath);
+                n++;
+                System.out.println("[Storage] Upload " + s.id + " " + why + " after " + s.samples + " samples");
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return n;
+    }
+}
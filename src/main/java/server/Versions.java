@@ -0,0 +1,73 @@
+package server;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Versiones de los listados para respuestas condicionales (ifVersion -> NOT_MODIFIED).
+ * Cada ámbito (la lista de doctores, los pacientes de un doctor, las citas de un doctor o de un paciente,
+ * las mediciones de un paciente) tiene un contador que suben las escrituras de Protocol que lo cambian.
+ * El cliente devuelve la versión que recibió y, si nada ha cambiado, se le contesta sin ir a la BD.
+ *
+ * Orden que lo hace seguro: el listado lee la versión ANTES de consultar y la escritura la sube DESPUÉS
+ * de confirmar. Como mucho, una respuesta sale con datos más nuevos que su versión (y la siguiente petición
+ * se responde entera); nunca con una versión que tape datos que el cliente no tiene.
+ *
+ * La versión lleva delante el arranque del servidor: tras un reinicio los contadores vuelven a 0, pero las
+ * versiones viejas ya no coinciden.
+ */
+public class Versions {
+
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    // Ámbitos tocados dentro de un BATCH en este hilo: se suben cuando termina la transacción
+    private static final ThreadLocal<Set<String>> deferred = new ThreadLocal<>();
+
+    static final String DOCTORS = "doctors";
+
+    static String patientsOf(int doctorId) {
+        return "patients:" + doctorId;
+    }
+
+    static String measurementsOf(int patientId) {
+        return "measurements:" + patientId;
+    }
+
+    static String appointmentsOf(String role, int userId) {
+        return "appointments:" + role + ":" + userId;
+    }
+
+    // Versión actual del ámbito ("<arranque>.<contador>"); no crea nada si nadie lo ha escrito aún
+    static String current(String scope) {
+        AtomicLong counter = counters.get(scope);
+        return EPOCH + "." + (counter != null ? counter.get() : 0);
+    }
+
+    // Después de una escritura ya confirmada
+    static void bump(String scope) {
+        Set<String> pending = deferred.get();
+        if (pending != null) {
+            pending.add(scope);
+            return;
+        }
+        counters.computeIfAbsent(scope, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    // BATCH: las subidas de este hilo esperan a que acabe la transacción (ver releaseBumps)
+    static void deferBumps() {
+        deferred.set(new HashSet<>());
+    }
+
+    // Fin del BATCH, se confirme o no: lo leído dentro de la transacción pudo incluir filas deshechas
+    static void releaseBumps() {
+        Set<String> pending = deferred.get();
+        deferred.remove();
+        if (pending != null) {
+            pending.forEach(Versions::bump);
+        }
+    }
+}
@@ -34,13 +34,15 @@ public class AppointmentDAO {
      */
     public static Integer insert(int doctorId, int patientId, String datetimeIso, String message) {
         String sql = "INSERT INTO appointments(doctor_id, patient_id, datetime, message) VALUES (?,?,?,?)";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("AppointmentDAO.insert");
+             PreparedStatement ps = db.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setInt(1, doctorId);
             ps.setInt(2, patientId);
             ps.setString(3, datetimeIso);
             ps.setString(4, message);
 
             int updated = ps.executeUpdate();
+            db.rows(updated);
             if (updated == 0) {
                 return null;
             }
@@ -60,15 +62,53 @@ public class AppointmentDAO {
      * Lista las citas de un doctor.
      */
     public static List<AppointmentMeta> listByDoctor(int doctorId) {
+        return listByDoctor(doctorId, 0, null).items();
+    }
+
+    /**
+     * Una página de las citas de un doctor (más recientes primero). limit 0 = todas; after = cursor de
+     * la página anterior o null para empezar.
+     */
+    public static Page<AppointmentMeta> listByDoctor(int doctorId, int limit, Page.Cursor after) {
+        return listBy("doctor_id", "AppointmentDAO.listByDoctor", doctorId, limit, after);
+    }
+
+    /**
+     * Lista las citas de un paciente.
+     */
+    public static List<AppointmentMeta> listByPatient(int patientId) {
+        return listByPatient(patientId, 0, null).items();
+    }
+
+    public static Page<AppointmentMeta> listByPatient(int patientId, int limit, Page.Cursor after) {
+        return listBy("patient_id", "AppointmentDAO.listByPatient", patientId, limit, after);
+    }
+
+    // column es "doctor_id" o "patient_id" (nunca viene del cliente)
+    private static Page<AppointmentMeta> listBy(String column, String operation, int ownerId, int limit, Page.Cursor after) {
         String sql = "SELECT id, doctor_id, patient_id, datetime, message " +
-                "FROM appointments WHERE doctor_id = ? " +
-                "ORDER BY datetime DESC, id DESC";
+                "FROM appointments WHERE " + column + " = ? " +
+                (after != null ? "AND (datetime, id) < (?, ?) " : "") +
+                "ORDER BY datetime DESC, id DESC LIMIT ?";
         List<AppointmentMeta> result = new ArrayList<>();
+        String nextCursor = null;
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setInt(1, doctorId);
+        try (DatabaseManager.Lease db = DatabaseManager.read(operation);
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            int i = 1;
+            ps.setInt(i++, ownerId);
+            if (after != null) {
+                ps.setString(i++, after.key());
+                ps.setInt(i++, after.id());
+            }
+            ps.setInt(i, Page.sqlLimit(limit));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
+                    if (limit > 0 && result.size() == limit) { // la fila de más: hay otra página
+                        AppointmentMeta last = result.get(result.size() - 1);
+                        nextCursor = Page.encode(last.getDatetime(), last.getId());
+                        break;
+                    }
                     result.add(new AppointmentMeta(
                             rs.getInt("id"),
                             rs.getInt("doctor_id"),
@@ -78,23 +118,36 @@ public class AppointmentDAO {
                     ));
                 }
             }
+            db.rows(result.size());
         } catch (SQLException e) {
-            System.err.println("[DB] Appointment listByDoctor error: " + e.getMessage());
+            System.err.println("[DB] Appointment " + operation + " error: " + e.getMessage());
         }
-        return result;
+        return new Page<>(result, nextCursor);
     }
 
     /**
-     * Lista las citas de un paciente.
+     * Citas creadas después de sinceId (id mayor), por id ascendente: lo nuevo desde la última sincronización
+     * del cliente. limit 0 = todas.
      */
-    public static List<AppointmentMeta> listByPatient(int patientId) {
+    public static List<AppointmentMeta> listByDoctorSince(int doctorId, int sinceId, int limit) {
+        return listSince("doctor_id", "AppointmentDAO.listByDoctorSince", doctorId, sinceId, limit);
+    }
+
+    public static List<AppointmentMeta> listByPatientSince(int patientId, int sinceId, int limit) {
+        return listSince("patient_id", "AppointmentDAO.listByPatientSince", patientId, sinceId, limit);
+    }
+
+    private static List<AppointmentMeta> listSince(String column, String operation, int ownerId, int sinceId, int limit) {
         String sql = "SELECT id, doctor_id, patient_id, datetime, message " +
-                "FROM appointments WHERE patient_id = ? " +
-                "ORDER BY datetime DESC, id DESC";
+                "FROM appointments WHERE " + column + " = ? AND id > ? " +
+                "ORDER BY id ASC LIMIT ?";
         List<AppointmentMeta> result = new ArrayList<>();
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setInt(1, patientId);
+        try (DatabaseManager.Lease db = DatabaseManager.read(operation);
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            ps.setInt(1, ownerId);
+            ps.setInt(2, sinceId);
+            ps.setInt(3, limit > 0 ? limit : -1);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     result.add(new AppointmentMeta(
@@ -106,8 +159,9 @@ public class AppointmentDAO {
                     ));
                 }
             }
+            db.rows(result.size());
         } catch (SQLException e) {
-            System.err.println("[DB] Appointment listByPatient error: " + e.getMessage());
+            System.err.println("[DB] Appointment " + operation + " error: " + e.getMessage());
         }
         return result;
     }
@@ -116,7 +170,8 @@ public class AppointmentDAO {
     public static boolean isSlotTaken(int doctorId, String datetime) {
         // SQL: Busca cualquier fila que coincida con el doctor Y la fecha/hora.
         String sql = "SELECT 1 FROM appointments WHERE doctor_id = ? AND datetime = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("AppointmentDAO.isSlotTaken");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, doctorId);
             ps.setString(2, datetime);
             // Si el ResultSet tiene una fila (next() devuelve true), el slot está tomado.
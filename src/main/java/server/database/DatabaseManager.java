@@ -1,18 +1,289 @@
 package server.database;
 
+import server.Metrics;
+import server.ServerConfig;
+import utilities.TraceEvents;
+
 import java.io.File;
 import java.net.URISyntaxException;
 import java.sql.*;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
-/** Conexión con la base de datos (SQLite) */
+/**
+ * Conexiones con la base de datos (SQLite en modo WAL).
+ * Una sola conexión de escritura (conn: INSERT/UPDATE, transacciones de BATCH, esquema, checkpoint) y un pool
+ * de -Dtelemed.db.readers conexiones de solo lectura (PRAGMA query_only) para las consultas de los DAO
+ * (list..., get...).
+ * En WAL los lectores no esperan al escritor ni entre ellos: cada uno ve lo último confirmado al empezar
+ * su consulta. Con readers=0 (por defecto) todo va por la conexión de escritura, como antes.
+ */
 
 public class DatabaseManager {
     private static final String URL = "jdbc:sqlite:telemedicina.db"; // antigua ruta del fichero .db en la raíz
     private static Connection conn;
     private static final String DB_NAME = "telemedicina.db";// fichero .db en la raíz
 
+    // Cuántos hilos pueden usar la conexión a la vez. El driver de SQLite entra en código nativo y
+    // sincroniza sobre la conexión: con hilos virtuales eso "clava" el carrier thread, así que los que
+    // esperan lo hacen aquí (Semaphore, sin clavar) y no dentro del driver.
+    private static final Semaphore permits = new Semaphore(ServerConfig.DB_MAX_CONCURRENT, true);
+
+    // Lectores libres (la última devuelta sale primero: su caché de páginas está caliente) y un permiso por lector
+    private static final ConcurrentLinkedDeque<Connection> readers = new ConcurrentLinkedDeque<>();
+    private static final Semaphore readerPermits = new Semaphore(0, true);
+    private static volatile int readerCount = 0;
+
+    // Lo que tiene cogido cada hilo: un DAO puede llamar a otro DAO y reutiliza la misma conexión
+    private static final class Held {
+        int depth;
+        Connection conn;
+        boolean reader;
+    }
+    private static final ThreadLocal<Held> held = ThreadLocal.withInitial(Held::new);
+
+    /**
+     * Permiso para usar una conexión: la de escritura (acquire) o una de lectura (read). Se usa con
+     * try-with-resources en los DAO:
+     * try (DatabaseManager.Lease db = DatabaseManager.read("PatientDAO.getById"); PreparedStatement ps = db.prepareStatement(sql))
+     * Si lleva nombre, al cerrarlo se graba en Metrics cuánto tiempo se tuvo la conexión y, si hay una
+     * grabación JFR activa, un evento telemed.DbQuery con la espera y las filas (rows()).
+     */
+    public static final class Lease implements AutoCloseable {
+        private boolean closed = false;
+        private final String operation;
+        private final long acquiredAt;
+        private final TraceEvents.DbQueryEvent trace;
+        private final Connection conn;
+
+        private Lease(String operation, TraceEvents.DbQueryEvent trace, Connection conn) {
+            this.operation = operation;
+            this.acquiredAt = operation != null ? System.nanoTime() : 0;
+            this.trace = trace;
+            this.conn = conn;
+        }
+
+        // Filas devueltas o modificadas, para el evento JFR telemed.DbQuery (opcional)
+        public void rows(int n) {
+            trace.rows = n;
+        }
+
+        public Connection connection() { return conn; }
+
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return conn.prepareStatement(sql);
+        }
+
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            return conn.prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (operation != null) {
+                Metrics.dao(operation).record(System.nanoTime() - acquiredAt, true);
+                if (trace.shouldCommit()) {
+                    trace.query = operation;
+                    trace.commit();
+                }
+            }
+            release(held.get());
+        }
+    }
+
+    /**
+     * Transacción sobre la conexión de escritura (acción BATCH). Coge TODOS sus permisos: mientras dure nadie
+     * más escribe, así que las sentencias de otros hilos no se cuelan dentro. Los DAO llamados desde este hilo,
+     * también los de lectura, reutilizan esa conexión (held) y ven lo escrito dentro de la transacción.
+     * Los lectores de otros hilos siguen leyendo lo confirmado antes.
+     * Si se cierra sin commit(), se deshace todo.
+     * try (DatabaseManager.Transaction tx = DatabaseManager.begin("Protocol.batch")) { ...; tx.commit(); }
+     */
+    public static final class Transaction implements AutoCloseable {
+        private final String operation;
+        private final long startedAt = System.nanoTime();
+        private boolean finished = false;
+        private boolean committed = false;
+
+        private Transaction(String operation) {
+            this.operation = operation;
+        }
+
+        // Punto de vuelta para deshacer solo una parte (un elemento del BATCH en modo best-effort)
+        public Savepoint savepoint() throws SQLException {
+            return conn.setSavepoint();
+        }
+
+        public void rollbackTo(Savepoint savepoint) throws SQLException {
+            conn.rollback(savepoint);
+        }
+
+        public void commit() throws SQLException {
+            conn.commit();
+            finished = true;
+            committed = true;
+        }
+
+        public void rollback() throws SQLException {
+            finished = true;
+            conn.rollback();
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!finished) {
+                    finished = true;
+                    conn.rollback();
+                }
+            } catch (SQLException e) {
+                System.err.println("[DB] Rollback error: " + e.getMessage());
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.err.println("[DB] Could not restore autocommit: " + e.getMessage());
+                }
+                Held h = held.get();
+                h.depth--;
+                h.conn = null;
+                permits.release(ServerConfig.DB_MAX_CONCURRENT);
+                Metrics.dao(operation).record(System.nanoTime() - startedAt, committed);
+            }
+        }
+    }
+
+    /**
+     * Abre una transacción (ver Transaction). No se puede llamar con un Lease ya cogido en este hilo.
+     */
+    public static Transaction begin(String operation) throws SQLException {
+        Held h = held.get();
+        if (h.depth != 0) {
+            throw new IllegalStateException("Transaction started while holding a DB lease");
+        }
+        long start = System.nanoTime();
+        permits.acquireUninterruptibly(ServerConfig.DB_MAX_CONCURRENT);
+        Metrics.recordDbWait(System.nanoTime() - start);
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException e) {
+            permits.release(ServerConfig.DB_MAX_CONCURRENT);
+            throw e;
+        }
+        h.depth++;
+        h.conn = conn;
+        h.reader = false;
+        return new Transaction(operation);
+    }
+
+    // Espera (sin bloquear el carrier si es un hilo virtual) hasta poder usar la conexión de escritura
+    public static Lease acquire() {
+        return acquire(null);
+    }
+
+    /**
+     * Igual, con el nombre del método DAO para las métricas ("stats" / "DB connection wait").
+     * Para INSERT/UPDATE/DELETE; las consultas van por read().
+     */
+    public static Lease acquire(String operation) {
+        Held h = held.get();
+        // El intervalo JFR empieza antes de esperar: en la traza se ve la espera dentro de la consulta
+        TraceEvents.DbQueryEvent trace = new TraceEvents.DbQueryEvent();
+        trace.begin();
+        if (h.depth == 0) {
+            long start = System.nanoTime();
+            permits.acquireUninterruptibly();
+            trace.connectionWait = System.nanoTime() - start;
+            Metrics.recordDbWait(trace.connectionWait);
+            h.conn = conn;
+            h.reader = false;
+        } else if (h.reader) {
+            throw new IllegalStateException("DB write while holding a read-only connection");
+        }
+        h.depth++;
+        return new Lease(operation, trace, h.conn);
+    }
+
+    /**
+     * Conexión de solo lectura del pool para una consulta (list*, get*). Si este hilo ya tiene una conexión
+     * (un DAO dentro de otro, o dentro de un BATCH) se reutiliza esa; sin pool (readers=0) es acquire().
+     * La espera por un lector libre va a Metrics ("DB reader wait").
+     */
+    public static Lease read(String operation) {
+        Held h = held.get();
+        if (readerCount == 0 || (h.depth > 0 && !h.reader)) {
+            return acquire(operation);
+        }
+        TraceEvents.DbQueryEvent trace = new TraceEvents.DbQueryEvent();
+        trace.begin();
+        if (h.depth == 0) {
+            long start = System.nanoTime();
+            readerPermits.acquireUninterruptibly();
+            trace.connectionWait = System.nanoTime() - start;
+            Metrics.recordDbReadWait(trace.connectionWait);
+            h.conn = readers.pollFirst(); // hay permiso, así que hay una libre
+            h.reader = true;
+        }
+        h.depth++;
+        return new Lease(operation, trace, h.conn);
+    }
+
+    // Como acquire(), pero sin esperar más de timeoutMillis; null si no se consiguió (apagado)
+    public static Lease tryAcquire(long timeoutMillis) {
+        Held h = held.get();
+        if (h.depth == 0) {
+            try {
+                if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            h.conn = conn;
+            h.reader = false;
+        } else if (h.reader) {
+            throw new IllegalStateException("DB write while holding a read-only connection");
+        }
+        h.depth++;
+        return new Lease(null, new TraceEvents.DbQueryEvent(), h.conn);
+    }
+
+    // Último Lease del hilo cerrado: la conexión vuelve a su pool
+    private static void release(Held h) {
+        if (--h.depth > 0) return;
+        Connection c = h.conn;
+        h.conn = null;
+        if (h.reader) {
+            if (readerCount == 0) { // close() ya vació el pool: esta se cierra aquí
+                try {
+                    c.close();
+                } catch (SQLException ignored) {}
+                return;
+            }
+            readers.offerFirst(c);
+            readerPermits.release();
+        } else {
+            permits.release();
+        }
+    }
+
+    // Lectores en uso ahora mismo, para la consola
+    public static String report() {
+        return String.format(java.util.Locale.ROOT, "db connections: writer=1 readers=%d idle=%d%n",
+                readerCount, readerPermits.availablePermits());
+    }
+
     // Construye la URL de la BD buscando telemedicina.db hacia arriba en el árbol de carpetas
     private static String buildDbUrl() throws URISyntaxException {
+        // Ruta explícita (-Dtelemed.db.path=...), útil para pruebas de carga con una BD aparte
+        if (ServerConfig.DB_PATH != null) {
+            File explicit = new File(ServerConfig.DB_PATH);
+            System.out.println("[DB] Using database at: " + explicit.getAbsolutePath());
+            return "jdbc:sqlite:" + explicit.getAbsolutePath();
+        }
+
         // Desde dónde se están ejecutando las clases / el JAR
         File codeSource = new File(
                 DatabaseManager.class
@@ -84,6 +355,7 @@ public class DatabaseManager {
                     s.execute("PRAGMA busy_timeout = 5000;"); // bloqueo de 5s
                 }
                 createTables(); // crea tablas al abrir la conexión
+                openReaders(url); // después: los lectores ya ven el esquema y el WAL activado
             }
         } catch (SQLException e) {
             System.err.println("[DB] Connection error: " + e.getMessage());
@@ -92,11 +364,63 @@ public class DatabaseManager {
         }
     }
 
-    // Devuelve la conexión actual, si está abierta o no
+    // Pool de lectura: conexiones normales con PRAGMA query_only (un INSERT por error falla, no escribe)
+    private static void openReaders(String url) throws SQLException {
+        for (int i = 0; i < ServerConfig.DB_READERS; i++) {
+            Connection reader = DriverManager.getConnection(url);
+            try (Statement s = reader.createStatement()) {
+                s.execute("PRAGMA query_only = ON;");
+                s.execute("PRAGMA busy_timeout = 5000;");
+            }
+            readers.offerFirst(reader);
+        }
+        readerCount = ServerConfig.DB_READERS;
+        readerPermits.release(readerCount);
+        if (readerCount > 0) {
+            System.out.println("[DB] Opened " + readerCount + " read-only connections");
+        }
+    }
+
+    // Devuelve la conexión de escritura, si está abierta o no
     public static Connection get() { return conn; }
 
-    // Cierra la conexión si está abierta
+    /**
+     * Vuelca el WAL a la BD y lo deja vacío (PRAGMA wal_checkpoint(TRUNCATE)), para que el siguiente
+     * arranque no tenga que reproducirlo. Espera como mucho timeoutMillis a que la conexión quede libre.
+     */
+    public static boolean checkpoint(long timeoutMillis) {
+        if (conn == null) return false;
+        try (Lease db = tryAcquire(timeoutMillis)) {
+            if (db == null) {
+                System.err.println("[DB] WAL checkpoint skipped: connection still busy");
+                return false;
+            }
+            try (Statement st = db.connection().createStatement();
+                 ResultSet rs = st.executeQuery("PRAGMA wal_checkpoint(TRUNCATE);")) {
+                if (rs.next()) {
+                    // busy = 1 si otra conexión impidió terminarlo; log/checkpointed en páginas
+                    System.out.printf("[DB] WAL checkpoint: busy=%d log=%d checkpointed=%d%n",
+                            rs.getInt(1), rs.getInt(2), rs.getInt(3));
+                    return rs.getInt(1) == 0;
+                }
+                return true;
+            }
+        } catch (SQLException e) {
+            System.err.println("[DB] WAL checkpoint error: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Cierra las conexiones si están abiertas (los lectores en uso no se esperan: se está apagando)
     public static void close() {
+        readerPermits.drainPermits();
+        readerCount = 0; // read() vuelve a ir por la conexión de escritura
+        Connection reader;
+        while ((reader = readers.pollFirst()) != null) {
+            try {
+                reader.close();
+            } catch (SQLException ignored) {}
+        }
         try {
             if (conn != null && !conn.isClosed()) {
                 conn.close();
@@ -168,15 +492,25 @@ public class DatabaseManager {
   );""";
 
         String idxEmail = "CREATE INDEX IF NOT EXISTS idx_patients_email ON patients(email);";
-        String idxSymPt = "CREATE INDEX IF NOT EXISTS idx_symptoms_pid ON symptoms(patient_id);";
-        String idxMeaPt = "CREATE INDEX IF NOT EXISTS idx_measurements_pid ON measurements(patient_id);";
         String idxDoctorEmail = "CREATE INDEX IF NOT EXISTS idx_doctors_email ON doctors(email);";
-        String idxAppDoctor   = "CREATE INDEX IF NOT EXISTS idx_appointments_did ON appointments(doctor_id);";
-        String idxAppPatient  = "CREATE INDEX IF NOT EXISTS idx_appointments_pid ON appointments(patient_id);";
-        String idxMsgDoctor  = "CREATE INDEX IF NOT EXISTS idx_messages_did ON messages(doctor_id);";
         String idxMsgPatient = "CREATE INDEX IF NOT EXISTS idx_messages_pid ON messages(patient_id);";
         String idxMsgTime    = "CREATE INDEX IF NOT EXISTS idx_messages_ts  ON messages(timestamp);";
 
+        // Índices compuestos para los listados paginados (filtro + orden (fecha, id) de cada consulta):
+        // la página sale del índice ya ordenada, sin leer todo el historial ni ordenarlo.
+        // Sustituyen a los de una sola columna, que eran su prefijo.
+        String idxSymPage = "CREATE INDEX IF NOT EXISTS idx_symptoms_pid_ts ON symptoms(patient_id, timestamp, id);";
+        String idxMeaPage = "CREATE INDEX IF NOT EXISTS idx_measurements_pid_started ON measurements(patient_id, started_at, id);";
+        String idxAppPage = "CREATE INDEX IF NOT EXISTS idx_appointments_pid_dt ON appointments(patient_id, datetime, id);";
+        String idxAppDocPage = "CREATE INDEX IF NOT EXISTS idx_appointments_did_dt ON appointments(doctor_id, datetime, id);";
+        String idxMsgPage = "CREATE INDEX IF NOT EXISTS idx_messages_conv_ts ON messages(doctor_id, patient_id, timestamp, id);";
+        // Sincronización incremental (sinceMessageId / sinceAppointmentId): id > ? dentro del mismo dueño
+        String idxMsgSince = "CREATE INDEX IF NOT EXISTS idx_messages_conv_id ON messages(doctor_id, patient_id, id);";
+        String idxAppSince = "CREATE INDEX IF NOT EXISTS idx_appointments_did_id ON appointments(doctor_id, id);";
+        String idxAppPatSince = "CREATE INDEX IF NOT EXISTS idx_appointments_pid_id ON appointments(patient_id, id);";
+        String[] replaced = {"idx_symptoms_pid", "idx_measurements_pid", "idx_appointments_pid",
+                "idx_appointments_did", "idx_messages_did"};
+
         try (Statement st = conn.createStatement()) {
             //Create tables
             st.execute(patients);
@@ -187,14 +521,20 @@ public class DatabaseManager {
             st.execute(messages);
             //Create indexes
             st.execute(idxEmail);
-            st.execute(idxSymPt);
-            st.execute(idxMeaPt);
             st.execute(idxDoctorEmail);
-            st.execute(idxAppDoctor);
-            st.execute(idxAppPatient);
-            st.execute(idxMsgDoctor);
             st.execute(idxMsgPatient);
             st.execute(idxMsgTime);
+            st.execute(idxSymPage);
+            st.execute(idxMeaPage);
+            st.execute(idxAppPage);
+            st.execute(idxAppDocPage);
+            st.execute(idxMsgPage);
+            st.execute(idxMsgSince);
+            st.execute(idxAppSince);
+            st.execute(idxAppPatSince);
+            for (String index : replaced) {
+                st.execute("DROP INDEX IF EXISTS " + index + ";");
+            }
 
         } catch (SQLException e) {
             System.err.println("[DB] Schema error: " + e.getMessage());
@@ -9,79 +9,75 @@ import java.sql.*;
 
 public class DoctorDAO {
 
-    // 1. REGISTRAR DOCTOR: Inserta un nuevo doctor en la base de datos
-    public static boolean register(String name, String surname, String email, String pwd, String phone) {
-
-        // La sentencia SQL para la inserción.
+    // 1. REGISTRAR DOCTOR: inserta y devuelve el doctor ya construido con el id generado (null si falla)
+    public static Doctor insert(String name, String surname, String email, String pwd, String phone) {
         String sql = "INSERT INTO doctors(name,surname,email,password,phone) VALUES(?,?,?,?,?)";
 
-        // Uso de try-with-resources para asegurar el cierre automático del PreparedStatement.
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-
-            // Asigna los valores a los placeholders (?) de la consulta SQL.
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("DoctorDAO.insert");
+             PreparedStatement ps = db.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setString(1, name);
             ps.setString(2, surname);
             ps.setString(3, email);
-            ps.setString(4, pwd); // Nota: En un sistema real, 'pwd' debe ser hasheado (como en tu Encryption.java)
+            ps.setString(4, pwd);
             ps.setString(5, phone);
 
-            // Ejecuta la consulta (INSERT)
-            ps.executeUpdate();
-            return true;
+            int updated = ps.executeUpdate();
+            db.rows(updated);
+            if (updated == 0) return null;
+
+            // Los datos son los que acabamos de insertar: no hace falta volver a leer la fila
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) {
+                    return new Doctor(rs.getInt(1), name, surname, phone, email,
+                            new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+                }
+            }
         } catch (SQLException e) {
-            // Captura errores SQL. Verifica si el email es duplicado (restricción UNIQUE en la DB).
             if (e.getMessage() != null && e.getMessage().contains("UNIQUE")) {
                 System.err.println("[DB] Doctor email already registered: " + email);
             } else {
                 System.err.println("[DB] Doctor register error: " + e.getMessage());
             }
-            return false;
         }
+        return null;
     }
 
-    // 2. VALIDAR LOGIN: Comprueba si las credenciales coinciden
-    public static boolean validateLogin(String email, String password) {
-
-        // La consulta busca cualquier fila que coincida con el email y la contraseña.
-        String sql = "SELECT 1 FROM doctors WHERE email=? AND password=?";
+    // 2. LOGIN EN UNA CONSULTA: valida y devuelve el doctor a la vez (null si las credenciales no coinciden)
+    public static Doctor login(String email, String password) {
+        String sql = "SELECT id, name, surname, email, phone FROM doctors WHERE email=? AND password=?";
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.login");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setString(1, email);
             ps.setString(2, password);
-
-            // Ejecuta la consulta (SELECT)
             ResultSet rs = ps.executeQuery();
-
-            // rs.next() devuelve true si se encontró al menos una fila (login exitoso).
-            return rs.next();
+            if (rs.next()) {
+                db.rows(1);
+                return new Doctor(
+                        rs.getInt("id"),
+                        rs.getString("name"),
+                        rs.getString("surname"),
+                        rs.getString("phone"),
+                        rs.getString("email"),
+                        new ArrayList<>(),
+                        new ArrayList<>(),
+                        new ArrayList<>()
+                );
+            }
         } catch (SQLException e) {
             System.err.println("[DB] Doctor login error: " + e.getMessage());
-            return false;
         }
+        return null;
     }
 
-    // 3. OBTENER ID: Devuelve el ID del doctor por email (necesario después del login)
-    public static Integer getIdByEmail(String email) {
-        String sql = "SELECT id FROM doctors WHERE email = ?";
-
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setString(1, email);
-            ResultSet rs = ps.executeQuery();
-
-            // Si rs.next() es true, devuelve el valor entero de la primera columna (el ID).
-            return rs.next() ? rs.getInt(1) : null;
-        } catch (SQLException e) {
-            System.err.println("[DB] Doctor getIdByEmail error: " + e.getMessage());
-            return null;
-        }
-    }
     public static List<Patient> getPatientsByDoctorId(int doctorId) {
         // Consulta SQL: Selecciona todos los campos (*) de la tabla patients
         // DONDE el campo doctor_id sea igual al ID del doctor proporcionado.
         String sql = "SELECT * FROM patients WHERE doctor_id = ?";
         List<Patient> patients = new ArrayList<>();
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.getPatientsByDoctorId");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, doctorId); // Asigna el ID del doctor a la consulta
             ResultSet rs = ps.executeQuery(); // Ejecuta la consulta
 
@@ -104,6 +100,7 @@ public class DoctorDAO {
                 );
                 patients.add(patient);
             }
+            db.rows(patients.size());
         } catch (SQLException e) {
             System.err.println("[DB] Error getting patients by doctor ID: " + e.getMessage());
         }
@@ -117,7 +114,8 @@ public class DoctorDAO {
         String sql = "SELECT id, name, surname, email FROM doctors";
         List<Doctor> doctorsList = new ArrayList<>();
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.getAllDoctors");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ResultSet rs = ps.executeQuery();
 
             while (rs.next()) {
@@ -134,6 +132,7 @@ public class DoctorDAO {
                 );
                 doctorsList.add(doctor);
             }
+            db.rows(doctorsList.size());
         } catch (SQLException e) {
             System.err.println("[DB] Error getting all doctors: " + e.getMessage());
         }
@@ -143,7 +142,8 @@ public class DoctorDAO {
     // Obtener un doctor por su ID
     public static Doctor getDoctorById(int id) {
         String sql = "SELECT id, name, surname, email, phone FROM doctors WHERE id = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.getDoctorById");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, id);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
@@ -167,7 +167,8 @@ public class DoctorDAO {
     // Obtener un doctor por su email
     public static Doctor getDoctorByEmail(String email) {
         String sql = "SELECT id, name, surname, email, phone FROM doctors WHERE email = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.getDoctorByEmail");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setString(1, email);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
@@ -191,7 +192,8 @@ public class DoctorDAO {
     // Obtener un doctor por su nombre (solo como último recurso)
     public static Doctor getDoctorByName(String name) {
         String sql = "SELECT id, name, surname, email, phone FROM doctors WHERE name = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("DoctorDAO.getDoctorByName");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setString(1, name);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
@@ -40,12 +40,13 @@ public class MeasurementDAO {
     // Inserta metadatos de una medición (ECG/EDA)
     public static boolean insertMeta(int patientId, String type, String startedAt, String filePath) {
         String sql = "INSERT INTO measurements(patient_id, type, started_at, file_path) VALUES (?,?,?,?)";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("MeasurementDAO.insertMeta");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, patientId);
             ps.setString(2, type);
             ps.setString(3, startedAt);
             ps.setString(4, filePath);
-            ps.executeUpdate();
+            db.rows(ps.executeUpdate());
             return true;
         } catch (SQLException e) {
             System.err.println("[DB] Measurement insert error: " + e.getMessage());
@@ -55,17 +56,39 @@ public class MeasurementDAO {
 
     // Lista las mediciones de un paciente (solo metadatos, no los valores del CSV)
     public static List<MeasurementMeta> listByPatientId(int patientId) {
+        return listByPatientId(patientId, 0, null).items();
+    }
+
+    /**
+     * Una página de las mediciones de un paciente (más recientes primero). limit 0 = todas;
+     * after = cursor de la página anterior o null para empezar.
+     */
+    public static Page<MeasurementMeta> listByPatientId(int patientId, int limit, Page.Cursor after) {
         String sql = "SELECT id, type, started_at, file_path " +
                 "FROM measurements " +
                 "WHERE patient_id = ? " +
-                "ORDER BY started_at DESC, id DESC";
+                (after != null ? "AND (started_at, id) < (?, ?) " : "") +
+                "ORDER BY started_at DESC, id DESC LIMIT ?";
 
         List<MeasurementMeta> result = new ArrayList<>();
-
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setInt(1, patientId);
+        String nextCursor = null;
+
+        try (DatabaseManager.Lease db = DatabaseManager.read("MeasurementDAO.listByPatientId");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            int i = 1;
+            ps.setInt(i++, patientId);
+            if (after != null) {
+                ps.setString(i++, after.key());
+                ps.setInt(i++, after.id());
+            }
+            ps.setInt(i, Page.sqlLimit(limit));
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
+                    if (limit > 0 && result.size() == limit) { // la fila de más: hay otra página
+                        MeasurementMeta last = result.get(result.size() - 1);
+                        nextCursor = Page.encode(last.getStartedAt(), last.getId());
+                        break;
+                    }
                     MeasurementMeta m = new MeasurementMeta(
                             rs.getInt("id"),
                             rs.getString("type"),
@@ -75,11 +98,12 @@ public class MeasurementDAO {
                     result.add(m);
                 }
             }
+            db.rows(result.size());
         } catch (SQLException e) {
             System.err.println("[DB] Measurement list error: " + e.getMessage());
         }
 
-        return result;
+        return new Page<>(result, nextCursor);
     }
 
     // Obtiene los metadatos de una medición por su ID
@@ -87,7 +111,8 @@ public class MeasurementDAO {
         String sql = "SELECT id, type, started_at, file_path " +
                 "FROM measurements WHERE id = ?";
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("MeasurementDAO.getById");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, measurementId);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
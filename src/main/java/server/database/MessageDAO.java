@@ -38,7 +38,8 @@ public class MessageDAO {
                                  String senderRole, String timestamp, String text) {
         String sql = "INSERT INTO messages(doctor_id, patient_id, sender_role, timestamp, text) " +
                 "VALUES (?,?,?,?,?)";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("MessageDAO.insert");
+             PreparedStatement ps = db.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setInt(1, doctorId);
             ps.setInt(2, patientId);
             ps.setString(3, senderRole);
@@ -46,6 +47,7 @@ public class MessageDAO {
             ps.setString(5, text);
 
             int updated = ps.executeUpdate();
+            db.rows(updated);
             if (updated == 0) return null;
 
             try (ResultSet rs = ps.getGeneratedKeys()) {
@@ -62,18 +64,83 @@ public class MessageDAO {
      * ordenados por timestamp ascendente (lo típico en un chat).
      */
     public static List<MessageMeta> listConversation(int doctorId, int patientId) {
+        return listConversation(doctorId, patientId, 0, null).items();
+    }
+
+    /**
+     * Una página de la conversación, en el mismo orden (timestamp, id) ascendente.
+     * limit 0 = todos; after = cursor de la página anterior o null para empezar.
+     */
+    public static Page<MessageMeta> listConversation(int doctorId, int patientId, int limit, Page.Cursor after) {
         String sql = """
           SELECT id, doctor_id, patient_id, sender_role, timestamp, text
           FROM messages
           WHERE doctor_id = ? AND patient_id = ?
+          """ + (after != null ? "  AND (timestamp, id) > (?, ?)\n" : "") + """
           ORDER BY timestamp ASC, id ASC
+          LIMIT ?
+          """;
+
+        List<MessageMeta> result = new ArrayList<>();
+        String nextCursor = null;
+
+        try (DatabaseManager.Lease db = DatabaseManager.read("MessageDAO.listConversation");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            int i = 1;
+            ps.setInt(i++, doctorId);
+            ps.setInt(i++, patientId);
+            if (after != null) {
+                ps.setString(i++, after.key());
+                ps.setInt(i++, after.id());
+            }
+            ps.setInt(i, Page.sqlLimit(limit));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (limit > 0 && result.size() == limit) { // la fila de más: hay otra página
+                        MessageMeta last = result.get(result.size() - 1);
+                        nextCursor = Page.encode(last.getTimestamp(), last.getId());
+                        break;
+                    }
+                    result.add(new MessageMeta(
+                            rs.getInt("id"),
+                            rs.getInt("doctor_id"),
+                            rs.getInt("patient_id"),
+                            rs.getString("sender_role"),
+                            rs.getString("timestamp"),
+                            rs.getString("text")
+                    ));
+                }
+            }
+            db.rows(result.size());
+        } catch (SQLException e) {
+            System.err.println("[DB] Message listConversation error: " + e.getMessage());
+        }
+        return new Page<>(result, nextCursor);
+    }
+
+    /**
+     * Solo los mensajes con id mayor que sinceId (los que el cliente aún no tiene), por id ascendente.
+     * El id es autoincremental, así que ese orden es también el de llegada. Es un salto directo en el
+     * índice (doctor_id, patient_id, id): cuesta lo que ocupen los mensajes nuevos, no la conversación.
+     * limit 0 = todos.
+     */
+    public static List<MessageMeta> listConversationSince(int doctorId, int patientId, int sinceId, int limit) {
+        String sql = """
+          SELECT id, doctor_id, patient_id, sender_role, timestamp, text
+          FROM messages
+          WHERE doctor_id = ? AND patient_id = ? AND id > ?
+          ORDER BY id ASC
+          LIMIT ?
           """;
 
         List<MessageMeta> result = new ArrayList<>();
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("MessageDAO.listConversationSince");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, doctorId);
             ps.setInt(2, patientId);
+            ps.setInt(3, sinceId);
+            ps.setInt(4, limit > 0 ? limit : -1);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     result.add(new MessageMeta(
@@ -86,8 +153,9 @@ public class MessageDAO {
                     ));
                 }
             }
+            db.rows(result.size());
         } catch (SQLException e) {
-            System.err.println("[DB] Message listConversation error: " + e.getMessage());
+            System.err.println("[DB] Message listConversationSince error: " + e.getMessage());
         }
         return result;
     }
@@ -0,0 +1,43 @@
+package server.database;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Una página de un listado con paginación por clave (keyset): los elementos y el cursor para pedir
+ * la siguiente (null si ya no hay más).
+ *
+ * El cursor es la clave de orden de la última fila devuelta, (fecha, id), en Base64 para que el cliente
+ * lo trate como opaco. La siguiente página empieza justo después de esa fila con un WHERE (fecha, id) > (?, ?)
+ * que usa el índice compuesto: cuesta lo mismo la página 1 que la 100, y no se salta ni repite filas
+ * aunque entren otras nuevas mientras tanto (con OFFSET sí pasaría).
+ */
+public record Page<T>(List<T> items, String nextCursor) {
+
+    // Posición dentro del orden (fecha, id): la última fila ya entregada
+    public record Cursor(String key, int id) {}
+
+    public static String encode(String key, int id) {
+        String raw = id + ":" + (key != null ? key : "");
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Null si el texto no es un cursor nuestro
+    public static Cursor decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int colon = raw.indexOf(':');
+            if (colon <= 0) return null;
+            return new Cursor(raw.substring(colon + 1), Integer.parseInt(raw.substring(0, colon)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Valor del LIMIT: una fila de más para saber si hay otra página; -1 = sin límite en SQLite
+    static int sqlLimit(int limit) {
+        return limit > 0 ? limit + 1 : -1;
+    }
+}
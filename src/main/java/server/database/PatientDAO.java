@@ -10,32 +10,18 @@ import java.util.List;
 
 public class PatientDAO { // crear paciente en la base de datos
 
-    private static Integer getDoctorIdByName(String doctorName) {
-        String sql = "SELECT id FROM doctors WHERE name = ?";
-
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setString(1, doctorName);
-            ResultSet rs = ps.executeQuery();
-
-            if (rs.next()) {
-                return rs.getInt("id"); // doctor encontrado
-            }
-            return null; // doctor NO encontrado
-
-        } catch (SQLException e) {
-            System.err.println("[DB] Doctor lookup error: " + e.getMessage());
-            return null;
-        }
-    }
-
-    // Inserta paciente
-    public static boolean registerPatient(String name, String surname, String email, String pwd,
-                                          String dob, String sex, String phone, int doctorId) {
-
+    /**
+     * Inserta el paciente y lo devuelve ya construido: el id sale de getGeneratedKeys() y el resto son los
+     * mismos valores insertados, sin volver a leer la fila (antes eran tres consultas: insert, id por email y fila).
+     * @return el paciente con su doctor, o null si falla (p.ej. email repetido)
+     */
+    public static Patient insert(String name, String surname, String email, String pwd,
+                                 String dob, String sex, String phone, Doctor doctor) {
         String sql = "INSERT INTO patients(name,surname,email,password,dob,sex,phone,doctor_id) " +
                 "VALUES(?,?,?,?,?,?,?,?)";
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("PatientDAO.insert");
+             PreparedStatement ps = db.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             ps.setString(1, name);
             ps.setString(2, surname);
             ps.setString(3, email);
@@ -43,39 +29,114 @@ public class PatientDAO { // crear paciente en la base de datos
             ps.setString(5, dob);
             ps.setString(6, sex);
             ps.setString(7, phone);
-            ps.setInt(8, doctorId);
+            ps.setInt(8, doctor.getId());
 
-            ps.executeUpdate();
-            return true;
+            int updated = ps.executeUpdate();
+            db.rows(updated);
+            if (updated == 0) return null;
 
+            try (ResultSet rs = ps.getGeneratedKeys()) {
+                if (rs.next()) {
+                    return new Patient(rs.getInt(1), name, surname, email, toSex(sex), phone, dob,
+                            new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), doctor, new ArrayList<>());
+                }
+            }
         } catch (SQLException e) {
             if (e.getMessage() != null && e.getMessage().contains("UNIQUE")) {
                 System.err.println("[DB] Email already registered: " + email);
             } else {
                 System.err.println("[DB] Register error: " + e.getMessage());
             }
-            return false;
         }
+        return null;
     }
 
-    // Valida credenciales del paciente (email+password)
-    public static boolean validateLogin(String email, String password) {
-        String sql = "SELECT 1 FROM patients WHERE email=? AND password=?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+    /**
+     * LOGIN en una sola consulta: comprueba email+password y trae la fila del paciente con las columnas de
+     * su doctor (LEFT JOIN). Antes eran cuatro: validar, id por email, fila del paciente y fila del doctor.
+     * @return el paciente (con doctor, o doctor null si ya no tiene), o null si las credenciales no coinciden
+     */
+    public static Patient login(String email, String password) {
+        String sql = """
+                SELECT p.id, p.name, p.surname, p.email, p.dob, p.sex, p.phone,
+                       d.id AS d_id, d.name AS d_name, d.surname AS d_surname, d.email AS d_email, d.phone AS d_phone
+                FROM patients p LEFT JOIN doctors d ON d.id = p.doctor_id
+                WHERE p.email = ? AND p.password = ?""";
+        try (DatabaseManager.Lease db = DatabaseManager.read("PatientDAO.login");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setString(1, email);
             ps.setString(2, password);
-            return ps.executeQuery().next();
+            ResultSet rs = ps.executeQuery();
+            if (!rs.next()) return null;
+
+            int doctorId = rs.getInt("d_id");
+            Doctor d = rs.wasNull() ? null : new Doctor(
+                    doctorId,
+                    rs.getString("d_name"),
+                    rs.getString("d_surname"),
+                    rs.getString("d_phone"),
+                    rs.getString("d_email"),
+                    new ArrayList<>(),
+                    new ArrayList<>(),
+                    new ArrayList<>()
+            );
+            db.rows(1);
+            return new Patient(
+                    rs.getInt("id"),
+                    rs.getString("name"),
+                    rs.getString("surname"),
+                    rs.getString("email"),
+                    toSex(rs.getString("sex")),
+                    rs.getString("phone"),
+                    rs.getString("dob"),
+                    new ArrayList<>(),   // appointments
+                    new ArrayList<>(),   // measurements
+                    new ArrayList<>(),   // symptoms
+                    d,
+                    new ArrayList<>()    // messages
+            );
         } catch (SQLException e) {
             System.err.println("[DB] Login error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // ¿Es este paciente de este doctor? (sesión de doctor pidiendo datos de un paciente)
+    public static boolean isPatientOf(int patientId, int doctorId) {
+        String sql = "SELECT 1 FROM patients WHERE id = ? AND doctor_id = ?";
+        try (DatabaseManager.Lease db = DatabaseManager.read("PatientDAO.isPatientOf");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            ps.setInt(1, patientId);
+            ps.setInt(2, doctorId);
+            return ps.executeQuery().next();
+        } catch (SQLException e) {
+            System.err.println("[DB] isPatientOf error: " + e.getMessage());
             return false;
         }
     }
 
-    // Devuelve id del paciente por email
+    // Ids de los pacientes de un doctor (la caché de su sesión, ver Sessions)
+    public static List<Integer> listIdsByDoctorId(int doctorId) {
+        String sql = "SELECT id FROM patients WHERE doctor_id = ?";
+        List<Integer> ids = new ArrayList<>();
+        try (DatabaseManager.Lease db = DatabaseManager.read("PatientDAO.listIdsByDoctorId");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            ps.setInt(1, doctorId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                ids.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            System.err.println("[DB] listIdsByDoctorId error: " + e.getMessage());
+        }
+        return ids;
+    }
 
+    // Devuelve id del paciente por email
     public static Integer getIdByEmail(String email) {
         String sql = "SELECT id FROM patients WHERE email = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("PatientDAO.getIdByEmail");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setString(1, email);
             ResultSet rs = ps.executeQuery();
             return rs.next() ? rs.getInt(1) : null;
@@ -85,54 +146,14 @@ public class PatientDAO { // crear paciente en la base de datos
         }
     }
 
-    public static Patient getPatientById(int id) {
-        String sql = "SELECT id, name, surname, email, dob, sex, phone, doctor_id FROM patients WHERE id = ?";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setInt(1, id);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                int patientId      = rs.getInt("id");
-                String name        = rs.getString("name");
-                String surname     = rs.getString("surname");
-                String email       = rs.getString("email");
-                String dob         = rs.getString("dob");          // o conviertes a LocalDate si lo usas así
-                String sexString   = rs.getString("sex");
-                String phone       = rs.getString("phone");
-                int doctorId       = rs.getInt("doctor_id");
-                Doctor d = DoctorDAO.getDoctorById(doctorId);
-
-                Sex sex = null;
-                if (sexString != null) {
-                    try {
-                        sex = Sex.valueOf(sexString.toUpperCase());
-                    } catch (IllegalArgumentException e) {
-                        System.err.println("[DB] Unknown sex value in DB: " + sexString);
-                    }
-                }
-
-                Patient p = new Patient(
-                        patientId,
-                        name,
-                        surname,
-                        email,
-                        sex,
-                        phone,
-                        dob,
-                        new ArrayList<>(),   // appointments
-                        new ArrayList<>(),   // measurements
-                        new ArrayList<>(),   // symptoms
-                        d,                // doctor (puedes cargarlo con DoctorDAO.getDoctorById(doctorId) si quieres)
-                        new ArrayList<>()    // messages
-                );
-
-                return p;
-            }
-        } catch (SQLException e) {
-            System.err.println("[DB] getPatientById error: " + e.getMessage());
+    private static Sex toSex(String sexString) {
+        if (sexString == null) return null;
+        try {
+            return Sex.valueOf(sexString.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[DB] Unknown sex value in DB: " + sexString);
+            return null;
         }
-        return null;
     }
 
-
-
 }
\ No newline at end of file
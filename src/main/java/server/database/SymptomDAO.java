@@ -12,11 +12,12 @@ public class SymptomDAO {
 
     public static boolean insertSymptom(int patientId, String description) {
         String sql = "INSERT INTO symptoms(patient_id,description,timestamp) VALUES(?,?,?)";
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("SymptomDAO.insertSymptom");
+             PreparedStatement ps = db.prepareStatement(sql)) {
             ps.setInt(1, patientId);
             ps.setString(2, description);
             ps.setString(3, LocalDateTime.now().toString());
-            ps.executeUpdate();
+            db.rows(ps.executeUpdate());
             return true;
         } catch (SQLException e) {
             System.err.println("[DB] Symptom insert error: " + e.getMessage());
@@ -25,31 +26,56 @@ public class SymptomDAO {
     }
     //Obtiene todos los síntomas reportados por un paciente específico (por patient_id).
     public static List<Symptoms> getSymptomsByPatientId(int patientId) {
+        return getSymptomsByPatientId(patientId, 0, null).items();
+    }
+
+    /**
+     * Una página de los síntomas de un paciente, por orden cronológico (timestamp, id).
+     * limit 0 = todos; after = cursor de la página anterior o null para empezar.
+     */
+    public static Page<Symptoms> getSymptomsByPatientId(int patientId, int limit, Page.Cursor after) {
         // Consulta SQL: Selecciona todos los campos de la tabla symptoms
         // donde el patient_id coincida con el ID proporcionado.
-        String sql = "SELECT * FROM symptoms WHERE patient_id = ?";
+        String sql = "SELECT * FROM symptoms WHERE patient_id = ? " +
+                (after != null ? "AND (timestamp, id) > (?, ?) " : "") +
+                "ORDER BY timestamp ASC, id ASC LIMIT ?";
         List<Symptoms> symptomsList = new ArrayList<>();
+        String nextCursor = null;
 
-        try (PreparedStatement ps = DatabaseManager.get().prepareStatement(sql)) {
-            ps.setInt(1, patientId); // Asigna el ID del paciente a la consulta
+        try (DatabaseManager.Lease db = DatabaseManager.read("SymptomDAO.getSymptomsByPatientId");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            int i = 1;
+            ps.setInt(i++, patientId); // Asigna el ID del paciente a la consulta
+            if (after != null) {
+                ps.setString(i++, after.key());
+                ps.setInt(i++, after.id());
+            }
+            ps.setInt(i, Page.sqlLimit(limit));
             ResultSet rs = ps.executeQuery(); // Ejecuta la consulta
 
             // Itera sobre cada síntoma encontrado
+            String lastTimestamp = null; // tal cual está en la BD, para el cursor
             while (rs.next()) {
+                if (limit > 0 && symptomsList.size() == limit) { // la fila de más: hay otra página
+                    nextCursor = Page.encode(lastTimestamp, symptomsList.get(symptomsList.size() - 1).getId());
+                    break;
+                }
+                lastTimestamp = rs.getString("timestamp");
                 // Crea un objeto Symptoms a partir de los datos de la fila actual
                 Symptoms symptom = new Symptoms(
                         rs.getInt("id"),
                         rs.getString("description"),
                         // Convierte el String "timestamp" de la DB a LocalDateTime de Java
-                        LocalDateTime.parse(rs.getString("timestamp")),
+                        LocalDateTime.parse(lastTimestamp),
                         // El objeto Patient es null o un placeholder; se requiere en el POJO Symptoms.
                         new Patient()
                 );
                 symptomsList.add(symptom);
             }
+            db.rows(symptomsList.size());
         } catch (SQLException e) {
             System.err.println("[DB] Error getting symptoms by patient ID: " + e.getMessage());
         }
-        return symptomsList; // Devuelve la lista de objetos Symptoms
+        return new Page<>(symptomsList, nextCursor); // Devuelve la página de objetos Symptoms
     }
 }
\ No newline at end of file
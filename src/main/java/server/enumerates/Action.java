@@ -4,5 +4,8 @@ public enum Action {
     REGISTER_PATIENT, REGISTER_DOCTOR, LOGIN, SEND_MESSAGE,
     REQUEST_APPOINTMENT, LIST_APPOINTMENTS, LIST_MEASUREMENTS,
     LIST_SYMPTOMS, SEND_MEASUREMENT, SEND_SYMPTOMS, LIST_MESSAGES,
-    LIST_DOCTORS, GET_MEASUREMENT_VALUES
+    LIST_DOCTORS, LIST_PATIENTS, GET_MEASUREMENT_VALUES, HELLO,
+    SUBSCRIBE, UNSUBSCRIBE, DOWNLOAD_MEASUREMENT_RAW,
+    BEGIN_MEASUREMENT, MEASUREMENT_CHUNK, END_MEASUREMENT,
+    BATCH, RESUME_SESSION, LOGOUT
 }
@@ -2,5 +2,6 @@ package server.enumerates;
 
 public enum Status {
     All_RIGHT,
-    ERROR
+    ERROR,
+    BUSY // el servidor no admite la petición ahora: reintentar tras retryAfterMs
 }
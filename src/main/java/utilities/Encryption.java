@@ -22,8 +22,8 @@ public class Encryption {
 
     // PBKDF2 = Password-Based Key Derivation Function 2
 
-    private static final String ALGORITHM = "PBKDF2WithHmacSHA256"; // con el que estamos trabajando
-    private static final int ITERATIONS = 65536; // repeticiones para hacerlo lento (pero seguro), cuantas más iteraciones más dificil romperlo
+    public static final String ALGORITHM = "PBKDF2WithHmacSHA256"; // con el que estamos trabajando
+    public static final int ITERATIONS = 65536; // repeticiones para hacerlo lento (pero seguro), cuantas más iteraciones más dificil romperlo
     private static final int KEY_LENGTH = 256; // tamaño final del hash en bits (256 bits = 32 bytes = 64 hex chars)
 
     // Salt fija: mantiene compatibilidad con tu flujo actual
@@ -33,6 +33,7 @@ public class Encryption {
 
     public static String encryptPassword(String password) {
         // recibe la contraseña introducida y la transforma en un hash seguro.
+        // (el evento JFR telemed.PasswordHash lo graba PasswordHasher, en el hilo de la petición)
         try {
             PBEKeySpec spec = new PBEKeySpec(
                     password.toCharArray(), // contraseña
@@ -0,0 +1,66 @@
+package utilities;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cola circular acotada sin locks: muchos hilos escriben (offer) y uno solo lee (poll).
+ * Si está llena, offer devuelve false en vez de esperar.
+ * Cada hueco lleva un número de secuencia que dice si está libre para el productor o listo para el consumidor.
+ */
+public class RingBuffer<T> {
+
+    private final int mask;
+    private final AtomicReferenceArray<T> items;
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong(); // siguiente posición a escribir (productores)
+    private long head = 0;                            // siguiente posición a leer (un único consumidor)
+
+    // capacity se redondea a la siguiente potencia de 2
+    public RingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.items = new AtomicReferenceArray<>(size);
+        this.sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequence.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Intenta encolar; false si no queda sitio
+    public boolean offer(T item) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequence.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items.set(index, item);
+                    sequence.set(index, pos + 1); // publicado: ya lo puede leer el consumidor
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // el consumidor no ha liberado este hueco todavía: lleno
+            }
+            // otro productor se adelantó: reintentamos con la nueva posición
+        }
+    }
+
+    // Solo desde el hilo consumidor; null si está vacía
+    public T poll() {
+        int index = (int) (head & mask);
+        if (sequence.get(index) != head + 1) {
+            return null;
+        }
+        T item = items.get(index);
+        items.set(index, null);
+        sequence.set(index, head + mask + 1); // libre para la siguiente vuelta
+        head++;
+        return item;
+    }
+}
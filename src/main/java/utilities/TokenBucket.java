@@ -0,0 +1,50 @@
+package utilities;
+
+/**
+ * Cubo de fichas para limitar ritmo: se rellena a 'ratePerSecond' fichas por segundo hasta 'burst'.
+ * Cada operación gasta una ficha; si no hay, se dice cuánto falta para la siguiente.
+ */
+public class TokenBucket {
+
+    private final double ratePerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst; // empieza lleno
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Intenta gastar una ficha. Devuelve 0 si se pudo, o los nanosegundos que faltan para que haya una.
+     */
+    public synchronized long tryTake() {
+        refill(System.nanoTime());
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return 0;
+        }
+        return (long) Math.ceil((1.0 - tokens) / ratePerNano);
+    }
+
+    // Devuelve una ficha (la operación no llegó a hacerse porque la rechazó otro límite)
+    public synchronized void giveBack() {
+        tokens = Math.min(burst, tokens + 1.0);
+    }
+
+    // Lleno y sin uso: se puede descartar sin cambiar el comportamiento
+    public synchronized boolean isIdle() {
+        refill(System.nanoTime());
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package utilities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Eventos propios para Java Flight Recorder. Cada uno es un intervalo (begin / commit) en el hilo que
+ * atiende la petición, así que en JMC salen anidados: telemed.Request contiene sus telemed.DbQuery,
+ * telemed.FileIo y telemed.PasswordHash, y se ve en qué se fue el tiempo de una petición lenta.
+ *
+ * Si no hay ninguna grabación activa, crear y "commitear" un evento no cuesta casi nada (el JIT lo quita).
+ * La grabación se arranca y para desde la consola ("jfr start [fichero]", "jfr stop", "jfr status"),
+ * o con -XX:StartFlightRecording como siempre.
+ */
+public class TraceEvents {
+
+    private static final String CATEGORY = "Telemedicine";
+
+    @Name("telemed.Request")
+    @Label("Request")
+    @Category(CATEGORY)
+    @Description("One protocol request, from parsing to the serialized response")
+    @StackTrace(false)
+    public static final class RequestEvent extends Event {
+        @Label("Action")
+        public String action;
+        @Label("Request Id")
+        public String requestId;
+        @Label("Bytes In")
+        @DataAmount
+        public long bytesIn;
+        @Label("Bytes Out")
+        @DataAmount
+        public long bytesOut;
+        @Label("Status")
+        public String status;
+    }
+
+    @Name("telemed.DbQuery")
+    @Label("DB Query")
+    @Category(CATEGORY)
+    @Description("A DAO method holding the shared SQLite connection")
+    @StackTrace(false)
+    public static final class DbQueryEvent extends Event {
+        @Label("Query")
+        @Description("DAO method that ran the SQL, e.g. PatientDAO.login")
+        public String query;
+        @Label("Rows")
+        public int rows = -1;
+        @Label("Connection Wait")
+        @Timespan
+        public long connectionWait;
+    }
+
+    @Name("telemed.FileIo")
+    @Label("Signal File I/O")
+    @Category(CATEGORY)
+    @Description("A DataStorage read or write of a signal CSV, lock wait included")
+    @StackTrace(false)
+    public static final class FileIoEvent extends Event {
+        @Label("Operation")
+        public String operation;
+        @Label("Path")
+        public String path;
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+        @Label("Lock Wait")
+        @Timespan
+        public long lockWait;
+    }
+
+    @Name("telemed.PasswordHash")
+    @Label("Password Hash")
+    @Category(CATEGORY)
+    @Description("PBKDF2 over a password (register and login), as seen by the request: hash pool queue wait included")
+    @StackTrace(false)
+    public static final class PasswordHashEvent extends Event {
+        @Label("Algorithm")
+        public String algorithm;
+        @Label("Iterations")
+        public int iterations;
+        @Label("Queue Wait")
+        @Timespan
+        public long queueWait;
+        @Label("Rejected")
+        @Description("Hash queue full: the request was answered BUSY")
+        public boolean rejected;
+    }
+
+    private static Recording recording;
+    private static Path destination;
+
+    /**
+     * Arranca una grabación con la configuración "default" de la JVM más los eventos telemed.*
+     * (todos, sin umbral). Devuelve el mensaje para la consola.
+     */
+    public static synchronized String start(String file) {
+        if (recording != null && recording.getState() == RecordingState.RUNNING) {
+            return "JFR recording already running (" + destination + ")";
+        }
+        try {
+            Recording r = new Recording(Configuration.getConfiguration("default"));
+            for (Class<? extends Event> type : List.of(RequestEvent.class, DbQueryEvent.class,
+                    FileIoEvent.class, PasswordHashEvent.class)) {
+                r.enable(type).withThreshold(Duration.ZERO);
+            }
+            r.setName("telemed");
+            r.setToDisk(true);
+            destination = Paths.get(file != null ? file
+                    : "telemed-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")) + ".jfr")
+                    .toAbsolutePath();
+            r.start();
+            recording = r;
+            return "JFR recording started; will be written to " + destination;
+        } catch (Exception e) {
+            return "Could not start JFR recording: " + e.getMessage();
+        }
+    }
+
+    // Para la grabación y la vuelca al fichero indicado en start()
+    public static synchronized String stop() {
+        if (recording == null) {
+            return "No JFR recording running";
+        }
+        Recording r = recording;
+        recording = null;
+        try {
+            r.stop();
+            r.dump(destination);
+            return String.format(Locale.ROOT, "JFR recording written to %s (%.1f KB)", destination, r.getSize() / 1024.0);
+        } catch (IOException e) {
+            return "Could not write JFR recording: " + e.getMessage();
+        } finally {
+            r.close();
+        }
+    }
+
+    public static synchronized boolean isRecording() {
+        return recording != null;
+    }
+
+    public static synchronized String status() {
+        if (recording == null) {
+            return "No JFR recording running";
+        }
+        return "JFR recording " + recording.getState().name().toLowerCase(Locale.ROOT)
+                + " since " + recording.getStartTime() + " -> " + destination;
+    }
+}
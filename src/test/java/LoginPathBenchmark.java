@@ -0,0 +1,159 @@
+import pojos.Doctor;
+import server.database.DatabaseManager;
+import server.database.DoctorDAO;
+import server.database.PatientDAO;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Comparación (NO es un test de JUnit): la parte de BD de LOGIN y REGISTER_PATIENT con las consultas
+ * de antes (validar + id por email + fila del paciente + fila del doctor; insert + id por email + filas)
+ * frente a las fusionadas (PatientDAO.login con JOIN; PatientDAO.insert con la clave generada).
+ * Las consultas de antes ya no están en los DAO: abajo hay una copia tal cual eran (camino "before").
+ * Se salta el PBKDF2 (igual en los dos caminos) para que solo cuente la BD, con N hilos a la vez.
+ *
+ * Escribe en la BD: mejor con una copia, -Dtelemed.db.path=/tmp/bench.db
+ * Uso: java -cp target/classes:target/test-classes:<deps> LoginPathBenchmark [hilos] [operaciones]
+ */
+public class LoginPathBenchmark {
+
+    private static final String HASH = "bench-hash"; // valor fijo: aquí no se mide el hash
+
+    public static void main(String[] args) throws Exception {
+        int threads    = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        DatabaseManager.connect();
+        String run = Long.toString(System.nanoTime(), 36);
+        Doctor doctor = DoctorDAO.insert("Bench", "Doctor", "bench-doc-" + run + "@x", HASH, "600");
+        String email = "bench-pat-" + run + "@x";
+        PatientDAO.insert("Bench", "Patient", email, HASH, "1990-01-01", "FEMALE", "600", doctor);
+        AtomicInteger seq = new AtomicInteger();
+
+        System.out.printf("%-22s %8s %9s %9s %9s%n", "path", "threads", "ops/s", "p50(ms)", "p99(ms)");
+        for (int round = 0; round < 2; round++) { // la primera vuelta calienta el JIT y la caché de SQLite
+            boolean print = round == 1;
+            measure("LOGIN 4 queries", threads, operations, print, i -> {
+                if (validCredentials(email, HASH)) {
+                    doctorRow(patientRow(idByEmail(email)));
+                }
+            });
+            measure("LOGIN 1 query", threads, operations, print, i -> {
+                if (PatientDAO.login(email, HASH) == null) throw new IllegalStateException("login failed");
+            });
+            int registrations = operations / 4;
+            measure("REGISTER 3 queries", threads, registrations, print, i -> {
+                String e = "bench-reg-" + run + "-" + seq.incrementAndGet() + "@x";
+                insertPatient(e, doctor.getId());
+                doctorRow(patientRow(idByEmail(e)));
+            });
+            measure("REGISTER 1 query", threads, registrations, print, i -> {
+                String e = "bench-reg-" + run + "-" + seq.incrementAndGet() + "@x";
+                PatientDAO.insert("R", "P", e, HASH, "1990-01-01", "MALE", "600", doctor);
+            });
+        }
+        DatabaseManager.close();
+    }
+
+    // ------------------------- CONSULTAS DE ANTES -------------------------
+    // Una conexión y una consulta por llamada, como hacían validateLogin, getIdByEmail, getPatientById,
+    // getDoctorById y registerPatient (las filas se leen enteras aunque aquí solo se use un campo)
+
+    private static boolean validCredentials(String email, String password) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("before.validateLogin");
+             PreparedStatement ps = db.prepareStatement("SELECT 1 FROM patients WHERE email=? AND password=?")) {
+            ps.setString(1, email);
+            ps.setString(2, password);
+            return ps.executeQuery().next();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int idByEmail(String email) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("before.getIdByEmail");
+             PreparedStatement ps = db.prepareStatement("SELECT id FROM patients WHERE email = ?")) {
+            ps.setString(1, email);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // getPatientById: la fila del paciente; devuelve su doctor_id
+    private static int patientRow(int id) {
+        return row("SELECT doctor_id, name, surname, email, dob, sex, phone FROM patients WHERE id = ?", id);
+    }
+
+    // getDoctorById (que getPatientById hacía dentro)
+    private static void doctorRow(int id) {
+        row("SELECT id, name, surname, email, phone FROM doctors WHERE id = ?", id);
+    }
+
+    private static int row(String sql, int id) {
+        try (DatabaseManager.Lease db = DatabaseManager.read("before.getById");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            ps.setInt(1, id);
+            ResultSet rs = ps.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void insertPatient(String email, int doctorId) {
+        String sql = "INSERT INTO patients(name,surname,email,password,dob,sex,phone,doctor_id) VALUES(?,?,?,?,?,?,?,?)";
+        try (DatabaseManager.Lease db = DatabaseManager.acquire("before.registerPatient");
+             PreparedStatement ps = db.prepareStatement(sql)) {
+            ps.setString(1, "R");
+            ps.setString(2, "P");
+            ps.setString(3, email);
+            ps.setString(4, HASH);
+            ps.setString(5, "1990-01-01");
+            ps.setString(6, "MALE");
+            ps.setString(7, "600");
+            ps.setInt(8, doctorId);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void measure(String name, int threads, int operations, boolean print, IntConsumer op)
+            throws Exception {
+        long[] latencies = new long[operations];
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            futures[t] = pool.submit(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < operations) {
+                    long t0 = System.nanoTime();
+                    op.accept(i);
+                    latencies[i] = System.nanoTime() - t0;
+                }
+                return null;
+            });
+        }
+        for (Future<?> f : futures) f.get();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        if (print) {
+            Arrays.sort(latencies);
+            System.out.printf("%-22s %8d %9.0f %9.3f %9.3f%n", name, threads, operations / seconds,
+                    latencies[operations / 2] / 1e6, latencies[(int) (operations * 0.99)] / 1e6);
+        }
+    }
+}
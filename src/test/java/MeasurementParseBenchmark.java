@@ -0,0 +1,84 @@
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import server.MeasurementParser;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Comparación (NO es un test de JUnit): parseo de un SEND_MEASUREMENT en JSON con el árbol de Gson
+ * (gson.fromJson + getAsInt() por muestra, como antes) frente a MeasurementParser (JsonReader -> int[]).
+ * Mide bytes reservados por petición (ThreadMXBean) y peticiones por segundo en un solo hilo.
+ *
+ * Uso: java -cp target/classes:target/test-classes:<deps> MeasurementParseBenchmark [muestras] [iteraciones]
+ */
+public class MeasurementParseBenchmark {
+
+    private static final Gson gson = new Gson();
+
+    public static void main(String[] args) {
+        int samples    = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+        String message = buildMessage(samples);
+
+        System.out.printf("message: %d samples, %.1f KB%n", samples, message.length() / 1024.0);
+        System.out.printf("%-8s %12s %12s %10s%n", "parser", "KB/request", "req/s", "MB/s");
+        for (int round = 0; round < 3; round++) { // la primera vuelta es calentamiento del JIT
+            boolean print = round == 2;
+            run("tree", message, iterations, print, MeasurementParseBenchmark::parseTree);
+            run("stream", message, iterations, print, MeasurementParseBenchmark::parseStream);
+        }
+    }
+
+    private interface Parser {
+        int parse(String message);
+    }
+
+    private static void run(String name, String message, int iterations, boolean print, Parser parser) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sink = 0;
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink += parser.parse(message);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        if (sink == 42) System.out.println(); // que el JIT no se salte el trabajo
+        if (print) {
+            System.out.printf("%-8s %12.1f %12.0f %10.1f%n", name, allocated / 1024.0 / iterations,
+                    iterations / seconds, (double) message.length() * iterations / seconds / (1024 * 1024));
+        }
+    }
+
+    // Lo que hacía Protocol antes: árbol completo y luego una pasada con getAsInt()
+    private static int parseTree(String message) {
+        JsonObject req = gson.fromJson(message, JsonObject.class);
+        JsonArray valuesArr = req.getAsJsonObject("payload").getAsJsonArray("values");
+        int[] values = new int[valuesArr.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = valuesArr.get(i).getAsInt();
+        }
+        return values[values.length - 1];
+    }
+
+    private static int parseStream(String message) {
+        MeasurementParser.Parsed parsed = MeasurementParser.tryParse(message);
+        return parsed.values()[parsed.count() - 1];
+    }
+
+    // Señal parecida a un ECG de BITalino (valores de 0 a 1023)
+    private static String buildMessage(int samples) {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder(samples * 5 + 200);
+        sb.append("{\"type\":\"REQUEST\",\"action\":\"SEND_MEASUREMENT\",\"requestId\":\"bench\",")
+          .append("\"payload\":{\"patientId\":22,\"type\":\"ECG\",\"date\":\"2025-11-20T10:00:00\",\"values\":[");
+        for (int i = 0; i < samples; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(512 + (int) (300 * Math.sin(i / 20.0)) + random.nextInt(20));
+        }
+        sb.append("]}}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,106 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ClientConnection;
+import server.Protocol;
+import server.database.DatabaseManager;
+import server.database.SymptomDAO;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolBatchTest {
+
+    private static final int PATIENT_ID = 22;
+
+    @BeforeAll
+    static void initDb() {
+        DatabaseManager.connect();
+    }
+
+    @Test
+    void testAllOrNothingRollsBackEverything() {
+        int before = SymptomDAO.getSymptomsByPatientId(PATIENT_ID).size();
+
+        JsonObject resp = batch("ALL_OR_NOTHING", symptom("s1", PATIENT_ID), symptom("s2", -1), symptom("s3", PATIENT_ID));
+        assertEquals("ERROR", resp.get("status").getAsString());
+
+        JsonObject payload = resp.getAsJsonObject("payload");
+        assertFalse(payload.get("committed").getAsBoolean());
+        JsonArray results = payload.getAsJsonArray("results");
+        assertEquals(3, results.size());
+        assertEquals("ROLLED_BACK", status(results, 0));
+        assertEquals("ERROR", status(results, 1));
+        assertEquals("SKIPPED", status(results, 2));
+
+        assertEquals(before, SymptomDAO.getSymptomsByPatientId(PATIENT_ID).size());
+    }
+
+    @Test
+    void testBestEffortKeepsTheRest() {
+        int before = SymptomDAO.getSymptomsByPatientId(PATIENT_ID).size();
+
+        JsonObject resp = batch("BEST_EFFORT", symptom("s1", PATIENT_ID), symptom("s2", -1), symptom("s3", PATIENT_ID));
+        assertEquals("OK", resp.get("status").getAsString());
+
+        JsonObject payload = resp.getAsJsonObject("payload");
+        assertTrue(payload.get("committed").getAsBoolean());
+        assertEquals(2, payload.get("succeeded").getAsInt());
+        assertEquals(1, payload.get("failed").getAsInt());
+        assertEquals("s3", payload.getAsJsonArray("results").get(2).getAsJsonObject().get("requestId").getAsString());
+
+        assertEquals(before + 2, SymptomDAO.getSymptomsByPatientId(PATIENT_ID).size());
+    }
+
+    @Test
+    void testActionNotAllowedInBatch() {
+        JsonObject resp = batch("ALL_OR_NOTHING", """
+        {"action":"LOGIN","requestId":"l1","payload":{}}""");
+        assertEquals("ERROR", resp.get("status").getAsString());
+    }
+
+    @Test
+    void testItemsSpendTheirOwnRateLimit() {
+        // 21 SEND_MEASUREMENT en un lote: más que la ráfaga de SIGNAL de una conexión (20) -> BUSY sin ejecutar nada
+        String measurement = """
+        {"action":"SEND_MEASUREMENT","requestId":"m","payload":{"patientId": -1,"type":"ECG","values":[1]}}""";
+        String request = """
+        {"type":"REQUEST","action":"BATCH","requestId":"b","payload":{"requests":[ %s ]}}
+        """.formatted(String.join(",", Collections.nCopies(21, measurement)));
+        JsonObject resp = JsonParser.parseString(Protocol.process(request, new StubConnection())).getAsJsonObject();
+        assertEquals("BUSY", resp.get("status").getAsString());
+    }
+
+    // Conexión sin socket: solo para los cubos de fichas de la conexión
+    private static final class StubConnection extends ClientConnection {
+        @Override public String remoteAddress() { return "/127.0.0.1:0"; }
+        @Override protected void abort() {}
+        @Override protected void write(ByteBuffer... data) {}
+        @Override protected void writeFile(ByteBuffer header, FileChannel file, long count) {}
+    }
+
+    private static String symptom(String requestId, int patientId) {
+        return """
+        {"action":"SEND_SYMPTOMS","requestId":"%s","payload":{"patientId": %d,"description":"Batch test"}}"""
+                .formatted(requestId, patientId);
+    }
+
+    private static JsonObject batch(String mode, String... requests) {
+        String response = Protocol.process("""
+        {
+          "type":"REQUEST","action":"BATCH","requestId":"b",
+          "payload":{ "mode":"%s", "requests":[ %s ] }
+        }
+        """.formatted(mode, String.join(",", requests)));
+        return JsonParser.parseString(response).getAsJsonObject();
+    }
+
+    private static String status(JsonArray results, int i) {
+        return results.get(i).getAsJsonObject().get("status").getAsString();
+    }
+}
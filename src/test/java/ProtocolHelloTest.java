@@ -0,0 +1,90 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import server.FrameCodec;
+import server.Protocol;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolHelloTest {
+
+    @Test
+    void testHelloWithoutConnectionStaysOnLines() {
+        String response = Protocol.process("""
+        {
+          "type":"REQUEST","action":"HELLO","requestId":"h1",
+          "payload":{ "framing":"LENGTH_PREFIXED", "binarySamples":true }
+        }
+        """);
+
+        JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+        assertEquals("OK", json.get("status").getAsString());
+        assertEquals("HELLO", json.get("action").getAsString());
+        assertEquals("h1", json.get("requestId").getAsString());
+
+        // sin conexión (como aquí) no hay transporte que cambiar
+        JsonObject payload = json.getAsJsonObject("payload");
+        assertEquals("LINES", payload.get("framing").getAsString());
+        assertFalse(payload.get("binarySamples").getAsBoolean());
+        assertEquals(2, payload.getAsJsonArray("sampleFormats").size());
+        assertEquals("NONE", payload.get("compression").getAsString());
+    }
+
+    @Test
+    void testBinaryFrameRoundTrip() throws Exception {
+        int[] samples = {523, -120, 350, 70000};
+        FrameCodec.SampleFormat format = FrameCodec.SampleFormat.fitting(samples);
+        assertEquals(FrameCodec.SampleFormat.INT32LE, format);
+
+        ByteBuffer frame = FrameCodec.encodeBinary("{\"action\":\"SEND_MEASUREMENT\"}", samples, format);
+        int length = frame.getInt(0);
+        assertEquals(frame.remaining() - 4, length);
+
+        FrameCodec.Inbound decoded = FrameCodec.decode(frame.array(), 4, length);
+        assertEquals("{\"action\":\"SEND_MEASUREMENT\"}", decoded.json());
+        assertArrayEquals(samples, decoded.samples());
+
+        // con valores pequeños basta con int16
+        int[] small = {1, -2, 3};
+        ByteBuffer small16 = FrameCodec.encodeBinary("{}", small, FrameCodec.SampleFormat.fitting(small));
+        FrameCodec.Inbound back = FrameCodec.decode(small16.array(), 4, small16.getInt(0));
+        assertArrayEquals(small, back.samples());
+    }
+
+    @Test
+    void testCompressedFramesShareOneStream() throws Exception {
+        Deflater deflater = new Deflater(6, true);
+        Inflater inflater = new Inflater(true);
+        String json = "{\"action\":\"GET_MEASUREMENT_VALUES\",\"values\":[" + "523,120,350,".repeat(500) + "0]}";
+
+        // dos tramas seguidas por el mismo flujo: la segunda aprovecha el diccionario de la primera
+        ByteBuffer first = FrameCodec.compress(FrameCodec.encodeJson(json), deflater);
+        ByteBuffer second = FrameCodec.compress(FrameCodec.encodeJson(json), deflater);
+        assertTrue(first.remaining() < json.length() / 10);
+        assertTrue(second.remaining() <= first.remaining());
+        assertEquals(FrameCodec.FLAG_COMPRESSED, first.get(5) & FrameCodec.FLAG_COMPRESSED);
+
+        assertEquals(json, FrameCodec.decode(first.array(), 4, first.getInt(0), inflater).json());
+        assertEquals(json, FrameCodec.decode(second.array(), 4, second.getInt(0), inflater).json());
+
+        // sin compresión negociada no se acepta una trama comprimida
+        ByteBuffer third = FrameCodec.compress(FrameCodec.encodeJson(json), deflater);
+        assertThrows(java.io.IOException.class, () -> FrameCodec.decode(third.array(), 4, third.getInt(0)));
+        deflater.end();
+        inflater.end();
+    }
+
+    @Test
+    void testBinaryBodyRejectedForOtherActions() {
+        String response = Protocol.processBinary(
+                "{\"action\":\"LIST_DOCTORS\",\"requestId\":\"b1\"}", new int[]{1, 2}, null);
+
+        JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+        assertEquals("ERROR", json.get("status").getAsString());
+        assertEquals("b1", json.get("requestId").getAsString());
+    }
+}
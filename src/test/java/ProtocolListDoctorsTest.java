@@ -54,4 +54,29 @@ public class ProtocolListDoctorsTest {
         JsonArray arr = jo.getAsJsonObject("payload").getAsJsonArray("doctors");
         assertTrue(arr.size() >= 2);
     }
+
+    @Test
+    void listDoctors_seesNewDoctorAfterCaching() {
+        String request = """
+        {"type":"REQUEST","action":"LIST_DOCTORS","requestId":"c1","payload":{}}
+        """;
+        Protocol.process(request); // deja la lista en caché
+
+        String email = "ldcache" + System.nanoTime() + "@test.com";
+        String dreg = Protocol.process("""
+        {
+          "type":"REQUEST","action":"REGISTER_DOCTOR","requestId":"c2",
+          "payload":{"name":"Cache","surname":"Doc","email":"%s","password":"1","phone":"333"}
+        }
+        """.formatted(email));
+        assertEquals("OK", JsonParser.parseString(dreg).getAsJsonObject().get("status").getAsString());
+
+        JsonArray arr = JsonParser.parseString(Protocol.process(request)).getAsJsonObject()
+                .getAsJsonObject("payload").getAsJsonArray("doctors");
+        boolean found = false;
+        for (JsonElement d : arr) {
+            found |= email.equals(d.getAsJsonObject().get("email").getAsString());
+        }
+        assertTrue(found, "LIST_DOCTORS must include a doctor registered after it was cached");
+    }
 }
@@ -71,4 +71,23 @@ public class ProtocolLoginFailTest {
         assertEquals("ERROR", jo.get("status").getAsString());
         assertEquals("LOGIN", jo.get("action").getAsString());
     }
+
+    @Test
+    void loginThrottled_afterRepeatedFailures() {
+        // Los primeros fallos dan ERROR; después la cuenta queda frenada y LOGIN responde BUSY sin hacer hash
+        JsonObject jo = null;
+        for (int i = 0; i < 10; i++) {
+            String loginResp = Protocol.process("""
+            {
+              "type":"REQUEST","action":"LOGIN","requestId":"t%d",
+              "payload":{"username":"throttle@test.com","password":"wrong"}
+            }
+            """.formatted(i));
+            jo = JsonParser.parseString(loginResp).getAsJsonObject();
+            if (!"ERROR".equals(jo.get("status").getAsString())) break;
+        }
+
+        assertEquals("BUSY", jo.get("status").getAsString());
+        assertTrue(jo.getAsJsonObject("payload").get("retryAfterMs").getAsLong() > 0);
+    }
 }
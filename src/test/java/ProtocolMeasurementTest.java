@@ -93,4 +93,70 @@ public class ProtocolMeasurementTest {
         assertTrue(content.contains("120"));
         assertTrue(content.contains("350"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testListMeasurementsNotModifiedUntilNewMeasurement() {
+        int pid = 22;
+        JsonObject first = listMeasurements(pid, null);
+        assertEquals("OK", first.get("status").getAsString());
+        String version = first.getAsJsonObject("payload").get("version").getAsString();
+
+        // Misma versión: respuesta corta, sin lista
+        JsonObject same = listMeasurements(pid, version);
+        assertEquals("NOT_MODIFIED", same.get("status").getAsString());
+        assertFalse(same.getAsJsonObject("payload").has("measurements"));
+
+        Protocol.process("""
+        {
+          "type":"REQUEST","action":"SEND_MEASUREMENT","requestId":"v2",
+          "payload":{ "patientId": %d, "type": "ECG", "date": "2025-11-21T10:00:00", "values": [1, 2, 3] }
+        }
+        """.formatted(pid));
+
+        // Una medición nueva cambia la versión: vuelve la lista completa
+        JsonObject changed = listMeasurements(pid, version);
+        assertEquals("OK", changed.get("status").getAsString());
+        assertNotEquals(version, changed.getAsJsonObject("payload").get("version").getAsString());
+    }
+
+    @Test
+    void testNextPageWithFirstPageVersionIsNotNotModified() {
+        int pid = 22;
+        for (int i = 0; i < 2; i++) {
+            Protocol.process("""
+            {
+              "type":"REQUEST","action":"SEND_MEASUREMENT","requestId":"p%d",
+              "payload":{ "patientId": %d, "type": "ECG", "date": "2025-11-22T10:00:0%d", "values": [4, 5, 6] }
+            }
+            """.formatted(i, pid, i));
+        }
+        JsonObject page1 = listMeasurements(pid, null, 1, null);
+        assertEquals("OK", page1.get("status").getAsString());
+        String version = page1.getAsJsonObject("payload").get("version").getAsString();
+        String cursor = page1.getAsJsonObject("payload").get("nextCursor").getAsString();
+
+        // La misma página con su versión sí es NOT_MODIFIED
+        assertEquals("NOT_MODIFIED", listMeasurements(pid, version, 1, null).get("status").getAsString());
+
+        // La página 2 con la versión de la 1: tiene que llegar la página
+        JsonObject page2 = listMeasurements(pid, version, 1, cursor);
+        assertEquals("OK", page2.get("status").getAsString());
+        assertEquals(1, page2.getAsJsonObject("payload").getAsJsonArray("measurements").size());
+    }
+
+    private static JsonObject listMeasurements(int pid, String ifVersion) {
+        return listMeasurements(pid, ifVersion, 0, null);
+    }
+
+    private static JsonObject listMeasurements(int pid, String ifVersion, int limit, String cursor) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("patientId", pid);
+        if (ifVersion != null) payload.addProperty("ifVersion", ifVersion);
+        if (limit > 0) payload.addProperty("limit", limit);
+        if (cursor != null) payload.addProperty("cursor", cursor);
+        String response = Protocol.process("""
+        {"type":"REQUEST","action":"LIST_MEASUREMENTS","requestId":"v","payload":%s}
+        """.formatted(payload));
+        return JsonParser.parseString(response).getAsJsonObject();
+    }
+}
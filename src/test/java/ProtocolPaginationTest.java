@@ -0,0 +1,98 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.Protocol;
+import server.database.DatabaseManager;
+import server.database.DoctorDAO;
+import server.database.MessageDAO;
+import server.database.SymptomDAO;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolPaginationTest {
+
+    private static final int PATIENT_ID = 22;
+
+    @BeforeAll
+    static void initDb() {
+        DatabaseManager.connect();
+        for (int i = 0; i < 5; i++) {
+            SymptomDAO.insertSymptom(PATIENT_ID, "Pagination test " + i);
+        }
+    }
+
+    @Test
+    void testPagesCoverTheWholeList() {
+        List<Integer> all = ids(listSymptoms(null, null).getAsJsonArray("symptoms"));
+        assertTrue(all.size() >= 5);
+
+        List<Integer> paged = new ArrayList<>();
+        String cursor = null;
+        do {
+            JsonObject payload = listSymptoms(2, cursor);
+            JsonArray page = payload.getAsJsonArray("symptoms");
+            assertTrue(page.size() <= 2);
+            paged.addAll(ids(page));
+            cursor = payload.has("nextCursor") ? payload.get("nextCursor").getAsString() : null;
+        } while (cursor != null);
+
+        assertEquals(all, paged);
+    }
+
+    @Test
+    void testSinceMessageIdReturnsOnlyNewMessages() {
+        int doctorId = DoctorDAO.getAllDoctors().get(0).getId();
+        int first = MessageDAO.insert(doctorId, PATIENT_ID, "PATIENT", "2025-11-20T10:00:00", "Since test 1");
+        int second = MessageDAO.insert(doctorId, PATIENT_ID, "DOCTOR", "2025-11-20T10:01:00", "Since test 2");
+
+        String response = Protocol.process("""
+        {"type":"REQUEST","action":"LIST_MESSAGES","requestId":"s","payload":{"doctorId":%d,"patientId":%d,"sinceMessageId":%d}}
+        """.formatted(doctorId, PATIENT_ID, first));
+        JsonObject payload = JsonParser.parseString(response).getAsJsonObject().getAsJsonObject("payload");
+
+        JsonArray messages = payload.getAsJsonArray("messages");
+        assertEquals(1, messages.size());
+        assertEquals(second, messages.get(0).getAsJsonObject().get("messageId").getAsInt());
+        assertEquals(second, payload.get("lastMessageId").getAsInt());
+    }
+
+    @Test
+    void testInvalidCursor() {
+        String response = Protocol.process("""
+        {"type":"REQUEST","action":"LIST_SYMPTOMS","requestId":"p","payload":{"patientId":%d,"cursor":"not-a-cursor"}}
+        """.formatted(PATIENT_ID));
+        JsonObject resp = JsonParser.parseString(response).getAsJsonObject();
+        assertEquals("ERROR", resp.get("status").getAsString());
+    }
+
+    private static JsonObject listSymptoms(Integer limit, String cursor) {
+        JsonObject payload = new JsonObject();
+        payload.addProperty("patientId", PATIENT_ID);
+        if (limit != null) payload.addProperty("limit", limit);
+        if (cursor != null) payload.addProperty("cursor", cursor);
+
+        JsonObject req = new JsonObject();
+        req.addProperty("type", "REQUEST");
+        req.addProperty("action", "LIST_SYMPTOMS");
+        req.addProperty("requestId", "p");
+        req.add("payload", payload);
+
+        JsonObject resp = JsonParser.parseString(Protocol.process(req.toString())).getAsJsonObject();
+        assertEquals("OK", resp.get("status").getAsString());
+        return resp.getAsJsonObject("payload");
+    }
+
+    private static List<Integer> ids(JsonArray symptoms) {
+        List<Integer> ids = new ArrayList<>();
+        for (JsonElement e : symptoms) {
+            ids.add(e.getAsJsonObject().get("symptomsId").getAsInt());
+        }
+        return ids;
+    }
+}
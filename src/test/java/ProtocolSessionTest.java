@@ -0,0 +1,156 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.ClientConnection;
+import server.Protocol;
+import server.database.DatabaseManager;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolSessionTest {
+
+    @BeforeAll
+    static void initDb() {
+        DatabaseManager.connect();
+    }
+
+    @Test
+    void loginToken_resumesUntilLogout() {
+        String email = "session" + System.nanoTime() + "@doc.com";
+        send("""
+        {
+          "type":"REQUEST","action":"REGISTER_DOCTOR","requestId":"1",
+          "payload":{"name":"Ses","surname":"Sion","email":"%s","password":"abc","phone":"111"}
+        }
+        """.formatted(email));
+
+        JsonObject login = send("""
+        {"type":"REQUEST","action":"LOGIN","requestId":"2","payload":{"username":"%s","password":"abc"}}
+        """.formatted(email));
+        assertEquals("OK", login.get("status").getAsString());
+        String token = login.getAsJsonObject("payload").get("token").getAsString();
+        int userId = login.getAsJsonObject("payload").get("userId").getAsInt();
+
+        // Reconectar: el token basta, sin contraseña
+        JsonObject resumed = resume(token);
+        assertEquals("OK", resumed.get("status").getAsString());
+        assertEquals("DOCTOR", resumed.getAsJsonObject("payload").get("role").getAsString());
+        assertEquals(userId, resumed.getAsJsonObject("payload").get("userId").getAsInt());
+
+        send("""
+        {"type":"REQUEST","action":"LOGOUT","requestId":"4","payload":{"token":"%s"}}
+        """.formatted(token));
+        assertEquals("ERROR", resume(token).get("status").getAsString());
+    }
+
+    @Test
+    void logout_detachesEveryConnectionOnTheToken() {
+        String email = "detach" + System.nanoTime() + "@doc.com";
+        send("""
+        {"type":"REQUEST","action":"REGISTER_DOCTOR","requestId":"1",
+         "payload":{"name":"De","surname":"Tach","email":"%s","password":"abc","phone":"111"}}
+        """.formatted(email));
+        StubConnection first = new StubConnection().register();
+        StubConnection second = new StubConnection().register();
+        try {
+            String token = login(email, first);
+            assertEquals("OK", send("""
+            {"type":"REQUEST","action":"RESUME_SESSION","requestId":"3","payload":{"token":"%s"}}
+            """.formatted(token), second).get("status").getAsString());
+
+            // LOGOUT por la primera: la segunda, atada al mismo token, también deja de estar autenticada
+            send("""
+            {"type":"REQUEST","action":"LOGOUT","requestId":"4","payload":{}}
+            """, first);
+            assertNull(first.userRole());
+            assertNull(second.userRole());
+        } finally {
+            first.unregister();
+            second.unregister();
+        }
+    }
+
+    @Test
+    void resume_unknownToken() {
+        assertEquals("ERROR", resume("session-nobody@test.com").get("status").getAsString());
+    }
+
+    @Test
+    void session_rejectsOtherRolesAndForeignPatients() {
+        String tag = String.valueOf(System.nanoTime());
+        String doctorEmail = "owner" + tag + "@doc.com";
+        int doctorId = send("""
+        {"type":"REQUEST","action":"REGISTER_DOCTOR","requestId":"1",
+         "payload":{"name":"Own","surname":"Er","email":"%s","password":"abc","phone":"111"}}
+        """.formatted(doctorEmail)).getAsJsonObject("payload").get("doctorId").getAsInt();
+        String patientEmail = "owned" + tag + "@pat.com";
+        int patientId = send("""
+        {"type":"REQUEST","action":"REGISTER_PATIENT","requestId":"2",
+         "payload":{"name":"Own","surname":"Ed","email":"%s","password":"abc","dob":"1990-01-01",
+                    "sex":"FEMALE","phone":"222","doctorId":%d}}
+        """.formatted(patientEmail, doctorId)).getAsJsonObject("payload").get("patientId").getAsInt();
+
+        // Paciente: LIST_PATIENTS es de doctores, aunque mande un doctorId cualquiera
+        ClientConnection patientConn = new StubConnection();
+        login(patientEmail, patientConn);
+        assertEquals("ERROR", send(list("LIST_PATIENTS", "doctorId", doctorId), patientConn).get("status").getAsString());
+
+        // Doctor: su paciente sí, uno de otro doctor no
+        ClientConnection doctorConn = new StubConnection();
+        login(doctorEmail, doctorConn);
+        assertEquals("OK", send(list("LIST_MEASUREMENTS", "patientId", patientId), doctorConn).get("status").getAsString());
+        assertEquals("ERROR", send(list("LIST_MEASUREMENTS", "patientId", 22), doctorConn).get("status").getAsString());
+
+        // Paciente registrado con la sesión ya abierta: también es suyo
+        int newPatientId = send("""
+        {"type":"REQUEST","action":"REGISTER_PATIENT","requestId":"7",
+         "payload":{"name":"New","surname":"Ed","email":"new%s@pat.com","password":"abc","dob":"1990-01-01",
+                    "sex":"MALE","phone":"333","doctorId":%d}}
+        """.formatted(tag, doctorId)).getAsJsonObject("payload").get("patientId").getAsInt();
+        assertEquals("OK", send(list("LIST_MEASUREMENTS", "patientId", newPatientId), doctorConn).get("status").getAsString());
+    }
+
+    private static String list(String action, String key, int id) {
+        return """
+        {"type":"REQUEST","action":"%s","requestId":"5","payload":{"%s":%d}}
+        """.formatted(action, key, id);
+    }
+
+    private static String login(String email, ClientConnection conn) {
+        JsonObject login = send("""
+        {"type":"REQUEST","action":"LOGIN","requestId":"6","payload":{"username":"%s","password":"abc"}}
+        """.formatted(email), conn);
+        assertEquals("OK", login.get("status").getAsString());
+        return login.getAsJsonObject("payload").get("token").getAsString();
+    }
+
+    // Conexión sin socket: solo para que LOGIN deje la sesión atada
+    private static final class StubConnection extends ClientConnection {
+        @Override public String remoteAddress() { return "/127.0.0.1:0"; }
+        @Override protected void abort() {}
+        @Override protected void write(ByteBuffer... data) {}
+        @Override protected void writeFile(ByteBuffer header, FileChannel file, long count) {}
+
+        // como hacen los transportes al aceptar y al cerrar la conexión
+        StubConnection register() { opened(); return this; }
+        void unregister() { closed(); }
+    }
+
+    private static JsonObject resume(String token) {
+        return send("""
+        {"type":"REQUEST","action":"RESUME_SESSION","requestId":"3","payload":{"token":"%s"}}
+        """.formatted(token));
+    }
+
+    private static JsonObject send(String request) {
+        return send(request, null);
+    }
+
+    private static JsonObject send(String request, ClientConnection conn) {
+        return JsonParser.parseString(Protocol.process(request, conn)).getAsJsonObject();
+    }
+}
@@ -0,0 +1,36 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import server.Protocol;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolSubscribeTest {
+
+    @Test
+    void testSubscribeNeedsLiveConnection() {
+        // Protocol.process sin conexión (como en las pruebas): no hay a dónde enviar los eventos
+        String response = Protocol.process("""
+        {
+          "type":"REQUEST","action":"SUBSCRIBE","requestId":"s1",
+          "payload":{ "topics":["MESSAGE"] }
+        }
+        """);
+
+        JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+        assertEquals("ERROR", json.get("status").getAsString());
+        assertEquals("SUBSCRIBE", json.get("action").getAsString());
+        assertEquals("s1", json.get("requestId").getAsString());
+    }
+
+    @Test
+    void testUnsubscribeIsAlwaysOk() {
+        String response = Protocol.process("""
+        { "type":"REQUEST","action":"UNSUBSCRIBE","requestId":"u1" }
+        """);
+
+        JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+        assertEquals("OK", json.get("status").getAsString());
+        assertEquals("UNSUBSCRIBE", json.get("action").getAsString());
+    }
+}
@@ -0,0 +1,80 @@
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import server.Protocol;
+import server.database.DatabaseManager;
+import server.database.MeasurementDAO;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolUploadTest {
+
+    private static final int PATIENT_ID = 22;
+
+    @BeforeAll
+    static void initDb() {
+        DatabaseManager.connect();
+    }
+
+    @Test
+    void testChunkedUploadStoresMetaOnlyAtEnd() {
+        int before = MeasurementDAO.listByPatientId(PATIENT_ID).size();
+
+        JsonObject begin = send("""
+        {
+          "type":"REQUEST","action":"BEGIN_MEASUREMENT","requestId":"b1",
+          "payload":{ "patientId": %d, "type":"ECG", "date":"2025-11-20T10:00:00" }
+        }
+        """.formatted(PATIENT_ID));
+        assertEquals("OK", begin.get("status").getAsString());
+        String uploadId = begin.getAsJsonObject("payload").get("uploadId").getAsString();
+        assertEquals(0, begin.getAsJsonObject("payload").get("offset").getAsLong());
+
+        assertEquals(3, chunk(uploadId, 0, "[523, 120, 350]").getAsJsonObject("payload").get("offset").getAsLong());
+
+        // trozo repetido en parte (se perdió la confirmación): solo se añade lo nuevo
+        assertEquals(4, chunk(uploadId, 2, "[350, 77]").getAsJsonObject("payload").get("offset").getAsLong());
+
+        // un hueco se rechaza y se dice desde dónde seguir
+        JsonObject gap = chunk(uploadId, 10, "[1]");
+        assertEquals("ERROR", gap.get("status").getAsString());
+        assertEquals(4, gap.getAsJsonObject("payload").get("offset").getAsLong());
+
+        // hasta END_MEASUREMENT la toma no existe en BD
+        assertEquals(before, MeasurementDAO.listByPatientId(PATIENT_ID).size());
+
+        JsonObject wrongTotal = end(uploadId, 5);
+        assertEquals("ERROR", wrongTotal.get("status").getAsString());
+
+        JsonObject end = end(uploadId, 4);
+        assertEquals("OK", end.get("status").getAsString());
+        assertEquals(4, end.getAsJsonObject("payload").get("totalSamples").getAsLong());
+        assertEquals(before + 1, MeasurementDAO.listByPatientId(PATIENT_ID).size());
+
+        // la sesión ya no existe
+        assertEquals("ERROR", chunk(uploadId, 4, "[1]").get("status").getAsString());
+    }
+
+    private static JsonObject chunk(String uploadId, long offset, String values) {
+        return send("""
+        {
+          "type":"REQUEST","action":"MEASUREMENT_CHUNK","requestId":"c",
+          "payload":{ "uploadId":"%s", "offset": %d, "values": %s }
+        }
+        """.formatted(uploadId, offset, values));
+    }
+
+    private static JsonObject end(String uploadId, long total) {
+        return send("""
+        {
+          "type":"REQUEST","action":"END_MEASUREMENT","requestId":"e",
+          "payload":{ "uploadId":"%s", "totalSamples": %d }
+        }
+        """.formatted(uploadId, total));
+    }
+
+    private static JsonObject send(String request) {
+        return JsonParser.parseString(Protocol.process(request)).getAsJsonObject();
+    }
+}
@@ -0,0 +1,123 @@
+import pojos.Doctor;
+import server.database.DatabaseManager;
+import server.database.DoctorDAO;
+import server.database.MeasurementDAO;
+import server.database.SymptomDAO;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Comparación (NO es un test de JUnit): lecturas por segundo de los DAO con N hilos, todo por la conexión
+ * de escritura (-Dtelemed.db.readers=0, como antes) frente al pool de lectores, mientras otro hilo inserta
+ * síntomas sin parar. Cada configuración corre en su propia JVM (ServerConfig se lee al arrancar).
+ *
+ * Escribe en la BD: mejor con una copia, -Dtelemed.db.path=/tmp/bench.db
+ * Uso: java -cp target/classes:target/test-classes:<deps> ReadScalingBenchmark [segundos] [hilosMax]
+ */
+public class ReadScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            child(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        int seconds    = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(8, Runtime.getRuntime().availableProcessors() * 2);
+        int pool = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        System.out.printf("cores=%d%n%-8s %8s %10s %9s %10s%n",
+                Runtime.getRuntime().availableProcessors(), "readers", "threads", "reads/s", "p99(ms)", "writes/s");
+        for (int readers : new int[]{0, pool}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                System.out.printf("%-8d %8d %s%n", readers, threads, run(readers, threads, seconds));
+            }
+        }
+    }
+
+    // Lanza una JVM hija con ese tamaño de pool y devuelve su línea de resultados
+    private static String run(int readers, int threads, int seconds) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> cmd = new ArrayList<>(List.of(java, "-Dtelemed.db.readers=" + readers));
+        if (System.getProperty("telemed.db.path") != null) {
+            cmd.add("-Dtelemed.db.path=" + System.getProperty("telemed.db.path"));
+        }
+        cmd.addAll(List.of("-cp", System.getProperty("java.class.path"), "ReadScalingBenchmark",
+                "--child", String.valueOf(threads), String.valueOf(seconds)));
+        Process child = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        String result = null;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(child.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (line.startsWith("RESULT ")) result = line.substring(7);
+            }
+        }
+        child.waitFor();
+        return result != null ? result : "failed";
+    }
+
+    private static void child(int threads, int seconds) throws Exception {
+        DatabaseManager.connect();
+        List<Doctor> doctors = DoctorDAO.getAllDoctors();
+        int doctorId = doctors.get(0).getId();
+        int patientId;
+        try (Statement st = DatabaseManager.get().createStatement();
+             ResultSet rs = st.executeQuery("SELECT id FROM patients ORDER BY id LIMIT 1")) {
+            patientId = rs.next() ? rs.getInt(1) : -1;
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder writes = new LongAdder();
+        Thread writer = new Thread(() -> {
+            while (running.get()) {
+                if (patientId > 0 && SymptomDAO.insertSymptom(patientId, "bench")) writes.increment();
+            }
+        });
+
+        // Mezcla de lecturas típicas: lista de doctores, un doctor, una página de mediciones de un paciente
+        Runnable read = () -> {
+            DoctorDAO.getAllDoctors();
+            DoctorDAO.getDoctorById(doctorId);
+            MeasurementDAO.listByPatientId(patientId, 20, null);
+        };
+        for (int i = 0; i < 2000; i++) read.run(); // calentar JIT y caché de páginas
+
+        List<long[]> latencies = new ArrayList<>();
+        LongAdder reads = new LongAdder();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long[] mine = new long[1 << 20];
+            latencies.add(mine);
+            readers.add(new Thread(() -> {
+                int n = 0;
+                while (running.get()) {
+                    long t0 = System.nanoTime();
+                    read.run();
+                    mine[n++ & (mine.length - 1)] = System.nanoTime() - t0;
+                    reads.increment();
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        writer.start();
+        readers.forEach(Thread::start);
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread t : readers) t.join();
+        writer.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        long[] all = latencies.stream().flatMapToLong(Arrays::stream).filter(l -> l > 0).sorted().toArray();
+        double p99 = all.length > 0 ? all[(int) (all.length * 0.99)] / 1e6 : 0;
+        System.out.printf("RESULT %10.0f %9.3f %10.0f%n", reads.sum() / elapsed, p99, writes.sum() / elapsed);
+        DatabaseManager.close();
+    }
+}
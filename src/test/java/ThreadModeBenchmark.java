@@ -0,0 +1,119 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Comparación (NO es un test de JUnit): arranca ServerMain en cada modo de hilos,
+ * abre N conexiones ociosas, mide RSS e hilos del proceso servidor y la latencia p99 de LIST_DOCTORS.
+ *
+ * Uso: java -cp target/classes:target/test-classes:<deps> ThreadModeBenchmark [conexiones] [peticiones] [clientesActivos]
+ */
+public class ThreadModeBenchmark {
+
+    private static final String[] MODES = {"classic", "virtual", "nio"};
+    private static final String REQUEST = "{\"type\":\"REQUEST\",\"action\":\"LIST_DOCTORS\",\"requestId\":\"b\",\"payload\":{}}";
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int requests    = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int active      = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        System.out.printf("%-8s %8s %9s %8s %9s %9s %9s%n",
+                "mode", "conns", "RSS(MB)", "threads", "req/s", "p50(ms)", "p99(ms)");
+        for (String mode : MODES) {
+            run(mode, connections, requests, active);
+        }
+    }
+
+    private static void run(String mode, int connections, int requests, int active) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process server = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "server.ServerMain", "--telemed.mode=" + mode,
+                "--telemed.admission.enabled=false") // se mide el transporte, no los límites
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            waitForPort();
+
+            // 1) conexiones ociosas (pacientes conectados sin hacer nada)
+            for (int i = 0; i < connections; i++) {
+                sockets.add(new Socket("localhost", 9000));
+            }
+            Thread.sleep(2000); // que el servidor termine de crear los handlers
+            long rssKb = procStatus(server.pid(), "VmRSS");
+            long threads = procStatus(server.pid(), "Threads");
+
+            // 2) latencia con "active" clientes lanzando peticiones sobre conexiones ya abiertas
+            long[] latencies = new long[requests];
+            AtomicInteger next = new AtomicInteger();
+            ExecutorService clients = Executors.newFixedThreadPool(active);
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < active; c++) {
+                Socket s = sockets.get(c);
+                futures.add(clients.submit(() -> {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+                    PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests) {
+                        long t0 = System.nanoTime();
+                        out.println(REQUEST);
+                        in.readLine();
+                        latencies[i] = System.nanoTime() - t0;
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) f.get();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            clients.shutdown();
+
+            Arrays.sort(latencies);
+            System.out.printf("%-8s %8d %9.1f %8d %9.0f %9.2f %9.2f%n",
+                    mode, connections, rssKb / 1024.0, threads, requests / seconds,
+                    latencies[requests / 2] / 1e6, latencies[(int) (requests * 0.99)] / 1e6);
+        } finally {
+            for (Socket s : sockets) {
+                try { s.close(); } catch (Exception ignored) {}
+            }
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static void waitForPort() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket("localhost", 9000).close(); // solo comprobar que ya acepta conexiones
+                return;
+            } catch (Exception e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start");
+    }
+
+    // Lee un campo numérico de /proc/<pid>/status (Linux)
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(pid), "status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception ignored) {}
+        return -1;
+    }
+}